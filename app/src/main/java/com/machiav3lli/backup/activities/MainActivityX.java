@@ -46,8 +46,11 @@ import com.machiav3lli.backup.fragments.AppSheet;
 import com.machiav3lli.backup.fragments.SortFilterSheet;
 import com.machiav3lli.backup.handler.AppInfoHelper;
 import com.machiav3lli.backup.handler.BackupRestoreHelper;
+import com.machiav3lli.backup.handler.BatchRunner;
 import com.machiav3lli.backup.handler.HandleMessages;
+import com.machiav3lli.backup.handler.KeyCache;
 import com.machiav3lli.backup.handler.NotificationHelper;
+import com.machiav3lli.backup.handler.RunReport;
 import com.machiav3lli.backup.handler.ShellHandler;
 import com.machiav3lli.backup.handler.SortFilterManager;
 import com.machiav3lli.backup.items.ActionResult;
@@ -352,26 +355,34 @@ public class MainActivityX extends BaseActivity implements BatchConfirmDialog.Co
             Log.i(MainActivityX.TAG, "wakelock acquired");
         }
         int notificationId = (int) System.currentTimeMillis();
-        int total = selectedList.size();
-        int i = 1;
-        List<ActionResult> results = new ArrayList<>(total);
-        for (AppInfo app : selectedList) {
-            String message = "(" + i + '/' + total + ')';
-            String title = (this.backupBoolean ? this.getString(R.string.backupProgress) : this.getString(R.string.restoreProgress))
-                    + " (" + i + '/' + total + ')';
-            NotificationHelper.showNotification(this, MainActivityX.class, notificationId, title, app.getLabel(), false);
-            this.handleMessages.setMessage(app.getLabel(), message);
-            int mode = checkSelectedMode();
-            final BackupRestoreHelper backupRestoreHelper = new BackupRestoreHelper();
-            ActionResult result;
-            if (this.backupBoolean) {
-                result = backupRestoreHelper.backup(this, MainActivityX.getShellHandlerInstance(), app, mode);
-            } else {
-                result = backupRestoreHelper.restore(this, app, MainActivityX.getShellHandlerInstance(), mode);
+        int mode = checkSelectedMode();
+        final BackupRestoreHelper backupRestoreHelper = new BackupRestoreHelper(new RunReport(RunReport.TRIGGER_UI, -1));
+        // the apps are processed in parallel, the progress shows the latest started app
+        BatchRunner.Listener listener = new BatchRunner.Listener() {
+            @Override
+            public void onAppStarted(AppInfo app, int started, int finished, int total) {
+                String message = "(" + started + '/' + total + ')';
+                String title = (MainActivityX.this.backupBoolean ? MainActivityX.this.getString(R.string.backupProgress) : MainActivityX.this.getString(R.string.restoreProgress))
+                        + " (" + started + '/' + total + ')';
+                NotificationHelper.showNotification(MainActivityX.this, MainActivityX.class, notificationId, title, app.getLabel(), false);
+                MainActivityX.this.handleMessages.setMessage(app.getLabel(), message);
+            }
+
+            @Override
+            public void onAppFinished(AppInfo app, ActionResult result, int finished, int total) {
+                Log.d(MainActivityX.TAG, String.format("%s: Finished (%d/%d), succeeded: %s", app, finished, total, result.succeeded));
             }
-            results.add(result);
-            i++;
+        };
+        BatchRunner batchRunner = new BatchRunner(this);
+        List<ActionResult> results = this.backupBoolean
+                ? batchRunner.runPipelined(selectedList, app -> backupRestoreHelper.collectBackup(this, MainActivityX.getShellHandlerInstance(), app, mode), listener)
+                : batchRunner.run(selectedList, app -> backupRestoreHelper.restore(this, app, MainActivityX.getShellHandlerInstance(), mode), listener);
+        if (this.backupBoolean) {
+            BackupRestoreHelper.collectChunkGarbage(this);
         }
+        backupRestoreHelper.writeExclusionReport(this);
+        backupRestoreHelper.writeRunReport(this);
+        KeyCache.wipe();
         if (this.handleMessages.isShowing()) {
             this.handleMessages.endMessage();
         }
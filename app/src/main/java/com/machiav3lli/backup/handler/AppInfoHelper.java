@@ -132,6 +132,10 @@ public class AppInfoHelper {
             if (files != null) {
                 Arrays.sort(files);
                 for (String folder : files) {
+                    // the chunk store is not the backup of a package
+                    if (folder.equals(ChunkStore.DIRECTORY_NAME)) {
+                        continue;
+                    }
                     if (!packageNames.contains(folder) && new File(backupDir.getAbsolutePath() + File.separator + folder).isDirectory()) {
                         LogFile logInfo = new LogFile(new File(backupDir.getAbsolutePath() + File.separator + folder), folder);
                         if (logInfo.getLastBackupMillis() > 0) {
@@ -28,15 +28,38 @@ import com.machiav3lli.backup.handler.action.RestoreSpecialAction;
 import com.machiav3lli.backup.handler.action.SystemRestoreAppAction;
 import com.machiav3lli.backup.items.ActionResult;
 import com.machiav3lli.backup.items.AppInfo;
+import com.machiav3lli.backup.utils.FileUtils;
 
 import org.jetbrains.annotations.NotNull;
+import org.json.JSONException;
 
 import java.io.File;
+import java.io.IOException;
 
 public class BackupRestoreHelper {
     private static final String TAG = Constants.classTag(".BackupRestoreHelper");
+    // a helper is created for every batch
+    private final ExclusionReport exclusionReport = new ExclusionReport();
+    private final RunReport runReport;
+
+    /**
+     * @param runReport the report of the batch, which has been started by the caller
+     */
+    public BackupRestoreHelper(RunReport runReport) {
+        this.runReport = runReport;
+    }
 
     public ActionResult backup(Context context, ShellHandler shell, @NotNull AppInfo app, int backupMode) {
+        return this.collectBackup(context, shell, app, backupMode).run(app);
+    }
+
+    /**
+     * Prepares the backup folder of the app and collects its apks and data. The returned stage
+     * archives them and finishes the backup.
+     *
+     * @return the stage, that archives the collected apks and data
+     */
+    public BatchRunner.Action collectBackup(Context context, ShellHandler shell, @NotNull AppInfo app, int backupMode) {
         BackupAppAction action;
         // Select and prepare the action to use
         if (app.isSpecial()) {
@@ -50,6 +73,8 @@ public class BackupRestoreHelper {
         } else {
             action = new BackupAppAction(context, shell);
         }
+        action.setExclusionReport(this.exclusionReport);
+        action.setRunReport(this.runReport);
         Log.d(BackupRestoreHelper.TAG, String.format("%s: Using %s class", app, action.getClass().getSimpleName()));
         File appBackupDir = action.getAppBackupFolder(app);
 
@@ -61,10 +86,14 @@ public class BackupRestoreHelper {
         boolean backupDirCreated = appBackupDir.mkdirs();
         Log.d(BackupRestoreHelper.TAG, String.format("%s: Backup dir created: %s", app, backupDirCreated));
 
-        // create the new backup
-        ActionResult result = action.run(app, backupMode);
-        Log.i(BackupRestoreHelper.TAG, String.format("%s: Backup succeeded: %s", app, result.succeeded));
-        return result;
+        action.collect(app, backupMode);
+        int mode = backupMode;
+        return collectedApp -> {
+            // create the new backup
+            ActionResult result = action.run(collectedApp, mode);
+            Log.i(BackupRestoreHelper.TAG, String.format("%s: Backup succeeded: %s", collectedApp, result.succeeded));
+            return result;
+        };
     }
 
     public ActionResult restore(Context context, AppInfo app, ShellHandler shell, int mode) {
@@ -76,11 +105,64 @@ public class BackupRestoreHelper {
         } else {
             restoreAction = new RestoreAppAction(context, shell);
         }
+        restoreAction.setExclusionReport(this.exclusionReport);
+        restoreAction.setRunReport(this.runReport);
         ActionResult result = restoreAction.run(app, mode);
         Log.i(BackupRestoreHelper.TAG, String.format("%s: Restore succeeded: %s", app, result.succeeded));
         return result;
     }
 
+    /**
+     * Removes the chunks, that are not used by any backup anymore, from the chunk store.
+     * Called after a batch of backups. It's skipped, while another batch writes to the store.
+     *
+     * @param context the context to read the backup directory from
+     */
+    public static void collectChunkGarbage(Context context) {
+        File backupDir = new File(FileUtils.getBackupDirectoryPath(context));
+        ChunkStore chunkStore = new ChunkStore(backupDir);
+        // also clean up, if the chunk store has been disabled
+        if (!chunkStore.exists()) {
+            return;
+        }
+        try {
+            chunkStore.collectGarbage(backupDir);
+        } catch (IOException e) {
+            Log.e(BackupRestoreHelper.TAG, "Chunk store garbage collection failed: " + e);
+        }
+    }
+
+    /**
+     * Appends the report, what the exclusion rules left out during the batch of this helper, to
+     * the report file.
+     *
+     * @param context the context to read the backup directory from
+     */
+    public void writeExclusionReport(Context context) {
+        try {
+            this.exclusionReport.write(new File(FileUtils.getBackupDirectoryPath(context)));
+        } catch (IOException e) {
+            Log.e(BackupRestoreHelper.TAG, "Could not write exclusion report: " + e);
+        }
+    }
+
+    /**
+     * Appends the report of the apps backed up or restored during the batch of this helper to
+     * the run report.
+     *
+     * @param context the context to read the backup directory from
+     */
+    public void writeRunReport(Context context) {
+        try {
+            File reportFile = this.runReport.write(new File(FileUtils.getBackupDirectoryPath(context)));
+            if (reportFile != null) {
+                Log.i(BackupRestoreHelper.TAG, "Wrote report of the batch to " + reportFile);
+            }
+        } catch (IOException | JSONException e) {
+            Log.e(BackupRestoreHelper.TAG, "Could not write report of the batch: " + e);
+        }
+    }
+
     public enum ActionType {BACKUP, RESTORE}
 
     public interface OnBackupRestoreListener {
@@ -0,0 +1,256 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import android.content.Context;
+import android.os.Environment;
+import android.util.Log;
+
+import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.items.ActionResult;
+import com.machiav3lli.backup.items.AppInfo;
+import com.machiav3lli.backup.utils.FileUtils;
+import com.machiav3lli.backup.utils.PrefUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs the backups or restores of a batch of apps. Several apps are processed at the same time
+ * by a pool of workers. Then the biggest apps are started first, so the batch doesn't end with
+ * a single big app running alone. A single worker processes the apps in the given order.
+ * <p>
+ * Backups can be split into two stages: collecting the apks and data with the root shell and
+ * archiving them. The collection of the next apps runs ahead, while the workers archive the
+ * current ones, so the storage isn't idle during compression and the CPU isn't idle during the
+ * shell commands. The lookahead limits, how many collected apps wait for a worker and how much
+ * temporary space their copies take.
+ */
+public class BatchRunner {
+    private static final String TAG = Constants.classTag(".BatchRunner");
+    private final int workers;
+    private final int lookahead;
+    private int started;
+    private int finished;
+
+    public BatchRunner(Context context) {
+        this(BatchRunner.getWorkerCount(context), PrefUtils.getIntPreference(context, Constants.PREFS_BATCHLOOKAHEAD, 1));
+    }
+
+    public BatchRunner(int workers, int lookahead) {
+        this.workers = Math.max(1, workers);
+        this.lookahead = Math.max(0, lookahead);
+    }
+
+    /**
+     * @return the configured number of apps processed at the same time or the default one
+     */
+    public static int getWorkerCount(Context context) {
+        int workers = PrefUtils.getIntPreference(context, Constants.PREFS_BATCHWORKERS, 0);
+        return workers > 0 ? workers : BatchRunner.getDefaultWorkerCount(context);
+    }
+
+    /**
+     * Chooses the number of workers from the CPU cores and the backup storage. Every app needs
+     * about two cores for archiving and compressing. Removable storage like sd cards and usb
+     * drives is slow at writing several files at once, so it gets at most two workers.
+     */
+    public static int getDefaultWorkerCount(Context context) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        boolean isRemovable;
+        try {
+            isRemovable = Environment.isExternalStorageRemovable(new File(FileUtils.getBackupDirectoryPath(context)));
+        } catch (IllegalArgumentException e) {
+            // not on a shared storage device, e.g. the internal data partition
+            isRemovable = false;
+        }
+        return isRemovable ? Math.min(2, cores) : Math.max(1, Math.min(4, cores / 2));
+    }
+
+    /**
+     * @return the size of the app's apks and data without the cache as far as it's known
+     */
+    private static long getSize(AppInfo app) {
+        return app.getAppSize() + app.getDataSize();
+    }
+
+    /**
+     * Runs the action for all apps and waits until all of them are done. A failing app doesn't
+     * stop the others. The listener is called by the workers, but never by two at the same time,
+     * so the counts it gets are always increasing.
+     *
+     * @param apps     the apps to process
+     * @param action   the backup or restore of a single app
+     * @param listener gets notified, when an app is started and finished, may be null
+     * @return the results in the order of the given apps
+     */
+    public List<ActionResult> run(List<AppInfo> apps, Action action, Listener listener) {
+        // there is nothing to collect ahead, the apps just wait for a free worker
+        return this.run(apps, app -> action, 0, listener);
+    }
+
+    /**
+     * Like run, but the first stage of the next apps is run ahead by the calling thread, while
+     * the workers run the second stage of the current ones. An app is started, when its first
+     * stage begins.
+     *
+     * @param apps      the apps to process
+     * @param collector the first stage of a single app, returns its second stage
+     * @param listener  gets notified, when an app is started and finished, may be null
+     * @return the results in the order of the given apps
+     */
+    public List<ActionResult> runPipelined(List<AppInfo> apps, Collector collector, Listener listener) {
+        return this.run(apps, collector, this.lookahead, listener);
+    }
+
+    private List<ActionResult> run(List<AppInfo> apps, Collector collector, int lookahead, Listener listener) {
+        this.started = 0;
+        this.finished = 0;
+        ActionResult[] results = new ActionResult[apps.size()];
+        int workers = Math.min(this.workers, apps.size());
+        if (workers <= 1 && lookahead == 0) {
+            for (int i = 0; i < apps.size(); i++) {
+                AppInfo app = apps.get(i);
+                results[i] = this.finishApp(app, apps.size(), this.collectApp(app, apps.size(), collector, listener), listener);
+            }
+            return Arrays.asList(results);
+        }
+        Log.i(BatchRunner.TAG, String.format("Processing %d apps with %d workers and a lookahead of %d", apps.size(), workers, lookahead));
+        // the indexes of the apps, the biggest first. Apps of the same size keep their order
+        List<Integer> order = new ArrayList<>(apps.size());
+        for (int i = 0; i < apps.size(); i++) {
+            order.add(i);
+        }
+        if (workers > 1) {
+            order.sort(Comparator.comparingLong((Integer i) -> BatchRunner.getSize(apps.get(i))).reversed());
+        }
+        // an app holds a permit from the start of its collection until it's finished, so only
+        // lookahead collected apps can wait for a worker
+        Semaphore window = new Semaphore(workers + lookahead);
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<ActionResult>> futures = new ArrayList<>(Collections.nCopies(apps.size(), null));
+            try {
+                for (int i : order) {
+                    AppInfo app = apps.get(i);
+                    window.acquire();
+                    Action stage = this.collectApp(app, apps.size(), collector, listener);
+                    futures.set(i, executor.submit(() -> {
+                        try {
+                            return this.finishApp(app, apps.size(), stage, listener);
+                        } finally {
+                            window.release();
+                        }
+                    }));
+                }
+            } catch (InterruptedException e) {
+                // the apps, that haven't been started, fail below
+                Thread.currentThread().interrupt();
+            }
+            for (int i = 0; i < apps.size(); i++) {
+                AppInfo app = apps.get(i);
+                ActionResult result;
+                if (futures.get(i) == null) {
+                    results[i] = new ActionResult(app, "Interrupted", false);
+                    continue;
+                }
+                try {
+                    result = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    // finishApp catches everything, but Errors
+                    result = new ActionResult(app, e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    result = new ActionResult(app, "Interrupted", false);
+                }
+                results[i] = result;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return Arrays.asList(results);
+    }
+
+    private Action collectApp(AppInfo app, int total, Collector collector, Listener listener) {
+        synchronized (this) {
+            this.started++;
+            if (listener != null) {
+                listener.onAppStarted(app, this.started, this.finished, total);
+            }
+        }
+        try {
+            return collector.collect(app);
+        } catch (RuntimeException e) {
+            Log.e(BatchRunner.TAG, String.format("%s: Collecting failed: %s", app, e), e);
+            ActionResult result = new ActionResult(app, e);
+            return failedApp -> result;
+        }
+    }
+
+    private ActionResult finishApp(AppInfo app, int total, Action action, Listener listener) {
+        ActionResult result;
+        try {
+            result = action.run(app);
+        } catch (RuntimeException e) {
+            Log.e(BatchRunner.TAG, String.format("%s: Action failed: %s", app, e), e);
+            result = new ActionResult(app, e);
+        }
+        synchronized (this) {
+            this.finished++;
+            if (listener != null) {
+                listener.onAppFinished(app, result, this.finished, total);
+            }
+        }
+        return result;
+    }
+
+    public interface Action {
+        ActionResult run(AppInfo app);
+    }
+
+    public interface Collector {
+        /**
+         * Runs the first stage for the app. Failures are reported by the returned stage.
+         *
+         * @param app the app to process
+         * @return the second stage, that finishes the app
+         */
+        Action collect(AppInfo app);
+    }
+
+    public interface Listener {
+        /**
+         * @param app      the app, that has been started
+         * @param started  the number of started apps including this one
+         * @param finished the number of finished apps
+         * @param total    the number of apps in the batch
+         */
+        void onAppStarted(AppInfo app, int started, int finished, int total);
+
+        void onAppFinished(AppInfo app, ActionResult result, int finished, int total);
+    }
+}
@@ -23,14 +23,28 @@ import com.machiav3lli.backup.Constants;
 import com.machiav3lli.backup.utils.CommandUtils;
 import com.topjohnwu.superuser.Shell;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.stream.Collectors;
 
 public class ShellHandler {
     private static final String TAG = Constants.classTag(".ShellHandler");
     private String utilboxPath;
+    private volatile Boolean tarSelinuxSupported;
 
     public ShellHandler() throws UtilboxNotAvailableException {
         try {
@@ -69,11 +83,142 @@ public class ShellHandler {
         return result;
     }
 
+    /**
+     * Starts the given command as root in its own process. In contrast to runAsRoot the binary
+     * stdin and stdout of the process are available, so large amounts of data can be streamed
+     * without buffering them in memory or on the storage.
+     *
+     * @param command the command to run
+     * @return the running process. Call waitFor() to check the result and close() in any case.
+     * @throws IOException if the su binary could not be started
+     */
+    public static RootPipe openRootPipe(String command) throws IOException {
+        Log.d(ShellHandler.TAG, "Opening root pipe: " + command);
+        return new RootPipe(new ProcessBuilder("su", "-c", command).start());
+    }
+
+    /**
+     * Quotes an argument of a shell command, so the shell takes it literally.
+     *
+     * @param argument the argument like a file name
+     * @return the argument in single quotes
+     */
+    public static String quote(String argument) {
+        return '\'' + argument.replace("'", "'\\''") + '\'';
+    }
+
     public String[] suGetDirectoryContents(File path) throws ShellCommandFailedException {
-        Shell.Result shellResult = ShellHandler.runAsRoot(String.format("%s ls %s", this.utilboxPath, path.getAbsolutePath()));
+        return this.suGetDirectoryContents(path, false);
+    }
+
+    /**
+     * Lists a directory like suGetDirectoryContents.
+     *
+     * @param path   the directory to list
+     * @param hidden true to include the hidden files, besides . and ..
+     * @return the names of the files and directories in path
+     * @throws ShellCommandFailedException if ls failed
+     */
+    public String[] suGetDirectoryContents(File path, boolean hidden) throws ShellCommandFailedException {
+        Shell.Result shellResult = ShellHandler.runAsRoot(String.format("%s ls %s%s", this.utilboxPath, hidden ? "-A " : "", ShellHandler.quote(path.getAbsolutePath())));
         return shellResult.getOut().toArray(new String[0]);
     }
 
+    /**
+     * Computes a cheap fingerprint of the given contents of a directory in one find pass:
+     * the number of files and directories, their total size and the latest modification time.
+     * Any added, removed or modified file changes it.
+     *
+     * @param directory the directory containing the contents
+     * @param contents  the names of the files and directories in directory to include
+     * @return the fingerprint formatted as count:size:mtime
+     * @throws IOException if find failed
+     */
+    public String suGetFingerprint(File directory, List<String> contents) throws IOException {
+        String command = String.format("%s find %s -exec %s stat -c '%%s %%Y' {} +",
+                this.utilboxPath,
+                contents.stream().map(s -> ShellHandler.quote(new File(directory, s).getAbsolutePath())).collect(Collectors.joining(" ")),
+                this.utilboxPath);
+        long count = 0;
+        long size = 0;
+        long maxMtime = 0;
+        // the output is read as a stream, because data directories can contain many files
+        try (RootPipe pipe = ShellHandler.openRootPipe(command);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(pipe.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length != 2) {
+                    throw new IOException("Unexpected stat output: " + line);
+                }
+                try {
+                    count++;
+                    size += Long.parseLong(fields[0]);
+                    maxMtime = Math.max(maxMtime, Long.parseLong(fields[1]));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Unexpected stat output: " + line, e);
+                }
+            }
+            pipe.waitFor();
+        }
+        return String.format("%d:%d:%d", count, size, maxMtime);
+    }
+
+    /**
+     * Lists the given contents of a directory recursively.
+     *
+     * @param directory the directory containing the contents
+     * @param contents  the names of the files and directories in directory to list
+     * @return the paths relative to directory, directories before their contents
+     * @throws IOException if find failed
+     */
+    public List<String> suFindFiles(File directory, List<String> contents) throws IOException {
+        // separated by NUL, file names can contain newlines
+        String command = String.format("cd %s && %s find %s -print0",
+                ShellHandler.quote(directory.getAbsolutePath()),
+                this.utilboxPath,
+                contents.stream().map(ShellHandler::quote).collect(Collectors.joining(" ")));
+        List<String> files = new ArrayList<>();
+        // the output is read as a stream, because data directories can contain many files
+        try (RootPipe pipe = ShellHandler.openRootPipe(command);
+             InputStream in = new BufferedInputStream(pipe.getInputStream())) {
+            ByteArrayOutputStream name = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b == 0) {
+                    files.add(new String(name.toByteArray(), StandardCharsets.UTF_8));
+                    name.reset();
+                } else {
+                    name.write(b);
+                }
+            }
+            pipe.waitFor();
+        }
+        return files;
+    }
+
+    /**
+     * Removes files and directories recursively. The paths are passed NUL separated on stdin, so
+     * any number of them fits and the shell never sees them.
+     *
+     * @param files the files and directories to remove
+     * @throws IOException if rm failed
+     */
+    public void suRemoveFiles(Collection<File> files) throws IOException {
+        if (files.isEmpty()) {
+            return;
+        }
+        try (RootPipe pipe = ShellHandler.openRootPipe(String.format("%s xargs -0 %s rm -rf", this.utilboxPath, this.utilboxPath))) {
+            try (OutputStream out = new BufferedOutputStream(pipe.getOutputStream())) {
+                for (File file : files) {
+                    out.write(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+                    out.write(0);
+                }
+            }
+            pipe.waitFor();
+        }
+    }
+
     /**
      * Uses superuser permissions to retrieve uid and gid of any given directory.
      *
@@ -81,7 +226,7 @@ public class ShellHandler {
      * @return an array with two fields. First ist uid, second is gid:  {uid, gid}
      */
     public String[] suGetOwnerAndGroup(String filepath) throws ShellCommandFailedException, UnexpectedCommandResult {
-        String command = String.format("%s stat -c '%%u %%g' \"%s\"", this.utilboxPath, filepath);
+        String command = String.format("%s stat -c '%%u %%g' %s", this.utilboxPath, ShellHandler.quote(filepath));
         Shell.Result shellResult = ShellHandler.runAsRoot(command);
         String[] result = shellResult.getOut().get(0).split(" ");
         if (result.length != 2) {
@@ -96,6 +241,42 @@ public class ShellHandler {
         return result;
     }
 
+    /**
+     * Uses superuser permissions to retrieve the SELinux context of a file.
+     *
+     * @param filepath the file to retrieve the context of
+     * @return the context like u:object_r:app_data_file:s0:c512,c768
+     */
+    public String suGetSelinuxContext(String filepath) throws ShellCommandFailedException, UnexpectedCommandResult {
+        String command = String.format("%s stat -c '%%C' %s", this.utilboxPath, ShellHandler.quote(filepath));
+        Shell.Result shellResult = ShellHandler.runAsRoot(command);
+        if (shellResult.getOut().isEmpty() || !TarUtils.isValidSelinuxContext(shellResult.getOut().get(0).trim())) {
+            throw new UnexpectedCommandResult(String.format("'%s' returned no valid context", command), shellResult);
+        }
+        return shellResult.getOut().get(0).trim();
+    }
+
+    /**
+     * Checks if tar can store and restore SELinux contexts with --selinux. Older versions of
+     * toybox don't know the option. The result is kept, because the utilbox doesn't change.
+     *
+     * @return true, if --selinux is supported
+     */
+    public boolean isTarSelinuxSupported() {
+        if (this.tarSelinuxSupported == null) {
+            boolean supported;
+            try {
+                Shell.Result shellResult = ShellHandler.runAsUser(this.utilboxPath + " tar --help");
+                supported = shellResult.getOut().stream().anyMatch(line -> line.contains("--selinux"));
+            } catch (ShellCommandFailedException e) {
+                supported = false;
+            }
+            Log.i(ShellHandler.TAG, "tar supports --selinux: " + supported);
+            this.tarSelinuxSupported = supported;
+        }
+        return this.tarSelinuxSupported;
+    }
+
     public String getUtilboxPath() {
         return this.utilboxPath;
     }
@@ -118,6 +299,67 @@ public class ShellHandler {
         Shell.Job runCommand(String... commands);
     }
 
+    public static class RootPipe implements Closeable {
+        private final Process process;
+        private final Thread errorReader;
+        private final List<String> stderr = Collections.synchronizedList(new ArrayList<>());
+
+        private RootPipe(Process process) {
+            this.process = process;
+            // stderr has to be drained. Otherwise the process blocks as soon as the pipe is full
+            this.errorReader = new Thread(() -> {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        this.stderr.add(line);
+                    }
+                } catch (IOException e) {
+                    Log.w(ShellHandler.TAG, "Could not read stderr of root pipe: " + e);
+                }
+            });
+            this.errorReader.start();
+        }
+
+        public InputStream getInputStream() {
+            return this.process.getInputStream();
+        }
+
+        public OutputStream getOutputStream() {
+            return this.process.getOutputStream();
+        }
+
+        public List<String> getErr() {
+            return this.stderr;
+        }
+
+        /**
+         * Waits for the process to end.
+         *
+         * @throws IOException if the process did not end successfully. The message contains the
+         *                     last line the process wrote to stderr.
+         */
+        public void waitFor() throws IOException {
+            try {
+                int exitCode = this.process.waitFor();
+                this.errorReader.join();
+                Log.d(ShellHandler.TAG, String.format("Root pipe ended with %d", exitCode));
+                if (exitCode != 0) {
+                    String error = this.stderr.isEmpty() ? "Unknown Error" : this.stderr.get(this.stderr.size() - 1);
+                    throw new IOException(String.format("Root command failed with %d: %s", exitCode, error));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for root command", e);
+            }
+        }
+
+        @Override
+        public void close() {
+            // no-op, if the process has already ended
+            this.process.destroy();
+        }
+    }
+
     public static class ShellCommandFailedException extends Exception {
         private final transient Shell.Result shellResult;
 
@@ -21,16 +21,29 @@ import android.content.Context;
 import android.util.Log;
 
 import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.handler.ArchiveStreams;
+import com.machiav3lli.backup.handler.ChunkFormat;
+import com.machiav3lli.backup.handler.ChunkingOutputStream;
+import com.machiav3lli.backup.handler.CompressionCodec;
 import com.machiav3lli.backup.handler.Crypto;
+import com.machiav3lli.backup.handler.EncryptionAlgorithm;
+import com.machiav3lli.backup.handler.ExclusionRules;
+import com.machiav3lli.backup.handler.ManifestRecorder;
+import com.machiav3lli.backup.handler.ParallelGzipOutputStream;
+import com.machiav3lli.backup.handler.PhaseStats;
+import com.machiav3lli.backup.handler.PipelineOutputStream;
 import com.machiav3lli.backup.handler.ShellHandler;
 import com.machiav3lli.backup.handler.TarUtils;
 import com.machiav3lli.backup.items.ActionResult;
+import com.machiav3lli.backup.items.ApkDigest;
 import com.machiav3lli.backup.items.AppInfo;
+import com.machiav3lli.backup.items.BackupManifest;
 import com.machiav3lli.backup.items.LogFile;
 import com.machiav3lli.backup.utils.PrefUtils;
 
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.apache.commons.io.FileUtils;
 import org.json.JSONException;
 
@@ -41,61 +54,350 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 public class BackupAppAction extends BaseAppAction {
     private static final String TAG = Constants.classTag(".BackupAppAction");
+    private static final String EMPTY_FINGERPRINT = "0:0:0";
+    // not a component, the settings the data has been archived with
+    private static final String SETTINGS_FINGERPRINT = "settings";
+    private BackupManifest previousManifest;
+    private BackupManifest currentManifest;
+    private int incrementLevel;
+    private ApkDigest[] unchangedApkDigests;
+    private boolean apksChecked;
+    private Map<String, String> dataFingerprints;
+    private boolean dataFingerprinted;
+    private ApkDigest[] collectedApkDigests;
+    private boolean apksCollected;
+    private final Map<String, List<String>> collectedContents = new ConcurrentHashMap<>();
+    private boolean collecting;
+    private long collectNanos;
 
     public BackupAppAction(Context context, ShellHandler shell) {
         super(context, shell);
     }
 
+    /**
+     * Runs the steps of the backup, that mostly wait for the root shell: copying the apks and the
+     * data, that isn't streamed, to the backup folder. run archives the collected data later, so
+     * a batch can collect the next app, while the current one is compressed and encrypted.
+     * Calling it is optional. Whatever failed or hasn't been collected, is done by run and
+     * reports its errors there.
+     *
+     * @param app        the app to back up
+     * @param backupMode the parts of the app to back up
+     */
+    public void collect(AppInfo app, int backupMode) {
+        Log.d(BackupAppAction.TAG, String.format("%s: Collecting apks and data", app));
+        long startNanos = System.nanoTime();
+        try {
+            if ((backupMode & AppInfo.MODE_APK) == AppInfo.MODE_APK && this.findUnchangedApks(app) == null) {
+                this.collectApks(app);
+            }
+            if ((backupMode & AppInfo.MODE_DATA) == AppInfo.MODE_DATA && !this.isDataUnchanged(app)) {
+                this.collecting = true;
+                for (DataBackup dataBackup : this.getDataBackups()) {
+                    dataBackup.backup(app);
+                }
+            }
+        } catch (BackupFailedException | Crypto.CryptoSetupException e) {
+            Log.w(BackupAppAction.TAG, String.format("%s: Collecting failed. Retrying while archiving: %s", app, e));
+        } finally {
+            this.collecting = false;
+            this.collectNanos += System.nanoTime() - startNanos;
+        }
+    }
+
     @Override
     public ActionResult run(AppInfo app, int backupMode) {
+        long startNanos = System.nanoTime();
+        ActionResult result = this.backup(app, backupMode);
+        this.reportStats(app, "backup", this.collectNanos + System.nanoTime() - startNanos, result);
+        return result;
+    }
+
+    private ActionResult backup(AppInfo app, int backupMode) {
         Log.i(BackupAppAction.TAG, String.format("Backing up: %s [%s]", app.getPackageName(), app.getLabel()));
         try {
+            ApkDigest[] apkDigests = app.getLogInfo() != null ? app.getLogInfo().getApkDigests() : null;
             if ((backupMode & AppInfo.MODE_APK) == AppInfo.MODE_APK) {
-                this.backupPackage(app);
-            }
-            if ((backupMode & AppInfo.MODE_DATA) == AppInfo.MODE_DATA) {
-                this.backupData(app);
-                if (PrefUtils.getDefaultSharedPreferences(this.getContext()).getBoolean(Constants.PREFS_EXTERNALDATA, true)) {
-                    this.backupExternalData(app);
-                    this.backupObbData(app);
+                apkDigests = this.findUnchangedApks(app);
+                if (apkDigests != null) {
+                    Log.i(BackupAppAction.TAG, String.format("%s: Package is unchanged. Keeping the backed up apks", app));
+                } else {
+                    apkDigests = this.collectApks(app);
                 }
-                if (PrefUtils.getDefaultSharedPreferences(this.getContext()).getBoolean(Constants.PREFS_DEVICEPROTECTEDDATA, true)) {
-                    this.backupDeviceProtectedData(app);
+            }
+            String compressionType = this.getCompressionCodec().getName();
+            int incrementLevel = 0;
+            Map<String, String> dataFingerprints = app.getLogInfo() != null ? app.getLogInfo().getDataFingerprints() : null;
+            boolean dataBackedUp = false;
+            if ((backupMode & AppInfo.MODE_DATA) == AppInfo.MODE_DATA && this.isDataUnchanged(app)) {
+                Log.i(BackupAppAction.TAG, String.format("%s: Data is unchanged. Keeping the backed up data", app));
+            } else if ((backupMode & AppInfo.MODE_DATA) == AppInfo.MODE_DATA) {
+                // taken before the data is archived, so changes made meanwhile are backed up next time
+                dataFingerprints = this.getDataFingerprints(app);
+                this.prepareManifest(app);
+                this.runDataBackups(app, this.getDataBackups());
+                if (this.currentManifest != null) {
+                    this.currentManifest.write(this.getManifestFile(app));
                 }
+                incrementLevel = this.incrementLevel;
+                dataBackedUp = true;
             }
             boolean encrypted = !PrefUtils.getDefaultSharedPreferences(this.getContext()).getString(Constants.PREFS_PASSWORD, "").isEmpty();
+            String encryptionAlgorithm = dataBackedUp && encrypted ? this.getEncryptionAlgorithm().getName() : null;
+            if (!dataBackedUp && app.getLogInfo() != null) {
+                // the data archives of the previous backup are kept
+                compressionType = app.getLogInfo().getCompressionType();
+                incrementLevel = app.getLogInfo().getIncrementLevel();
+                encryptionAlgorithm = app.getLogInfo().getEncryptionAlgorithm();
+            }
             app.setBackupMode(backupMode);
-            LogFile.writeLogFile(this.getAppBackupFolder(app), app, backupMode, encrypted);
-        } catch (BackupFailedException | Crypto.CryptoSetupException | JSONException | IOException e) {
-            return new ActionResult(
-                    app,
-                    String.format("%s: %s", e.getClass().getSimpleName(), e.getMessage()),
-                    false
-            );
+            LogFile.writeLogFile(this.getAppBackupFolder(app), app, backupMode, encrypted, encryptionAlgorithm, compressionType, incrementLevel,
+                    apkDigests, dataFingerprints, this.getComponentStats());
+            this.reportExclusions(app);
+        } catch (BackupFailedException | JSONException | IOException e) {
+            return new ActionResult(app, e);
         }
         return new ActionResult(app, "", true);
     }
 
+    private List<DataBackup> getDataBackups() {
+        List<DataBackup> dataBackups = new ArrayList<>();
+        dataBackups.add(this::backupData);
+        if (PrefUtils.getDefaultSharedPreferences(this.getContext()).getBoolean(Constants.PREFS_EXTERNALDATA, true)) {
+            dataBackups.add(this::backupExternalData);
+            dataBackups.add(this::backupObbData);
+        }
+        if (PrefUtils.getDefaultSharedPreferences(this.getContext()).getBoolean(Constants.PREFS_DEVICEPROTECTEDDATA, true)) {
+            dataBackups.add(this::backupDeviceProtectedData);
+        }
+        return dataBackups;
+    }
+
+    /**
+     * Runs the backups of the data components. They are written to separate archives, so they can
+     * run in parallel, if more than one worker is configured. All components are backed up, even
+     * if one of them fails, one after the other as well as in parallel. The failures are merged
+     * into one exception.
+     *
+     * @param app         the app to back up
+     * @param dataBackups the components to back up
+     * @throws BackupFailedException if at least one of the components failed
+     */
+    protected void runDataBackups(AppInfo app, List<DataBackup> dataBackups) throws BackupFailedException {
+        int workers = Math.min(
+                PrefUtils.getIntPreference(this.getContext(), Constants.PREFS_COMPONENTWORKERS, 1),
+                dataBackups.size());
+        if (workers <= 1) {
+            List<Throwable> failures = new ArrayList<>();
+            for (DataBackup dataBackup : dataBackups) {
+                try {
+                    dataBackup.backup(app);
+                } catch (BackupFailedException | Crypto.CryptoSetupException | RuntimeException e) {
+                    failures.add(e);
+                }
+            }
+            BackupAppAction.throwFailures(failures);
+            return;
+        }
+        Log.d(BackupAppAction.TAG, String.format("%s: Backing up %d data components with %d workers", app, dataBackups.size(), workers));
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Void>> futures = new ArrayList<>(dataBackups.size());
+            for (DataBackup dataBackup : dataBackups) {
+                futures.add(executor.submit(() -> {
+                    dataBackup.backup(app);
+                    return null;
+                }));
+            }
+            List<Throwable> failures = new ArrayList<>();
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    failures.add(e.getCause());
+                }
+            }
+            BackupAppAction.throwFailures(failures);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BackupFailedException("Interrupted while backing up data", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @param failures the failures of the data components
+     * @throws BackupFailedException with the messages of all failures, if there are any
+     */
+    private static void throwFailures(List<Throwable> failures) throws BackupFailedException {
+        if (!failures.isEmpty()) {
+            String message = failures.stream()
+                    .map(e -> String.format("%s: %s", e.getClass().getSimpleName(), e.getMessage()))
+                    .collect(Collectors.joining("; "));
+            throw new BackupFailedException(message, failures.get(0));
+        }
+    }
+
+    /**
+     * Checks if the next data backup only needs to archive the changes since the last one.
+     * This is the case, if incremental backups are enabled, the last backup contained data, its
+     * chain of increments is not too long yet and it was created with the same settings.
+     *
+     * @param app the app to back up
+     * @return true, if an incremental backup will be created
+     */
+    public boolean isIncrementalBackup(AppInfo app) {
+        LogFile logInfo = app.getLogInfo();
+        if (app.isSpecial() || logInfo == null
+                || !PrefUtils.getDefaultSharedPreferences(this.getContext()).getBoolean(Constants.PREFS_INCREMENTAL, false)) {
+            return false;
+        }
+        int maxChainLength = PrefUtils.getIntPreference(this.getContext(), Constants.PREFS_INCREMENTAL_CHAINLENGTH, 7);
+        return (logInfo.getBackupMode() & AppInfo.MODE_DATA) == AppInfo.MODE_DATA
+                && logInfo.getIncrementLevel() < maxChainLength
+                && logInfo.isEncrypted() == PrefUtils.isEncryptionEnabled(this.getContext())
+                && CompressionCodec.fromName(logInfo.getCompressionType()) == this.getCompressionCodec()
+                && this.getManifestFile(app).exists();
+    }
+
+    private void prepareManifest(AppInfo app) {
+        this.previousManifest = null;
+        this.currentManifest = null;
+        this.incrementLevel = 0;
+        if (app.isSpecial() || !PrefUtils.getDefaultSharedPreferences(this.getContext()).getBoolean(Constants.PREFS_INCREMENTAL, false)) {
+            return;
+        }
+        this.currentManifest = new BackupManifest();
+        if (this.isIncrementalBackup(app)) {
+            try {
+                this.previousManifest = BackupManifest.read(this.getManifestFile(app));
+                this.incrementLevel = app.getLogInfo().getIncrementLevel() + 1;
+                Log.i(BackupAppAction.TAG, String.format("%s: Creating incremental backup level %d", app, this.incrementLevel));
+            } catch (IOException e) {
+                // a full backup overwrites the base archives, the old increments are not used anymore
+                Log.w(BackupAppAction.TAG, String.format("%s: Could not read manifest. Creating a full backup: %s", app, e));
+            }
+        }
+    }
+
+    /**
+     * Checks if the data of the app is unchanged since the last backup by comparing the
+     * fingerprints of all data components and of the archives' settings with the ones recorded
+     * in the log file. The backed up data can be kept in this case.
+     *
+     * @param app the app to back up
+     * @return true, if the data doesn't need to be backed up again
+     */
+    public boolean isDataUnchanged(AppInfo app) {
+        LogFile logInfo = app.getLogInfo();
+        if (logInfo == null || logInfo.getDataFingerprints() == null
+                || (logInfo.getBackupMode() & AppInfo.MODE_DATA) != AppInfo.MODE_DATA
+                || logInfo.isEncrypted() != PrefUtils.isEncryptionEnabled(this.getContext())) {
+            return false;
+        }
+        Map<String, String> fingerprints = this.getDataFingerprints(app);
+        return fingerprints != null && fingerprints.equals(logInfo.getDataFingerprints());
+    }
+
+    /**
+     * Fingerprints the data components, that are backed up with the current settings. The result
+     * is kept, because it's needed by cleanBackup and run.
+     *
+     * @param app the app to back up
+     * @return the fingerprints by component or null, if the fast path is disabled or failed
+     */
+    private Map<String, String> getDataFingerprints(AppInfo app) {
+        if (!this.dataFingerprinted) {
+            this.dataFingerprints = this.fingerprintData(app);
+            this.dataFingerprinted = true;
+        }
+        return this.dataFingerprints;
+    }
+
+    private Map<String, String> fingerprintData(AppInfo app) {
+        if (app.isSpecial() || !PrefUtils.getDefaultSharedPreferences(this.getContext()).getBoolean(Constants.PREFS_SKIPUNCHANGEDDATA, false)) {
+            return null;
+        }
+        Map<String, File> components = new HashMap<>();
+        components.put(BaseAppAction.BACKUP_DIR_DATA, new File(app.getDataDir()));
+        if (PrefUtils.getDefaultSharedPreferences(this.getContext()).getBoolean(Constants.PREFS_EXTERNALDATA, true)) {
+            components.put(BaseAppAction.BACKUP_DIR_EXTERNAL_FILES, app.getExternalFilesPath(this.getContext()));
+            components.put(BaseAppAction.BACKUP_DIR_OBB_FILES, app.getObbFilesPath(this.getContext()));
+        }
+        if (PrefUtils.getDefaultSharedPreferences(this.getContext()).getBoolean(Constants.PREFS_DEVICEPROTECTEDDATA, true)) {
+            components.put(BaseAppAction.BACKUP_DIR_DEVICE_PROTECTED_FILES, new File(app.getDeviceProtectedDataDir()));
+        }
+        Map<String, String> fingerprints = new HashMap<>();
+        try {
+            for (Map.Entry<String, File> component : components.entrySet()) {
+                List<String> contents = this.listBackupContents(app, component.getValue(), false);
+                fingerprints.put(
+                        component.getKey(),
+                        contents.isEmpty() ? BackupAppAction.EMPTY_FINGERPRINT : this.getShell().suGetFingerprint(component.getValue(), contents)
+                );
+            }
+            fingerprints.put(BackupAppAction.SETTINGS_FINGERPRINT, this.getSettingsFingerprint(app));
+        } catch (ShellHandler.ShellCommandFailedException | IOException | Crypto.CryptoSetupException e) {
+            Log.w(BackupAppAction.TAG, String.format("%s: Could not fingerprint data. Backing it up: %s", app, e));
+            return null;
+        }
+        Log.d(BackupAppAction.TAG, String.format("%s: Data fingerprints: %s", app, fingerprints));
+        return fingerprints;
+    }
+
+    /**
+     * Fingerprints the settings, which change the data archives: the codec, the password, the
+     * encryption algorithm, the chunk store and the exclusion rules. If one of them changes, the
+     * data is backed up again, even if it's unchanged.
+     */
+    private String getSettingsFingerprint(AppInfo app) throws Crypto.CryptoSetupException {
+        String password = PrefUtils.getDefaultSharedPreferences(this.getContext()).getString(Constants.PREFS_PASSWORD, "");
+        ChunkFormat format = new ChunkFormat(this.getCompressionCodec(), password, PrefUtils.getCryptoSalt(this.getContext()),
+                password.isEmpty() ? null : this.getEncryptionAlgorithm());
+        return format.getFingerprint(String.format("chunks %s\n%s",
+                PrefUtils.getDefaultSharedPreferences(this.getContext()).getBoolean(Constants.PREFS_CHUNKSTORE, false),
+                this.getExclusionRules(app).getDescription()));
+    }
+
+    protected ManifestRecorder createManifestRecorder() {
+        return this.currentManifest != null ? new ManifestRecorder(this.previousManifest, this.currentManifest) : null;
+    }
+
     public boolean cleanBackup(AppInfo app, int backupMode) {
         boolean successFlag = true;
-        if ((backupMode & AppInfo.MODE_APK) == AppInfo.MODE_APK) {
+        if ((backupMode & AppInfo.MODE_APK) == AppInfo.MODE_APK && this.findUnchangedApks(app) != null) {
+            Log.d(BackupAppAction.TAG, String.format("%s: Keeping unchanged backup apks", app));
+        } else if ((backupMode & AppInfo.MODE_APK) == AppInfo.MODE_APK) {
             successFlag = this.removePackageBackup(app);
             Log.d(BackupAppAction.TAG, String.format("%s: Removed backup apks: %s", app, successFlag));
         }
-        if ((backupMode & AppInfo.MODE_DATA) == AppInfo.MODE_DATA) {
+        if ((backupMode & AppInfo.MODE_DATA) == AppInfo.MODE_DATA && this.isDataUnchanged(app)) {
+            Log.d(BackupAppAction.TAG, String.format("%s: Keeping unchanged backup data", app));
+        } else if ((backupMode & AppInfo.MODE_DATA) == AppInfo.MODE_DATA && this.isIncrementalBackup(app)) {
+            Log.d(BackupAppAction.TAG, String.format("%s: Keeping backup data for an incremental backup", app));
+        } else if ((backupMode & AppInfo.MODE_DATA) == AppInfo.MODE_DATA) {
             boolean isEncrypted = PrefUtils.isEncryptionEnabled(this.getContext());
+            FileUtils.deleteQuietly(this.getManifestFile(app));
 
-            boolean lastResult = this.getBackupArchive(app, BaseAppAction.BACKUP_DIR_DATA, isEncrypted).delete();
+            boolean lastResult = this.deleteBackupArchives(app, BaseAppAction.BACKUP_DIR_DATA, isEncrypted);
             Log.d(BackupAppAction.TAG, String.format("%s: Removed backup data: %s", app, lastResult));
             successFlag &= lastResult;
 
             if (PrefUtils.getDefaultSharedPreferences(this.getContext()).getBoolean(Constants.PREFS_EXTERNALDATA, true)) {
-                lastResult = this.getBackupArchive(app, BaseAppAction.BACKUP_DIR_EXTERNAL_FILES, isEncrypted).delete();
+                lastResult = this.deleteBackupArchives(app, BaseAppAction.BACKUP_DIR_EXTERNAL_FILES, isEncrypted);
                 Log.d(BackupAppAction.TAG, String.format("%s: Removed backup external data: %s", app, lastResult));
                 successFlag &= lastResult;
 
@@ -105,40 +407,255 @@ public class BackupAppAction extends BaseAppAction {
             }
 
             if (PrefUtils.getDefaultSharedPreferences(this.getContext()).getBoolean(Constants.PREFS_DEVICEPROTECTEDDATA, true)) {
-                lastResult = this.getBackupArchive(app, BaseAppAction.BACKUP_DIR_DATA, isEncrypted).delete();
-                Log.d(BackupAppAction.TAG, String.format("%s: Removed backup obb data: %s", app, lastResult));
+                lastResult = this.deleteBackupArchives(app, BaseAppAction.BACKUP_DIR_DEVICE_PROTECTED_FILES, isEncrypted);
+                Log.d(BackupAppAction.TAG, String.format("%s: Removed backup device protected data: %s", app, lastResult));
                 successFlag &= lastResult;
             }
         }
         return successFlag;
     }
 
-    protected void compress(File filepath, File outputFilename) throws IOException, Crypto.CryptoSetupException {
+    private boolean deleteBackupArchives(AppInfo app, String what, boolean isEncrypted) {
+        // the archives might have been created with another codec than the configured one
+        List<File> archives = this.findArchiveChain(app, what, isEncrypted);
+        boolean successFlag = !archives.isEmpty();
+        for (File archive : archives) {
+            successFlag &= archive.delete();
+        }
+        return successFlag;
+    }
+
+    protected TarArchiveOutputStream openArchive(File outputFilename, PhaseStats stats) throws IOException, Crypto.CryptoSetupException {
         Log.d(BackupAppAction.TAG, "Opening output file for compression: " + outputFilename);
+        // 0 disables the pipeline, everything is done on the calling thread then
+        int pipelineDepth = PrefUtils.getIntPreference(this.getContext(), Constants.PREFS_PIPELINEDEPTH, ArchiveStreams.DEFAULT_PIPELINE_DEPTH);
+        OutputStream out;
+        if (BaseAppAction.isChunkList(outputFilename)) {
+            // every chunk is compressed and encrypted on its own, so it can be shared by backups
+            String password = PrefUtils.getDefaultSharedPreferences(this.getContext()).getString(Constants.PREFS_PASSWORD, "");
+            ChunkFormat format = new ChunkFormat(this.getCompressionCodec(), password, PrefUtils.getCryptoSalt(this.getContext()),
+                    password.isEmpty() ? null : this.getEncryptionAlgorithm());
+            out = new ChunkingOutputStream(this.getChunkStore(), outputFilename, format, chunk -> {
+                try {
+                    return this.encodeStream(chunk, 1, 0, stats);
+                } catch (Crypto.CryptoSetupException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            });
+            // the chunks are compressed by the pipeline's thread, but metered as if the tar
+            // phase's thread compressed them. Their time is subtracted from the tar phase
+            // instead of its waiting for the pipeline
+            if (pipelineDepth > 0) {
+                out = new PipelineOutputStream(out, "chunk", pipelineDepth, stats);
+            }
+        } else {
+            out = this.encodeStream(new BufferedOutputStream(new FileOutputStream(outputFilename, false)),
+                    Math.max(1, PrefUtils.getIntPreference(this.getContext(), Constants.PREFS_COMPRESSIONTHREADS, 1)), pipelineDepth, stats);
+        }
+        return ArchiveStreams.openTar(out, PrefUtils.getDefaultSharedPreferences(this.getContext()).getBoolean(Constants.PREFS_ADAPTIVECOMPRESSION, true));
+    }
+
+    /**
+     * Wraps the given stream to compress with the configured codec and to encrypt, if a password
+     * is set.
+     */
+    private OutputStream encodeStream(OutputStream out, int threads, int pipelineDepth, PhaseStats stats) throws IOException, Crypto.CryptoSetupException {
+        CompressionCodec codec = this.getCompressionCodec();
         String password = PrefUtils.getDefaultSharedPreferences(this.getContext()).getString(Constants.PREFS_PASSWORD, "");
+        return ArchiveStreams.encode(
+                out,
+                password,
+                PrefUtils.getCryptoSalt(this.getContext()),
+                // the algorithm may have to be measured first, which isn't needed without a password
+                password.isEmpty() ? EncryptionAlgorithm.DEFAULT : this.getEncryptionAlgorithm(),
+                codec,
+                codec.getLevel(PrefUtils.getIntPreference(this.getContext(), Constants.PREFS_COMPRESSIONLEVEL, codec.getDefaultLevel())),
+                threads,
+                ParallelGzipOutputStream.getBlockSize(PrefUtils.getIntPreference(this.getContext(), Constants.PREFS_COMPRESSIONBLOCKSIZE, 1024)),
+                pipelineDepth,
+                stats
+        );
+    }
 
-        OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFilename, false));
-        if (!password.isEmpty()) {
-            out = Crypto.encryptStream(out, password, PrefUtils.getCryptoSalt(this.getContext()));
+    /**
+     * Returns the file to write the archive of a data component to. This is a chunk list, if
+     * backups are stored in the chunk store.
+     */
+    private File getDataArchiveTarget(AppInfo app, String type) {
+        String name = BaseAppAction.getIncrementName(type, this.incrementLevel);
+        if (PrefUtils.getDefaultSharedPreferences(this.getContext()).getBoolean(Constants.PREFS_CHUNKSTORE, false)) {
+            return this.getChunkList(app, name);
         }
-        try (TarArchiveOutputStream archive = new TarArchiveOutputStream(new GzipCompressorOutputStream(out))) {
-            archive.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
-            TarUtils.addFilepath(archive, filepath, "");
+        return this.getBackupArchive(app, name, PrefUtils.isEncryptionEnabled(this.getContext()), this.getCompressionCodec());
+    }
+
+    protected void compress(File filepath, File outputFilename, ExclusionRules exclusions, ManifestRecorder recorder, PhaseStats stats)
+            throws IOException, Crypto.CryptoSetupException {
+        PhaseStats archiveStats = new PhaseStats();
+        long startNanos = System.nanoTime();
+        try (TarArchiveOutputStream archive = this.openArchive(outputFilename, archiveStats)) {
+            // a copy in the backup folder, its permissions are made up by the shared storage.
+            // Restores set the owner again, the modes are the defaults of tar
+            TarUtils.addFilepath(archive, filepath, "", exclusions, recorder, false);
         } finally {
             Log.d(BackupAppAction.TAG, "Done compressing. Closing " + outputFilename);
-            out.close();
+            stats.addArchive(archiveStats, PhaseStats.Phase.TAR, startNanos);
+        }
+    }
+
+    /**
+     * Archives the given contents of the source directory without copying them to the backup
+     * folder first. A root process creates a tar stream of the contents, which is then written
+     * to the archive. The archive's layout is the same as the one of a compressed copy.
+     *
+     * @param type            the name of the top level directory in the archive
+     * @param sourceDirectory the directory to back up
+     * @param contents        the names of the files and directories in sourceDirectory to back up
+     * @param outputFilename  the archive to create
+     * @param exclusions      the rules, which entries are left out, may be null
+     * @param recorder        records the entries and decides which unchanged ones are left out, may be null
+     * @param stats           the stats of the component
+     */
+    protected void streamCompress(String type, File sourceDirectory, List<String> contents, File outputFilename,
+                                  ExclusionRules exclusions, ManifestRecorder recorder, PhaseStats stats)
+            throws IOException, Crypto.CryptoSetupException {
+        // -h follows links and archives their contents like cp -RL does
+        // --selinux records the contexts, so the restore doesn't need to relabel the files
+        String command = this.prependUtilbox(String.format(
+                "tar -c -h %s-f - -C %s %s",
+                this.getShell().isTarSelinuxSupported() ? "--selinux " : "",
+                ShellHandler.quote(sourceDirectory.getAbsolutePath()),
+                contents.stream().map(ShellHandler::quote).collect(Collectors.joining(" "))
+        ));
+        PhaseStats archiveStats = new PhaseStats();
+        long startNanos = System.nanoTime();
+        try (ShellHandler.RootPipe pipe = ShellHandler.openRootPipe(command);
+             TarArchiveOutputStream archive = this.openArchive(outputFilename, archiveStats)) {
+            TarArchiveEntry rootEntry = new TarArchiveEntry(type + '/');
+            archive.putArchiveEntry(rootEntry);
+            archive.closeArchiveEntry();
+            if (recorder != null) {
+                recorder.record(rootEntry, null);
+            }
+            TarUtils.addArchive(archive, new TarArchiveInputStream(pipe.getInputStream()), type + '/', exclusions, recorder);
+            pipe.waitFor();
+        } finally {
+            Log.d(BackupAppAction.TAG, "Done streaming. Closing " + outputFilename);
+            // the root process reading the files is part of the tar phase
+            stats.addArchive(archiveStats, PhaseStats.Phase.TAR, startNanos);
+        }
+    }
+
+    private static String[] getApkPaths(AppInfo app) {
+        if (app.getSplitSourceDirs() == null) {
+            return new String[]{app.getSourceDir()};
+        }
+        String[] apkPaths = new String[1 + app.getSplitSourceDirs().length];
+        apkPaths[0] = app.getSourceDir();
+        System.arraycopy(app.getSplitSourceDirs(), 0, apkPaths, 1, app.getSplitSourceDirs().length);
+        return apkPaths;
+    }
+
+    /**
+     * Checks if the backed up apks are the same as the installed ones, so they don't need to be
+     * copied again. The version, the size and the hash recorded in the log file must match. The
+     * installed apks are only hashed, if their modification time differs from the recorded one.
+     * The result is kept, because it's needed by cleanBackup and run.
+     *
+     * @param app the app to back up
+     * @return the digests of the unchanged apks or null, if the apks have to be backed up
+     */
+    protected ApkDigest[] findUnchangedApks(AppInfo app) {
+        if (!this.apksChecked) {
+            this.unchangedApkDigests = this.checkApks(app);
+            this.apksChecked = true;
+        }
+        return this.unchangedApkDigests;
+    }
+
+    private ApkDigest[] checkApks(AppInfo app) {
+        LogFile logInfo = app.getLogInfo();
+        if (logInfo == null || logInfo.getApkDigests() == null
+                || (logInfo.getBackupMode() & AppInfo.MODE_APK) != AppInfo.MODE_APK
+                || logInfo.getVersionCode() != app.getVersionCode()) {
+            return null;
+        }
+        String[] apkPaths = BackupAppAction.getApkPaths(app);
+        if (apkPaths.length != logInfo.getApkDigests().length) {
+            return null;
+        }
+        Map<String, ApkDigest> recorded = new HashMap<>();
+        for (ApkDigest apkDigest : logInfo.getApkDigests()) {
+            recorded.put(apkDigest.getName(), apkDigest);
+        }
+        ApkDigest[] result = new ApkDigest[apkPaths.length];
+        for (int i = 0; i < apkPaths.length; i++) {
+            File installedApk = new File(apkPaths[i]);
+            File backupApk = new File(this.getAppBackupFolder(app), installedApk.getName());
+            ApkDigest apkDigest = recorded.get(installedApk.getName());
+            if (apkDigest == null || installedApk.length() != apkDigest.getSize() || backupApk.length() != apkDigest.getSize()) {
+                return null;
+            }
+            if (installedApk.lastModified() != apkDigest.getLastModified()) {
+                try {
+                    String digest = ApkDigest.hash(installedApk);
+                    if (!digest.equals(apkDigest.getDigest())) {
+                        return null;
+                    }
+                    apkDigest = new ApkDigest(apkDigest.getName(), apkDigest.getSize(), installedApk.lastModified(), digest);
+                } catch (IOException e) {
+                    Log.w(BackupAppAction.TAG, String.format("%s: Could not hash installed apk %s: %s", app, installedApk, e));
+                    return null;
+                }
+            }
+            result[i] = apkDigest;
+        }
+        return result;
+    }
+
+    /**
+     * Copies the apks to the backup folder, if it hasn't been done by collect yet.
+     *
+     * @param app the app to back up
+     * @return the digests of the copied apks or null, if they could not be hashed
+     * @throws BackupFailedException if the apks could not be copied
+     */
+    private ApkDigest[] collectApks(AppInfo app) throws BackupFailedException {
+        if (!this.apksCollected) {
+            this.backupPackage(app);
+            this.collectedApkDigests = this.digestBackupApks(app);
+            this.apksCollected = true;
         }
+        return this.collectedApkDigests;
+    }
+
+    /**
+     * Hashes the freshly backed up apks for the log file.
+     *
+     * @param app the backed up app
+     * @return the digests or null, if an apk could not be read. The next backup copies the apks
+     * again in this case.
+     */
+    private ApkDigest[] digestBackupApks(AppInfo app) {
+        String[] apkPaths = BackupAppAction.getApkPaths(app);
+        ApkDigest[] result = new ApkDigest[apkPaths.length];
+        for (int i = 0; i < apkPaths.length; i++) {
+            File installedApk = new File(apkPaths[i]);
+            File backupApk = new File(this.getAppBackupFolder(app), installedApk.getName());
+            try {
+                result[i] = new ApkDigest(backupApk.getName(), backupApk.length(), installedApk.lastModified(), ApkDigest.hash(backupApk));
+            } catch (IOException e) {
+                Log.w(BackupAppAction.TAG, String.format("%s: Could not hash backup apk %s: %s", app, backupApk, e));
+                return null;
+            }
+        }
+        return result;
     }
 
     protected void backupPackage(AppInfo app) throws BackupFailedException {
         Log.i(BackupAppAction.TAG, String.format("%s: Backup package apks", app));
-        String[] apksToBackup;
-        if (app.getSplitSourceDirs() == null) {
-            apksToBackup = new String[]{app.getSourceDir()};
-        } else {
-            apksToBackup = new String[1 + app.getSplitSourceDirs().length];
-            apksToBackup[0] = app.getSourceDir();
-            System.arraycopy(app.getSplitSourceDirs(), 0, apksToBackup, 1, app.getSplitSourceDirs().length);
+        String[] apksToBackup = BackupAppAction.getApkPaths(app);
+        if (apksToBackup.length > 1) {
             Log.i(BackupAppAction.TAG, String.format("Package is splitted into %d apks", apksToBackup.length));
         }
 
@@ -154,8 +671,11 @@ public class BackupAppAction extends BaseAppAction {
                         Arrays.stream(apksToBackup).map(s -> '"' + s + '"').collect(Collectors.joining(" ")),
                         this.getAppBackupFolder(app)
                 ));
+        long startNanos = System.nanoTime();
         try {
             ShellHandler.runAsRoot(command);
+            this.getStats(BaseAppAction.STATS_APK).add(PhaseStats.Phase.COPY, System.nanoTime() - startNanos,
+                    Arrays.stream(apksToBackup).mapToLong(s -> new File(s).length()).sum());
         } catch (ShellHandler.ShellCommandFailedException e) {
             String error = BaseAppAction.extractErrorMessage(e.getShellResult());
             Log.e(BackupAppAction.TAG, String.format("%s: Backup APKs failed: %s", app, error));
@@ -166,33 +686,97 @@ public class BackupAppAction extends BaseAppAction {
     private void genericBackupData(
             String type, AppInfo app, File backupDirectory, File sourceDirectory, boolean compress)
             throws BackupFailedException, Crypto.CryptoSetupException {
+        List<String> dirsInSource = this.collectData(type, app, backupDirectory, sourceDirectory, compress);
+        if (this.collecting) {
+            return;
+        }
         Log.i(BackupAppAction.TAG, String.format("%s: Backup up %s", app, type));
+        // if the list is empty, there is nothing to do
+        if (dirsInSource.isEmpty()) {
+            Log.i(BackupAppAction.TAG, String.format("%s: Nothing to backup for %s. Skipping", app, type));
+            return;
+        }
+        if (this.isStreamed(compress)) {
+            try {
+                this.streamCompress(
+                        type,
+                        sourceDirectory,
+                        dirsInSource,
+                        this.getDataArchiveTarget(app, type),
+                        this.getExclusionRules(app),
+                        this.createManifestRecorder(),
+                        this.getStats(type)
+                );
+            } catch (IOException e) {
+                Log.e(BackupAppAction.TAG, String.format("%s: Streaming backup of %s failed: %s", app, type, e));
+                throw new BackupFailedException(e.getMessage(), e);
+            }
+            return;
+        }
+        if (!compress) {
+            return;
+        }
+        try {
+            this.compress(
+                    backupDirectory,
+                    this.getDataArchiveTarget(app, type),
+                    this.getExclusionRules(app),
+                    this.createManifestRecorder(),
+                    this.getStats(type)
+            );
+        } catch (IOException e) {
+            Log.e(BackupAppAction.TAG, String.format("%s: Backup App Data failed with IOException: %s", app, e));
+            throw new BackupFailedException("IOException", e);
+        } finally {
+            // if the backup is compressed, clean up in any case
+            boolean backupDeleted = FileUtils.deleteQuietly(backupDirectory);
+            Log.d(BackupAppAction.TAG, "Uncompressed Data Backup was deleted: " + backupDeleted);
+        }
+    }
+
+    private boolean isStreamed(boolean compress) {
+        return compress && PrefUtils.getDefaultSharedPreferences(this.getContext()).getBoolean(Constants.PREFS_STREAMBACKUP, false);
+    }
 
-        String[] dirsToBackup;
+    /**
+     * Copies the contents of a data component to its backup directory, if it hasn't been done by
+     * collect yet. Streamed components are only listed, they are read while archiving.
+     *
+     * @param type            the data component
+     * @param app             the app to back up
+     * @param backupDirectory the (temporary) directory in the backup folder
+     * @param sourceDirectory the directory to back up
+     * @param compress        if the copy is compressed and deleted afterwards
+     * @return the names of the backed up files and directories in sourceDirectory
+     * @throws BackupFailedException if the contents could not be listed or copied
+     */
+    private List<String> collectData(String type, AppInfo app, File backupDirectory, File sourceDirectory, boolean compress)
+            throws BackupFailedException {
+        List<String> dirsInSource = this.collectedContents.get(type);
+        if (dirsInSource != null) {
+            return dirsInSource;
+        }
         // Check what are the contents to backup. No need to start working, if the directory does not exist
+        long startNanos = System.nanoTime();
         try {
-            // Get a list of directories in the directory to backup
-            List<String> dirsInSource = new ArrayList<>(Arrays.asList(this.getShell().suGetDirectoryContents(sourceDirectory)));
-            // Excludes cache and libs, when we don't want to backup'em
-            if (PrefUtils.getDefaultSharedPreferences(this.getContext()).getBoolean(Constants.PREFS_EXCLUDECACHE, true))
-                dirsInSource.removeAll(BaseAppAction.DATA_EXCLUDED_DIRS);
-
-            // calculate a list what should be part of the backup
-            dirsToBackup = dirsInSource.stream().map(s -> '"' + new File(sourceDirectory, s).getAbsolutePath() + '"').toArray(String[]::new);
-            // if the list is empty, there is nothing to do
-            if (dirsToBackup.length == 0) {
-                Log.i(BackupAppAction.TAG, String.format("%s: Nothing to backup for %s. Skipping", app, type));
-                return;
-            }
+            dirsInSource = this.listBackupContents(app, sourceDirectory, true);
         } catch (ShellHandler.ShellCommandFailedException e) {
-            String errorMessage = e.getShellResult().getErr().toString();
-            // It's okay, if the directory does not exist.
-            if (errorMessage.contains("No such file or directory")) {
-                Log.i(BackupAppAction.TAG, String.format("%s: '%s'. Fine. Skipping", app, errorMessage));
-                return;
-            }
             throw new BackupFailedException("Could not list contents of " + sourceDirectory, e);
+        } finally {
+            this.getStats(type).add(PhaseStats.Phase.LIST, System.nanoTime() - startNanos, 0);
+        }
+        if (!dirsInSource.isEmpty() && !this.isStreamed(compress)) {
+            this.copyData(type, app, backupDirectory, sourceDirectory, dirsInSource, compress);
         }
+        this.collectedContents.put(type, dirsInSource);
+        return dirsInSource;
+    }
+
+    private void copyData(String type, AppInfo app, File backupDirectory, File sourceDirectory, List<String> dirsInSource, boolean compress)
+            throws BackupFailedException {
+        Log.i(BackupAppAction.TAG, String.format("%s: Copying %s", app, type));
+        // calculate a list what should be part of the backup
+        String[] dirsToBackup = dirsInSource.stream().map(s -> '"' + new File(sourceDirectory, s).getAbsolutePath() + '"').toArray(String[]::new);
         // Create the (temporary) directory for the backup data
         if (!(backupDirectory.exists() || backupDirectory.mkdir())) {
             String errorMessage = String.format("Could not create %s backup directory: %s", type, backupDirectory);
@@ -208,26 +792,54 @@ public class BackupAppAction extends BaseAppAction {
                     String.join(" ", dirsToBackup),
                     backupDirectory
             ));
+            long startNanos = System.nanoTime();
             ShellHandler.runAsRoot(command);
-            if (compress) {
-                this.compress(
-                        backupDirectory,
-                        this.getBackupArchive(app, type, PrefUtils.isEncryptionEnabled(this.getContext()))
-                );
-            }
+            this.getStats(type).add(PhaseStats.Phase.COPY, System.nanoTime() - startNanos, FileUtils.sizeOfDirectory(backupDirectory));
         } catch (ShellHandler.ShellCommandFailedException e) {
             String error = BaseAppAction.extractErrorMessage(e.getShellResult());
             Log.e(BackupAppAction.TAG, String.format("%s: Backup App Data failed: %s", app, error));
-            throw new BackupFailedException(error, e);
-        } catch (IOException e) {
-            Log.e(BackupAppAction.TAG, String.format("%s: Backup App Data failed with IOException: %s", app, e));
-            throw new BackupFailedException("IOException", e);
-        } finally {
-            // if the backup is compressed, clean up in any case
             if (compress) {
+                // the partial copy is never compressed
                 boolean backupDeleted = FileUtils.deleteQuietly(backupDirectory);
                 Log.d(BackupAppAction.TAG, "Uncompressed Data Backup was deleted: " + backupDeleted);
             }
+            throw new BackupFailedException(error, e);
+        }
+    }
+
+    /**
+     * Lists the contents of a directory, that are backed up.
+     *
+     * @param app             the app to back up
+     * @param sourceDirectory the directory to back up
+     * @param countExcluded   if the excluded contents are counted for the exclusion report
+     * @return the names of the files and directories in sourceDirectory. Empty, if the directory
+     * does not exist.
+     * @throws ShellHandler.ShellCommandFailedException if the directory could not be listed
+     */
+    private List<String> listBackupContents(AppInfo app, File sourceDirectory, boolean countExcluded) throws ShellHandler.ShellCommandFailedException {
+        try {
+            // Get a list of directories in the directory to backup
+            List<String> contents = new ArrayList<>(Arrays.asList(this.getShell().suGetDirectoryContents(sourceDirectory)));
+            // Excluded top level directories like cache and lib are not even read
+            ExclusionRules exclusions = this.getExclusionRules(app);
+            List<String> excluded = contents.stream().filter(exclusions::isExcluded).collect(Collectors.toList());
+            if (!excluded.isEmpty()) {
+                contents.removeAll(excluded);
+                if (countExcluded) {
+                    // not measured, the report only counts them
+                    exclusions.countExcluded(excluded.size(), 0);
+                }
+            }
+            return contents;
+        } catch (ShellHandler.ShellCommandFailedException e) {
+            String errorMessage = e.getShellResult().getErr().toString();
+            // It's okay, if the directory does not exist.
+            if (errorMessage.contains("No such file or directory")) {
+                Log.i(BackupAppAction.TAG, String.format("%s: '%s'. Fine. Skipping", app, errorMessage));
+                return new ArrayList<>();
+            }
+            throw e;
         }
     }
 
@@ -291,6 +903,10 @@ public class BackupAppAction extends BaseAppAction {
         return successFlag;
     }
 
+    protected interface DataBackup {
+        void backup(AppInfo app) throws BackupFailedException, Crypto.CryptoSetupException;
+    }
+
     public static class BackupFailedException extends AppActionFailedException {
         public BackupFailedException(String message, Throwable cause) {
             super(message, cause);
@@ -52,6 +52,11 @@ public class BackupSpecialAction extends BackupAppAction {
         return new ActionResult(app, "Special backup only backups data, but data was not selected for backup", false);
     }
 
+    @Override
+    public void collect(AppInfo app, int backupMode) {
+        // the few special files are copied while archiving
+    }
+
     @Override
     protected void backupData(AppInfo app) throws BackupFailedException, Crypto.CryptoSetupException {
         Log.i(BackupSpecialAction.TAG, String.format("%s: Backup special data", app));
@@ -72,7 +77,10 @@ public class BackupSpecialAction extends BackupAppAction {
             ShellHandler.runAsRoot(command);
             this.compress(
                     backupDirectory,
-                    this.getBackupArchive(app, BaseAppAction.BACKUP_DIR_DATA, PrefUtils.isEncryptionEnabled(this.getContext()))
+                    this.getBackupArchive(app, BaseAppAction.BACKUP_DIR_DATA, PrefUtils.isEncryptionEnabled(this.getContext()), this.getCompressionCodec()),
+                    null,
+                    null,
+                    this.getStats(BaseAppAction.BACKUP_DIR_DATA)
             );
         } catch (ShellHandler.ShellCommandFailedException e) {
             String error = BaseAppAction.extractErrorMessage(e.getShellResult());
@@ -18,33 +18,69 @@
 package com.machiav3lli.backup.handler.action;
 
 import android.content.Context;
+import android.util.Log;
 
 import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.handler.BackupLayout;
+import com.machiav3lli.backup.handler.ChunkStore;
+import com.machiav3lli.backup.handler.CipherBenchmark;
+import com.machiav3lli.backup.handler.CompressionCodec;
+import com.machiav3lli.backup.handler.EncryptionAlgorithm;
+import com.machiav3lli.backup.handler.ExclusionReport;
+import com.machiav3lli.backup.handler.ExclusionRules;
+import com.machiav3lli.backup.handler.PhaseStats;
+import com.machiav3lli.backup.handler.RunReport;
 import com.machiav3lli.backup.handler.ShellHandler;
 import com.machiav3lli.backup.items.ActionResult;
 import com.machiav3lli.backup.items.AppInfo;
 import com.machiav3lli.backup.utils.FileUtils;
+import com.machiav3lli.backup.utils.PrefUtils;
 import com.topjohnwu.superuser.Shell;
 
+import org.json.JSONException;
+
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class BaseAppAction {
-    protected static final String BACKUP_DIR_DATA = "data";
-    protected static final String BACKUP_DIR_DEVICE_PROTECTED_FILES = "device_protected_files";
-    protected static final String BACKUP_DIR_EXTERNAL_FILES = "external_files";
-    protected static final String BACKUP_DIR_OBB_FILES = "obb_files";
+    protected static final String BACKUP_DIR_DATA = BackupLayout.DATA;
+    protected static final String BACKUP_DIR_DEVICE_PROTECTED_FILES = BackupLayout.DEVICE_PROTECTED_FILES;
+    protected static final String BACKUP_DIR_EXTERNAL_FILES = BackupLayout.EXTERNAL_FILES;
+    protected static final String BACKUP_DIR_OBB_FILES = BackupLayout.OBB_FILES;
     protected static final List<String> DATA_EXCLUDED_DIRS = Arrays.asList("cache", "code_cache", "lib");
+    protected static final String STATS_APK = "apk";
     private static final String TAG = Constants.classTag(".BaseAppAction");
+    private static final String ENCRYPTION_ALGORITHM_AUTO = "auto";
     private final ShellHandler shell;
     private final Context context;
+    private ExclusionRules exclusionRules;
+    private ExclusionReport exclusionReport;
+    private RunReport runReport;
+    private final Map<String, PhaseStats> stats = new ConcurrentHashMap<>();
 
     protected BaseAppAction(Context context, ShellHandler shell) {
         this.context = context;
         this.shell = shell;
     }
 
+    /**
+     * @param exclusionReport the report of the batch, the excluded entries are added to
+     */
+    public void setExclusionReport(ExclusionReport exclusionReport) {
+        this.exclusionReport = exclusionReport;
+    }
+
+    /**
+     * @param runReport the report of the batch, the app's result and stats are added to
+     */
+    public void setRunReport(RunReport runReport) {
+        this.runReport = runReport;
+    }
+
     protected static String extractErrorMessage(Shell.Result shellResult) {
         // if stderr does not say anything, try stdout
         List<String> err = shellResult.getErr().isEmpty() ? shellResult.getOut() : shellResult.getErr();
@@ -84,8 +120,181 @@ public abstract class BaseAppAction {
         return new File(this.getAppBackupFolder(app), BaseAppAction.BACKUP_DIR_DEVICE_PROTECTED_FILES);
     }
 
-    public File getBackupArchive(AppInfo app, String what, boolean isEncrypted) {
-        return new File(String.format("%s/%s.tar.gz%s", this.getAppBackupFolder(app), what, (isEncrypted ? ".enc" : "")));
+    public File getBackupArchive(AppInfo app, String what, boolean isEncrypted, CompressionCodec codec) {
+        return new File(this.getAppBackupFolder(app), BackupLayout.getArchiveName(what, codec, isEncrypted));
+    }
+
+    /**
+     * Returns the chunk list, that replaces the archive of the given component, if the backup is
+     * stored in the chunk store.
+     */
+    public File getChunkList(AppInfo app, String what) {
+        return new File(this.getAppBackupFolder(app), BackupLayout.getChunkListName(what));
+    }
+
+    public static boolean isChunkList(File archive) {
+        return BackupLayout.isChunkList(archive);
+    }
+
+    public ChunkStore getChunkStore() {
+        return new ChunkStore(this.getBackupFolder());
+    }
+
+    /**
+     * Looks for an existing archive of the given component. A chunk list is preferred, then the
+     * codec recorded in the log file is tried and finally all other codecs.
+     *
+     * @param app         the app, the archive belongs to
+     * @param what        the archive's component
+     * @param isEncrypted if an encrypted archive is expected
+     * @return the archive, its chunk list or null, if none exists
+     */
+    public File findBackupArchive(AppInfo app, String what, boolean isEncrypted) {
+        return BackupLayout.findBackupArchive(this.getAppBackupFolder(app), what, isEncrypted, this.getLoggedCodec(app));
+    }
+
+    /**
+     * Returns the name of an incremental archive's component. The archive of increment level n
+     * is stored as e.g. data.n.tar.gz next to the full backup's data.tar.gz.
+     */
+    public static String getIncrementName(String what, int incrementLevel) {
+        return BackupLayout.getIncrementName(what, incrementLevel);
+    }
+
+    /**
+     * Collects the archives of a component, that have to be expanded in order to restore the
+     * latest backup: the full backup followed by all increments.
+     *
+     * @param app         the app, the archives belong to
+     * @param what        the archives' component
+     * @param isEncrypted if encrypted archives are expected
+     * @return the existing archives in the order they need to be expanded, might be empty
+     */
+    public List<File> findArchiveChain(AppInfo app, String what, boolean isEncrypted) {
+        int incrementLevel = app.getLogInfo() != null ? app.getLogInfo().getIncrementLevel() : 0;
+        return BackupLayout.findArchiveChain(this.getAppBackupFolder(app), what, isEncrypted, this.getLoggedCodec(app), incrementLevel);
+    }
+
+    private CompressionCodec getLoggedCodec(AppInfo app) {
+        return app.getLogInfo() != null
+                ? CompressionCodec.fromName(app.getLogInfo().getCompressionType())
+                : CompressionCodec.DEFAULT;
+    }
+
+    public File getManifestFile(AppInfo app) {
+        return new File(this.getAppBackupFolder(app), BackupLayout.getManifestFileName(app.getPackageName()));
+    }
+
+    /**
+     * Loads the exclusion rules for the app once. They are shared by the data components.
+     *
+     * @param app the app to back up or restore
+     * @return the rules, that apply to the app
+     */
+    protected synchronized ExclusionRules getExclusionRules(AppInfo app) {
+        if (this.exclusionRules == null) {
+            boolean excludeCache = PrefUtils.getDefaultSharedPreferences(this.context).getBoolean(Constants.PREFS_EXCLUDECACHE, true);
+            try {
+                this.exclusionRules = ExclusionRules.load(
+                        new File(this.getBackupFolder(), ExclusionRules.FILE_NAME), app.getPackageName(), excludeCache);
+            } catch (IOException e) {
+                // backing up too much is better than failing
+                Log.e(BaseAppAction.TAG, String.format("%s: Could not read exclusion rules. Using the defaults: %s", app, e));
+                this.exclusionRules = ExclusionRules.defaults(excludeCache);
+            }
+        }
+        return this.exclusionRules;
+    }
+
+    /**
+     * Adds the entries, which were left out by the exclusion rules, to the report of the batch.
+     *
+     * @param app the app, that has been backed up or restored
+     */
+    protected void reportExclusions(AppInfo app) {
+        if (this.exclusionRules != null && this.exclusionRules.getExcludedEntries() > 0) {
+            Log.i(BaseAppAction.TAG, String.format("%s: Excluded %d entries, %d bytes of files",
+                    app, this.exclusionRules.getExcludedEntries(), this.exclusionRules.getExcludedBytes()));
+            if (this.exclusionReport != null) {
+                this.exclusionReport.add(app.getPackageName(), this.exclusionRules);
+            }
+        }
+    }
+
+    /**
+     * @param component a data component or STATS_APK
+     * @return the stats of the component's phases, which are used by its threads at the same time
+     */
+    protected PhaseStats getStats(String component) {
+        return this.stats.computeIfAbsent(component, k -> new PhaseStats());
+    }
+
+    /**
+     * @return the stats of the components, that have been backed up or restored, or null
+     */
+    protected Map<String, PhaseStats> getComponentStats() {
+        return this.stats.isEmpty() ? null : this.stats;
+    }
+
+    /**
+     * Adds the app's result and stats to the report of the batch.
+     *
+     * @param app    the app, that has been backed up or restored
+     * @param action backup or restore
+     * @param nanos  the time the app took
+     * @param result the result of the action
+     */
+    protected void reportStats(AppInfo app, String action, long nanos, ActionResult result) {
+        for (Map.Entry<String, PhaseStats> entry : this.stats.entrySet()) {
+            Log.d(BaseAppAction.TAG, String.format("%s: %s %s: %s", app, action, entry.getKey(), entry.getValue()));
+        }
+        String errorClass = null;
+        if (!result.succeeded) {
+            errorClass = result.getErrorClass() != null ? result.getErrorClass() : "";
+        }
+        if (this.runReport == null) {
+            return;
+        }
+        try {
+            this.runReport.add(action, app.getPackageName(), app.getVersionCode(), nanos / 1000000, errorClass, this.stats);
+        } catch (JSONException e) {
+            Log.e(BaseAppAction.TAG, String.format("%s: Could not add stats: %s", app, e));
+        }
+    }
+
+    /**
+     * @return the codec configured for new backups
+     */
+    public CompressionCodec getCompressionCodec() {
+        return CompressionCodec.fromName(PrefUtils.getDefaultSharedPreferences(this.context)
+                .getString(Constants.PREFS_COMPRESSIONCODEC, CompressionCodec.DEFAULT.getName()));
+    }
+
+    /**
+     * Returns the algorithm configured for new encrypted backups. If the fastest one should be
+     * used, the algorithms are measured once and the result is kept in the private preferences,
+     * because it only depends on the device.
+     *
+     * @return the configured algorithm or the fastest one on this device
+     */
+    public EncryptionAlgorithm getEncryptionAlgorithm() {
+        String name = PrefUtils.getDefaultSharedPreferences(this.context)
+                .getString(Constants.PREFS_ENCRYPTIONALGORITHM, BaseAppAction.ENCRYPTION_ALGORITHM_AUTO);
+        EncryptionAlgorithm algorithm = EncryptionAlgorithm.fromName(name);
+        if (algorithm != null && algorithm.isAvailable()) {
+            return algorithm;
+        }
+        // several actions of a batch may ask at the same time, but one measurement is enough
+        synchronized (BaseAppAction.class) {
+            algorithm = EncryptionAlgorithm.fromName(PrefUtils.getPrivateSharedPrefs(this.context)
+                    .getString(Constants.PREFS_FASTESTENCRYPTIONALGORITHM, null));
+            if (algorithm == null || !algorithm.isAvailable()) {
+                algorithm = CipherBenchmark.selectFastest();
+                PrefUtils.getPrivateSharedPrefs(this.context).edit()
+                        .putString(Constants.PREFS_FASTESTENCRYPTIONALGORITHM, algorithm.getName()).apply();
+            }
+        }
+        return algorithm;
     }
 
     public String prependUtilbox(String command) {
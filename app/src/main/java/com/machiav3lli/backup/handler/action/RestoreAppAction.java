@@ -26,31 +26,47 @@ import android.os.Build;
 import android.util.Log;
 
 import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.handler.ArchiveStreams;
+import com.machiav3lli.backup.handler.ChunkStore;
+import com.machiav3lli.backup.handler.CompressionCodec;
 import com.machiav3lli.backup.handler.Crypto;
+import com.machiav3lli.backup.handler.PhaseStats;
+import com.machiav3lli.backup.handler.PipelineInputStream;
 import com.machiav3lli.backup.handler.ShellHandler;
 import com.machiav3lli.backup.handler.TarUtils;
 import com.machiav3lli.backup.items.ActionResult;
 import com.machiav3lli.backup.items.AppInfo;
+import com.machiav3lli.backup.items.BackupManifest;
 import com.machiav3lli.backup.utils.PrefUtils;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.io.FileUtils;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 public class RestoreAppAction extends BaseAppAction {
     private static final String TAG = Constants.classTag(".RestoreAppAction");
     private static final File PACKAGE_STAGING_DIRECTORY = new File("/data/local/tmp");
+    // inside the target directory, so the restored files are moved and not copied
+    private static final String EXTRACTION_DIRECTORY_NAME = ".oabx-restore";
 
     public RestoreAppAction(Context context, ShellHandler shell) {
         super(context, shell);
@@ -58,6 +74,13 @@ public class RestoreAppAction extends BaseAppAction {
 
     @Override
     public ActionResult run(AppInfo app, int backupMode) {
+        long startNanos = System.nanoTime();
+        ActionResult result = this.restore(app, backupMode);
+        this.reportStats(app, "restore", System.nanoTime() - startNanos, result);
+        return result;
+    }
+
+    private ActionResult restore(AppInfo app, int backupMode) {
         Log.i(RestoreAppAction.TAG, String.format("Restoring up: %s [%s]", app.getPackageName(), app.getLabel()));
         try {
             this.killPackage(app.getPackageName());
@@ -67,13 +90,10 @@ public class RestoreAppAction extends BaseAppAction {
 
             if ((backupMode & AppInfo.MODE_DATA) == AppInfo.MODE_DATA) {
                 this.restoreAllData(app);
+                this.reportExclusions(app);
             }
         } catch (RestoreFailedException | Crypto.CryptoSetupException | PackageManager.NameNotFoundException e) {
-            return new ActionResult(
-                    app,
-                    String.format("%s: %s", e.getClass().getSimpleName(), e.getMessage()),
-                    false
-            );
+            return new ActionResult(app, e);
         }
         return new ActionResult(app, "", true);
     }
@@ -92,18 +112,131 @@ public class RestoreAppAction extends BaseAppAction {
         }
     }
 
-    protected void uncompress(File filepath, File targetDir) throws IOException, Crypto.CryptoSetupException {
+    protected void uncompress(AppInfo app, File filepath, File targetDir, PhaseStats stats) throws IOException, Crypto.CryptoSetupException {
+        InputStream in = null;
+        PhaseStats archiveStats = new PhaseStats();
+        long startNanos = System.nanoTime();
+        try {
+            in = this.openArchive(app, filepath, archiveStats);
+            // special backups are not made of the usual data components
+            TarUtils.uncompressTo(new TarArchiveInputStream(in), targetDir, app.isSpecial() ? null : this.getExclusionRules(app));
+        } catch (ChunkStore.ChunkUnavailableException e) {
+            throw new IOException(e.getMessage(), e.getCause());
+        } finally {
+            Log.d(RestoreAppAction.TAG, "Done expansion. Closing " + filepath);
+            if (in != null) {
+                in.close();
+            }
+            stats.addArchive(archiveStats, PhaseStats.Phase.EXTRACT, startNanos);
+        }
+    }
+
+    /**
+     * Extracts an archive of a data component on the app's partition without expanding it in the
+     * backup folder first. A root process extracts the tar stream, which is decoded on the fly.
+     *
+     * @param app            the app to restore
+     * @param filepath       the archive or chunk list
+     * @param targetDir      the directory, the component is extracted to
+     * @param owner          uid and gid the files are extracted with or null to leave the owner
+     *                       to the filesystem, like on the external storage
+     * @param selinuxContext the context of targetDir to extract the files with or null, if the
+     *                       filesystem decides
+     * @param labels         collects the contexts of the files, if tar doesn't support setting
+     *                       them, or null
+     * @param symlinks       the symbolic links extracted by the previous archives of the chain,
+     *                       nothing is extracted through them
+     * @param stats          the stats of the component
+     */
+    protected void streamUncompress(AppInfo app, File filepath, File targetDir, long[] owner, String selinuxContext, Map<String, String> labels,
+                                    Set<String> symlinks, PhaseStats stats)
+            throws IOException, Crypto.CryptoSetupException {
+        // tar sets the owner, mode and context of each file as it's written, so no chown or
+        // restorecon pass is needed
+        String command = this.prependUtilbox(String.format("tar -x %s%s -f - -C %s",
+                owner != null ? "--numeric-owner" : "-o", selinuxContext != null && labels == null ? " --selinux" : "",
+                ShellHandler.quote(targetDir.getAbsolutePath())));
+        InputStream in = null;
+        PhaseStats archiveStats = new PhaseStats();
+        long startNanos = System.nanoTime();
+        try (ShellHandler.RootPipe pipe = ShellHandler.openRootPipe(command)) {
+            try {
+                in = this.openArchive(app, filepath, archiveStats);
+                try (TarArchiveOutputStream target = ArchiveStreams.openTar(new BufferedOutputStream(pipe.getOutputStream()), false)) {
+                    // the uids of secondary users don't fit into the octal fields
+                    target.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_STAR);
+                    TarUtils.copyComponent(new TarArchiveInputStream(in), target, this.getExclusionRules(app),
+                            owner != null ? owner[0] : -1, owner != null ? owner[1] : -1, selinuxContext, labels, symlinks);
+                }
+            } catch (IOException e) {
+                // a failing root process breaks the pipe. Its own error tells more about the cause
+                try {
+                    pipe.waitFor();
+                } catch (IOException processError) {
+                    throw new IOException(String.format("%s (%s)", e.getMessage(), processError.getMessage()), e);
+                }
+                throw e;
+            }
+            pipe.waitFor();
+        } catch (ChunkStore.ChunkUnavailableException e) {
+            throw new IOException(e.getMessage(), e.getCause());
+        } finally {
+            Log.d(RestoreAppAction.TAG, "Done streaming. Closing " + filepath);
+            if (in != null) {
+                in.close();
+            }
+            // the root process writing the files is part of the extract phase
+            stats.addArchive(archiveStats, PhaseStats.Phase.EXTRACT, startNanos);
+        }
+    }
+
+    /**
+     * Opens an archive or chunk list for reading its tar stream. It's decrypted, if a password is
+     * set, and decompressed with the codec named by the archive or the log file.
+     */
+    private InputStream openArchive(AppInfo app, File filepath, PhaseStats archiveStats) throws IOException, Crypto.CryptoSetupException {
         String inputFilename = filepath.getAbsolutePath();
         Log.d(RestoreAppAction.TAG, "Opening file for expansion: " + inputFilename);
-        String password = PrefUtils.getDefaultSharedPreferences(this.getContext()).getString(Constants.PREFS_PASSWORD, "");
-        InputStream in = new BufferedInputStream(new FileInputStream(inputFilename));
-        if (!password.isEmpty()) {
-            Log.d(RestoreAppAction.TAG, "Encryption enabled");
-            in = Crypto.decryptStream(in, password, PrefUtils.getCryptoSalt(this.getContext()));
-        }
-        TarUtils.uncompressTo(new TarArchiveInputStream(new GzipCompressorInputStream(in)), targetDir);
-        Log.d(RestoreAppAction.TAG, "Done expansion. Closing " + inputFilename);
-        in.close();
+        CompressionCodec codec = CompressionCodec.fromArchiveName(filepath.getName());
+        if (codec == null && BaseAppAction.isChunkList(filepath)) {
+            codec = ChunkStore.readCodec(filepath);
+        }
+        if (codec == null) {
+            codec = CompressionCodec.fromName(app.getLogInfo().getCompressionType());
+        }
+        Log.d(RestoreAppAction.TAG, "Using codec " + codec);
+        final CompressionCodec chunkCodec = codec;
+        // 0 disables the pipeline, everything is done on the calling thread then
+        int pipelineDepth = PrefUtils.getIntPreference(this.getContext(), Constants.PREFS_PIPELINEDEPTH, ArchiveStreams.DEFAULT_PIPELINE_DEPTH);
+        if (BaseAppAction.isChunkList(filepath)) {
+            InputStream in = this.getChunkStore().open(filepath, chunk -> {
+                try {
+                    return this.decodeStream(chunk, chunkCodec, 0, 1, archiveStats);
+                } catch (Crypto.CryptoSetupException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            });
+            return pipelineDepth > 0 ? new PipelineInputStream(in, "chunk", pipelineDepth, archiveStats) : in;
+        }
+        return this.decodeStream(new BufferedInputStream(new FileInputStream(inputFilename)), codec, pipelineDepth,
+                Math.max(1, PrefUtils.getIntPreference(this.getContext(), Constants.PREFS_COMPRESSIONTHREADS, 1)), archiveStats);
+    }
+
+    /**
+     * Wraps the given stream to decrypt, if a password is set, and to decompress with the given
+     * codec.
+     */
+    private InputStream decodeStream(InputStream in, CompressionCodec codec, int pipelineDepth, int threads, PhaseStats stats)
+            throws IOException, Crypto.CryptoSetupException {
+        return ArchiveStreams.decode(
+                in,
+                PrefUtils.getDefaultSharedPreferences(this.getContext()).getString(Constants.PREFS_PASSWORD, ""),
+                PrefUtils.getCryptoSalt(this.getContext()),
+                codec,
+                pipelineDepth,
+                threads,
+                stats
+        );
     }
 
     public void restorePackage(AppInfo app) throws RestoreFailedException {
@@ -125,11 +258,13 @@ public class RestoreAppAction extends BaseAppAction {
          * it with a -S $apk_size value. but judging from this answer
          * https://issuetracker.google.com/issues/80270303#comment14 this
          * could potentially be unwise to use.
+         * every package gets its own directory in there, because apps are restored in
+         * parallel and the apks of different packages have the same names like base.apk.
          */
         File stagingApkPath = null;
         if (RestoreAppAction.PACKAGE_STAGING_DIRECTORY.exists()) {
             // It's expected, that all SDK 24+ version of Android go this way.
-            stagingApkPath = RestoreAppAction.PACKAGE_STAGING_DIRECTORY;
+            stagingApkPath = new File(RestoreAppAction.PACKAGE_STAGING_DIRECTORY, app.getPackageName());
         } else if (this.getBackupFolder().getAbsolutePath().startsWith(this.getContext().getDataDir().getAbsolutePath())) {
             /*
              * pm cannot install from a file on the data partition
@@ -143,7 +278,7 @@ public class RestoreAppAction extends BaseAppAction {
              * @machiav3lli 2020-08-09: In some oem ROMs the access to data/local/tmp is not allowed, I don't know how
              *                              this has changed in the last couple of years.
              */
-            stagingApkPath = new File(getContext().getExternalFilesDir(null), "apkTmp");
+            stagingApkPath = new File(new File(getContext().getExternalFilesDir(null), "apkTmp"), app.getPackageName());
             Log.w(RestoreAppAction.TAG, "Weird configuration. Expecting that the system does not allow " +
                     "installing from oabxs own data directory. Copying the apk to " + stagingApkPath);
         }
@@ -153,6 +288,8 @@ public class RestoreAppAction extends BaseAppAction {
             // Try it with a staging path. This is usually the way to go.
             StringBuilder sb = new StringBuilder();
             // copy apks to staging dir
+            sb.append(this.prependUtilbox(String.format("mkdir -p \"%s\"", stagingApkPath)));
+            sb.append(" && ");
             sb.append(this.prependUtilbox(String.format(
                     "cp %s \"%s\"",
                     Arrays.stream(apksToRestore).map(s -> '"' + this.getAppBackupFolder(app).getAbsolutePath() + '/' + new File(s).getName() + '"').collect(Collectors.joining(" ")),
@@ -167,11 +304,6 @@ public class RestoreAppAction extends BaseAppAction {
                     ));
                 }
             }
-            // cleanup
-            final File finalStagingApkPath = stagingApkPath;
-            sb.append(String.format(" && %s rm %s", this.getShell().getUtilboxPath(),
-                    Arrays.stream(apksToRestore).map(s -> '"' + finalStagingApkPath.getAbsolutePath() + '/' + new File(s).getName() + '"').collect(Collectors.joining(" "))
-            ));
             command = sb.toString();
         } else {
             // no staging path method available. The Android configuration is special.
@@ -194,23 +326,44 @@ public class RestoreAppAction extends BaseAppAction {
             String error = BaseAppAction.extractErrorMessage(e.getShellResult());
             Log.e(RestoreAppAction.TAG, String.format("%s: Restore APKs failed: %s", app, error));
             throw new RestoreFailedException(error, e);
+        } finally {
+            // cleanup, also if the installation failed
+            if (stagingApkPath != null) {
+                try {
+                    ShellHandler.runAsRoot(this.prependUtilbox(String.format("rm -rf \"%s\"", stagingApkPath)));
+                } catch (ShellHandler.ShellCommandFailedException e) {
+                    Log.w(RestoreAppAction.TAG, String.format("%s: Could not remove staged apks: %s",
+                            app, BaseAppAction.extractErrorMessage(e.getShellResult())));
+                }
+            }
         }
     }
 
     private void genericRestoreData(
-            String type, AppInfo app, File backupDirectory, File targetDirectory, boolean isCompressed, RestoreCommand restoreCommand)
+            String type, AppInfo app, File backupDirectory, File targetDirectory, boolean isCompressed, RestoreCommand restoreCommand,
+            boolean ownedByApp)
             throws RestoreFailedException, Crypto.CryptoSetupException {
         Log.i(RestoreAppAction.TAG, String.format("%s: Restoring %s", app, type));
         try {
             if (isCompressed) {
-                File archiveFile = this.getBackupArchive(app, type, app.getLogInfo().isEncrypted());
-                if (!archiveFile.exists()) {
+                List<File> archiveFiles = this.findArchiveChain(app, type, app.getLogInfo().isEncrypted());
+                if (archiveFiles.isEmpty()) {
                     Log.i(RestoreAppAction.TAG,
-                            String.format("%s: %s archive does not exist: %s", app, type, archiveFile));
+                            String.format("%s: %s archive does not exist", app, type));
                     return;
                 }
-                // uncompress the archive to the app's base backup folder
-                this.uncompress(this.getBackupArchive(app, type, app.getLogInfo().isEncrypted()), this.getAppBackupFolder(app));
+                if (this.isStreamed()) {
+                    this.streamRestoreData(type, app, archiveFiles, targetDirectory, restoreCommand, ownedByApp);
+                    return;
+                }
+                // uncompress the archives to the app's base backup folder. Increments overwrite
+                // the older versions of the files they contain
+                for (File archiveFile : archiveFiles) {
+                    this.uncompress(app, archiveFile, this.getAppBackupFolder(app), this.getStats(type));
+                }
+                if (app.getLogInfo().getIncrementLevel() > 0) {
+                    this.removeDeletedFiles(app, type, backupDirectory);
+                }
             } else if (!backupDirectory.exists()) {
                 Log.i(RestoreAppAction.TAG, String.format("%s: %s uncompressed backup dir does not exist: %s", app, type, backupDirectory));
                 return;
@@ -223,26 +376,20 @@ public class RestoreAppAction extends BaseAppAction {
                 Log.e(RestoreAppAction.TAG, String.format("%s:  %s", app.getPackageName(), errorMessage));
                 throw new RestoreFailedException(errorMessage, null);
             }
-            String command = "";
-            if (!(targetDirectory.exists())) {
-                // this is the case on the sd card for external data or obb files
-                // package manager takes care of creating the data directories in in the internal storage
-                // we don't need to worry about permissions, since sdcardfs is mounted with a fixed uid and gid
-                Log.d(RestoreAppAction.TAG, String.format("%s: Creating %s directory because it's missing: %s", app, type, targetDirectory));
-                command = this.prependUtilbox(String.format("mkdir \"%s\" && ", targetDirectory));
-            } else if (restoreCommand.equals(RestoreCommand.MOVE)) {
-                // move does not like existing files
-                // wipe everything from the target dir besides the excluded dirs
-                List<String> targetContents = new ArrayList<>(Arrays.asList(this.getShell().suGetDirectoryContents(targetDirectory)));
-                targetContents.removeAll(BaseAppAction.DATA_EXCLUDED_DIRS);
-                String[] removeTargets = targetContents.stream().map(s -> '"' + new File(targetDirectory, s).getAbsolutePath() + '"').toArray(String[]::new);
-                Log.d(RestoreAppAction.TAG, String.format("%s: Removing existing %s files in %s", app, type, targetDirectory));
-                command = this.prependUtilbox(String.format("rm -rf %s && ", String.join(" ", removeTargets)));
-            }
+            String command = this.getPrepareTargetCommand(type, app, targetDirectory, restoreCommand);
             command += String.format(
                     "%s %s \"%s\"/* \"%s\"", this.getShell().getUtilboxPath(),
                     restoreCommand, backupDirectory, targetDirectory);
+            long copiedBytes = FileUtils.sizeOfDirectory(backupDirectory);
+            long startNanos = System.nanoTime();
             ShellHandler.runAsRoot(command);
+            this.getStats(type).add(PhaseStats.Phase.COPY, System.nanoTime() - startNanos, copiedBytes);
+            if (ownedByApp) {
+                // the copies in the backup folder are owned by root or the storage. Only the
+                // owner is set again, the modes stay the ones of the copies, which approximate
+                // the original ones. A streamed restore sets the archived modes
+                this.genericRestorePermissions(type, app, targetDirectory);
+            }
 
         } catch (ShellHandler.ShellCommandFailedException e) {
             String error = BaseAppAction.extractErrorMessage(e.getShellResult());
@@ -260,6 +407,239 @@ public class RestoreAppAction extends BaseAppAction {
         }
     }
 
+    /**
+     * Returns the commands, which prepare the target directory for the restored files: It's
+     * created, if it's missing, and emptied besides the excluded directories, if the files are
+     * moved.
+     *
+     * @return the commands followed by &&, or an empty string
+     * @throws ShellHandler.ShellCommandFailedException if the target directory could not be listed
+     */
+    private String getPrepareTargetCommand(String type, AppInfo app, File targetDirectory, RestoreCommand restoreCommand)
+            throws ShellHandler.ShellCommandFailedException {
+        if (!(targetDirectory.exists())) {
+            // this is the case on the sd card for external data or obb files
+            // package manager takes care of creating the data directories in in the internal storage
+            // we don't need to worry about permissions, since sdcardfs is mounted with a fixed uid and gid
+            Log.d(RestoreAppAction.TAG, String.format("%s: Creating %s directory because it's missing: %s", app, type, targetDirectory));
+            return this.prependUtilbox(String.format("mkdir \"%s\" && ", targetDirectory));
+        }
+        if (restoreCommand.equals(RestoreCommand.MOVE)) {
+            // move does not like existing files
+            // wipe everything from the target dir besides the excluded dirs
+            List<String> targetContents = new ArrayList<>(Arrays.asList(this.getShell().suGetDirectoryContents(targetDirectory)));
+            targetContents.removeAll(BaseAppAction.DATA_EXCLUDED_DIRS);
+            if (targetContents.isEmpty()) {
+                return "";
+            }
+            String[] removeTargets = targetContents.stream().map(s -> '"' + new File(targetDirectory, s).getAbsolutePath() + '"').toArray(String[]::new);
+            Log.d(RestoreAppAction.TAG, String.format("%s: Removing existing %s files in %s", app, type, targetDirectory));
+            return this.prependUtilbox(String.format("rm -rf %s && ", String.join(" ", removeTargets)));
+        }
+        return "";
+    }
+
+    private boolean isStreamed() {
+        return PrefUtils.getDefaultSharedPreferences(this.getContext()).getBoolean(Constants.PREFS_STREAMRESTORE, false);
+    }
+
+    /**
+     * Extracts a chain of archives into a directory inside the app's directory. The increments
+     * overwrite the files they contain. Only when the whole chain has been extracted, the
+     * app's files are replaced with the extracted ones, so a corrupt archive or a wrong password
+     * leaves the app's files as they were. It needs the space of the restored files twice for a
+     * while.
+     *
+     * @param type            the component to restore
+     * @param app             the app to restore
+     * @param archiveFiles    the full archive followed by its increments
+     * @param targetDirectory the directory, the component is restored to
+     * @param restoreCommand  MOVE to replace the contents of the directory
+     * @param ownedByApp      if the files are owned by the app like the directory
+     */
+    private void streamRestoreData(String type, AppInfo app, List<File> archiveFiles, File targetDirectory, RestoreCommand restoreCommand,
+                                   boolean ownedByApp)
+            throws IOException, ShellHandler.ShellCommandFailedException, Crypto.CryptoSetupException, RestoreFailedException {
+        long[] owner = ownedByApp ? this.getOwner(type, app, targetDirectory) : null;
+        String selinuxContext = ownedByApp ? this.getSelinuxContext(type, app, targetDirectory) : null;
+        // if tar can't set the contexts, the files are labelled after the extraction
+        Map<String, String> labels = selinuxContext != null && !this.getShell().isTarSelinuxSupported() ? new LinkedHashMap<>() : null;
+        File extractionDirectory = new File(targetDirectory, RestoreAppAction.EXTRACTION_DIRECTORY_NAME);
+        // left over, if a restore has been interrupted
+        String quotedExtractionDirectory = ShellHandler.quote(extractionDirectory.getAbsolutePath());
+        ShellHandler.runAsRoot(this.prependUtilbox("rm -rf " + quotedExtractionDirectory)
+                + " && " + this.prependUtilbox("mkdir -p " + quotedExtractionDirectory));
+        try {
+            Set<String> symlinks = new HashSet<>();
+            for (File archiveFile : archiveFiles) {
+                this.streamUncompress(app, archiveFile, extractionDirectory, owner, selinuxContext, labels, symlinks, this.getStats(type));
+            }
+            if (labels != null) {
+                // before removing deleted files, so all labelled files exist
+                this.relabel(type, app, extractionDirectory, labels);
+            }
+            if (app.getLogInfo().getIncrementLevel() > 0) {
+                this.suRemoveDeletedFiles(app, type, extractionDirectory);
+            }
+            this.replaceContents(type, app, extractionDirectory, targetDirectory, restoreCommand);
+        } finally {
+            // empty after the files have been moved
+            try {
+                ShellHandler.runAsRoot(this.prependUtilbox("rm -rf " + quotedExtractionDirectory));
+            } catch (ShellHandler.ShellCommandFailedException e) {
+                Log.w(RestoreAppAction.TAG, String.format("%s: Could not remove %s: %s",
+                        app, extractionDirectory, BaseAppAction.extractErrorMessage(e.getShellResult())));
+            }
+        }
+    }
+
+    /**
+     * Moves the extracted files into the target directory. With MOVE, the files, which were there
+     * before, are removed besides the excluded directories, like for a restore from the backup
+     * folder. With COPY, the extracted files are copied over the existing ones.
+     *
+     * @param extractionDirectory the directory the chain has been extracted to
+     * @param targetDirectory     the directory, the component is restored to
+     * @throws IOException                              if the replaced files could not be removed
+     * @throws ShellHandler.ShellCommandFailedException if the files could not be moved
+     */
+    private void replaceContents(String type, AppInfo app, File extractionDirectory, File targetDirectory, RestoreCommand restoreCommand)
+            throws IOException, ShellHandler.ShellCommandFailedException {
+        List<String> restored = Arrays.asList(this.getShell().suGetDirectoryContents(extractionDirectory, true));
+        if (restoreCommand.equals(RestoreCommand.COPY)) {
+            if (!restored.isEmpty()) {
+                ShellHandler.runAsRoot(this.prependUtilbox(String.format("cp -a %s %s",
+                        ShellHandler.quote(extractionDirectory.getAbsolutePath() + "/."), ShellHandler.quote(targetDirectory.getAbsolutePath()))));
+            }
+            return;
+        }
+        // the existing files with the names of the extracted ones are removed as well, so that
+        // mv doesn't move a directory into the existing one
+        Set<String> removed = new LinkedHashSet<>(Arrays.asList(this.getShell().suGetDirectoryContents(targetDirectory)));
+        removed.removeAll(BaseAppAction.DATA_EXCLUDED_DIRS);
+        removed.addAll(restored);
+        removed.remove(RestoreAppAction.EXTRACTION_DIRECTORY_NAME);
+        Log.d(RestoreAppAction.TAG, String.format("%s: Replacing %s files in %s", app, type, targetDirectory));
+        this.getShell().suRemoveFiles(removed.stream().map(s -> new File(targetDirectory, s)).collect(Collectors.toList()));
+        if (!restored.isEmpty()) {
+            ShellHandler.runAsRoot(this.prependUtilbox(String.format("mv %s %s",
+                    restored.stream().map(s -> ShellHandler.quote(new File(extractionDirectory, s).getAbsolutePath())).collect(Collectors.joining(" ")),
+                    ShellHandler.quote(targetDirectory.getAbsolutePath()))));
+        }
+    }
+
+    /**
+     * @return the SELinux context of the directory, which Android created for the app, or null,
+     * if it has none, e.g. because SELinux is disabled
+     */
+    private String getSelinuxContext(String type, AppInfo app, File targetDir) {
+        try {
+            return this.getShell().suGetSelinuxContext(targetDir.getAbsolutePath());
+        } catch (ShellHandler.ShellCommandFailedException | ShellHandler.UnexpectedCommandResult e) {
+            Log.w(RestoreAppAction.TAG, String.format("%s: Could not get the SELinux context of the %s directory. Not labelling the files", app, type));
+            return null;
+        }
+    }
+
+    /**
+     * Fallback, if tar can't set the contexts while extracting: Labels the extracted files one by
+     * one with the contexts they would have been extracted with. Files with an archived context
+     * keep its type, if it's valid, the others get the context of the directory, see
+     * TarUtils.getTargetSelinuxContext. Only the extracted files are touched, nothing is relabelled
+     * recursively.
+     *
+     * @param extractionDirectory the directory the files have been extracted to
+     * @param labels              the contexts by the names of the files
+     * @throws IOException if chcon failed
+     */
+    private void relabel(String type, AppInfo app, File extractionDirectory, Map<String, String> labels) throws IOException {
+        Map<String, List<String>> namesByContext = labels.entrySet().stream().collect(
+                Collectors.groupingBy(Map.Entry::getValue, Collectors.mapping(Map.Entry::getKey, Collectors.toList())));
+        for (Map.Entry<String, List<String>> entry : namesByContext.entrySet()) {
+            Log.d(RestoreAppAction.TAG, String.format("%s: Labelling %d %s files with %s", app, entry.getValue().size(), type, entry.getKey()));
+            // the paths are passed on stdin, so any number of them fits
+            try (ShellHandler.RootPipe pipe = ShellHandler.openRootPipe(this.prependUtilbox(
+                    String.format("xargs -0 %s chcon -h %s", this.getShell().getUtilboxPath(), ShellHandler.quote(entry.getKey()))))) {
+                try (OutputStream out = new BufferedOutputStream(pipe.getOutputStream())) {
+                    for (String name : entry.getValue()) {
+                        out.write(new File(extractionDirectory, name).getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+                        out.write(0);
+                    }
+                }
+                pipe.waitFor();
+            }
+        }
+    }
+
+    /**
+     * @return the numeric uid and gid of the directory, which Android created for the app
+     */
+    private long[] getOwner(String type, AppInfo app, File targetDir) throws RestoreFailedException {
+        try {
+            String[] uidgid = this.getShell().suGetOwnerAndGroup(targetDir.getAbsolutePath());
+            return new long[]{Long.parseLong(uidgid[0]), Long.parseLong(uidgid[1])};
+        } catch (ShellHandler.ShellCommandFailedException | ShellHandler.UnexpectedCommandResult | NumberFormatException e) {
+            String errorMessage = String.format("%s: Could not extract user and group information from %s directory", app, type);
+            Log.e(RestoreAppAction.TAG, errorMessage);
+            throw new RestoreFailedException(errorMessage, e);
+        }
+    }
+
+    /**
+     * Like removeDeletedFiles, but for a chain, that has been extracted directly into the app's
+     * directory. The files are listed and removed by root processes. The excluded directories
+     * are not part of the backup and left untouched.
+     *
+     * @param app             the restored app
+     * @param type            the component, which has been extracted
+     * @param targetDirectory the directory the component has been extracted to
+     * @throws IOException                              if the manifest or the directory could not be read
+     * @throws ShellHandler.ShellCommandFailedException if the files could not be removed
+     */
+    private void suRemoveDeletedFiles(AppInfo app, String type, File targetDirectory) throws IOException, ShellHandler.ShellCommandFailedException {
+        File manifestFile = this.getManifestFile(app);
+        if (!manifestFile.exists()) {
+            Log.w(RestoreAppAction.TAG, String.format("%s: Manifest is missing. Deleted files might be restored", app));
+            return;
+        }
+        BackupManifest manifest = BackupManifest.read(manifestFile);
+        if (!manifest.contains(type)) {
+            return;
+        }
+        List<String> contents = new ArrayList<>(Arrays.asList(this.getShell().suGetDirectoryContents(targetDirectory)));
+        contents.removeAll(BaseAppAction.DATA_EXCLUDED_DIRS);
+        if (contents.isEmpty()) {
+            return;
+        }
+        List<String> unlisted = manifest.findUnlisted(type, this.getShell().suFindFiles(targetDirectory, contents));
+        this.getShell().suRemoveFiles(unlisted.stream().map(s -> new File(targetDirectory, s)).collect(Collectors.toList()));
+        Log.d(RestoreAppAction.TAG, String.format("%s: Removed %d deleted files from %s", app, unlisted.size(), type));
+    }
+
+    /**
+     * Removes the files from an expanded chain of incremental archives, which have been deleted
+     * before the latest increment was created. These are all files not listed in the manifest.
+     *
+     * @param app             the restored app
+     * @param type            the component, which has been expanded
+     * @param backupDirectory the directory the component has been expanded to
+     * @throws IOException if the manifest could not be read
+     */
+    private void removeDeletedFiles(AppInfo app, String type, File backupDirectory) throws IOException {
+        File manifestFile = this.getManifestFile(app);
+        if (!manifestFile.exists()) {
+            Log.w(RestoreAppAction.TAG, String.format("%s: Manifest is missing. Deleted files might be restored", app));
+            return;
+        }
+        BackupManifest manifest = BackupManifest.read(manifestFile);
+        // the component was not part of the latest backup, so its manifest entries are missing
+        if (!manifest.contains(type)) {
+            return;
+        }
+        int removed = manifest.removeUnlisted(backupDirectory, type);
+        Log.d(RestoreAppAction.TAG, String.format("%s: Removed %d deleted files from %s", app, removed, type));
+    }
+
     private void genericRestorePermissions(String type, AppInfo app, File targetDir) throws RestoreFailedException {
 
         Log.i(RestoreAppAction.TAG, app + ": Restoring permissions on " + type);
@@ -305,12 +685,8 @@ public class RestoreAppAction extends BaseAppAction {
                 this.getDataBackupFolder(app),
                 new File(applicationInfo.dataDir),  // refreshed info used here
                 true,
-                RestoreCommand.MOVE
-        );
-        this.genericRestorePermissions(
-                BaseAppAction.BACKUP_DIR_DATA,
-                app,
-                new File(applicationInfo.dataDir)
+                RestoreCommand.MOVE,
+                true
         );
     }
 
@@ -321,7 +697,8 @@ public class RestoreAppAction extends BaseAppAction {
                 this.getExternalFilesBackupFolder(app),
                 app.getExternalFilesPath(this.getContext()),
                 true,
-                RestoreCommand.MOVE
+                RestoreCommand.MOVE,
+                false
         );
     }
 
@@ -332,7 +709,8 @@ public class RestoreAppAction extends BaseAppAction {
                 this.getObbBackupFolder(app),
                 app.getObbFilesPath(this.getContext()),
                 false,
-                RestoreCommand.COPY
+                RestoreCommand.COPY,
+                false
         );
     }
 
@@ -345,12 +723,8 @@ public class RestoreAppAction extends BaseAppAction {
                 this.getDeviceProtectedFolder(app),
                 new File(applicationInfo.deviceProtectedDataDir), // refreshed info used here
                 true,
-                RestoreCommand.MOVE
-        );
-        this.genericRestorePermissions(
-                BaseAppAction.BACKUP_DIR_DEVICE_PROTECTED_FILES,
-                app,
-                new File(applicationInfo.deviceProtectedDataDir)
+                RestoreCommand.MOVE,
+                true
         );
     }
 
@@ -60,15 +60,15 @@ public class RestoreSpecialAction extends RestoreAppAction {
         Log.i(TAG, String.format("%s: Restore special data", app));
         File backupDirectory = this.getDataBackupFolder(app);
         boolean isEncrypted = PrefUtils.isEncryptionEnabled(this.getContext());
-        File archiveFile = this.getBackupArchive(app, BaseAppAction.BACKUP_DIR_DATA, isEncrypted);
+        File archiveFile = this.findBackupArchive(app, BaseAppAction.BACKUP_DIR_DATA, isEncrypted);
         try {
-            if (!archiveFile.exists()) {
+            if (archiveFile == null) {
                 Log.i(TAG,
-                        String.format("%s: %s archive does not exist: %s", app, BaseAppAction.BACKUP_DIR_DATA, archiveFile));
+                        String.format("%s: %s archive does not exist", app, BaseAppAction.BACKUP_DIR_DATA));
                 return;
             }
             // uncompress the archive to the app's base backup folder
-            this.uncompress(this.getBackupArchive(app, BaseAppAction.BACKUP_DIR_DATA, isEncrypted), this.getAppBackupFolder(app));
+            this.uncompress(app, archiveFile, this.getAppBackupFolder(app), this.getStats(BaseAppAction.BACKUP_DIR_DATA));
 
             // check if all expected files are there
             File[] filesInBackup = backupDirectory.listFiles();
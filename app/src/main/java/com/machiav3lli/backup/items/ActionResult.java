@@ -29,18 +29,38 @@ public class ActionResult {
     private final AppInfo app;
     private final Date occurrence;
     private final String message;
+    private final String errorClass;
 
     public ActionResult(AppInfo app, @NotNull String message, boolean succeeded) {
         this.occurrence = Calendar.getInstance().getTime();
         this.app = app;
         this.succeeded = succeeded;
         this.message = message;
+        this.errorClass = null;
+    }
+
+    /**
+     * Creates the result of an action, that failed with an exception.
+     */
+    public ActionResult(AppInfo app, @NotNull Throwable error) {
+        this.occurrence = Calendar.getInstance().getTime();
+        this.app = app;
+        this.succeeded = false;
+        this.message = String.format("%s: %s", error.getClass().getSimpleName(), error.getMessage());
+        this.errorClass = error.getClass().getSimpleName();
     }
 
     public String getMessage() {
         return message;
     }
 
+    /**
+     * @return the simple name of the exception, the action failed with, or null
+     */
+    public String getErrorClass() {
+        return errorClass;
+    }
+
     @NotNull
     @Override
     public String toString() {
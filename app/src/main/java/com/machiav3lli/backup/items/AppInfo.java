@@ -28,10 +28,10 @@ import org.jetbrains.annotations.NotNull;
 import java.io.File;
 
 public class AppInfo implements Parcelable {
-    public static final int MODE_UNSET = 0;
-    public static final int MODE_APK = 1;
-    public static final int MODE_DATA = 2;
-    public static final int MODE_BOTH = 3;
+    public static final int MODE_UNSET = BackupLog.MODE_UNSET;
+    public static final int MODE_APK = BackupLog.MODE_APK;
+    public static final int MODE_DATA = BackupLog.MODE_DATA;
+    public static final int MODE_BOTH = BackupLog.MODE_BOTH;
     public static final Parcelable.Creator<AppInfo> CREATOR = new Parcelable.Creator<AppInfo>() {
         public AppInfo createFromParcel(Parcel in) {
             return new AppInfo(in);
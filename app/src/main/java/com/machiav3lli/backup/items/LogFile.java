@@ -22,18 +22,18 @@ import android.os.Parcelable;
 import android.util.Log;
 
 import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.handler.PhaseStats;
 import com.machiav3lli.backup.utils.LogUtils;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
-public class LogFile implements Parcelable {
+public class LogFile extends BackupLog implements Parcelable {
     public static final Parcelable.Creator<LogFile> CREATOR = new Parcelable.Creator<LogFile>() {
         public LogFile createFromParcel(Parcel in) {
             return new LogFile(in);
@@ -44,29 +44,12 @@ public class LogFile implements Parcelable {
         }
     };
     private static final String TAG = Constants.classTag(".LogFile");
-    String label, packageName, versionName, sourceDir, dataDir, deviceProtectedDataDir;
-    String[] splitSourceDirs;
-    int versionCode, backupMode;
-    long lastBackupMillis;
-    boolean encrypted, system;
 
     public LogFile(File backupSubDir, String packageName) {
-        LogUtils frw = new LogUtils(backupSubDir.getAbsolutePath(), packageName + ".log");
+        LogUtils frw = new LogUtils(backupSubDir.getAbsolutePath(), packageName + BackupLog.FILE_SUFFIX);
         String json = frw.read();
         try {
-            JSONObject jsonObject = new JSONObject(json);
-            this.label = jsonObject.getString("label");
-            this.packageName = jsonObject.getString("packageName");
-            this.versionName = jsonObject.getString("versionName");
-            this.sourceDir = jsonObject.getString("sourceDir");
-            this.splitSourceDirs = jsonObject.has("splitSourceDirs") ? LogFile.toStringArray(jsonObject.getJSONArray("splitSourceDirs")) : null;
-            this.dataDir = jsonObject.getString("dataDir");
-            this.deviceProtectedDataDir = jsonObject.has("deviceProtectedDataDir") ? jsonObject.getString("deviceProtectedDataDir") : null;
-            this.lastBackupMillis = jsonObject.getLong("lastBackupMillis");
-            this.versionCode = jsonObject.getInt("versionCode");
-            this.encrypted = jsonObject.optBoolean("isEncrypted");
-            this.system = jsonObject.optBoolean("isSystem");
-            this.backupMode = jsonObject.optInt("backupMode", AppInfo.MODE_UNSET);
+            this.readJson(new JSONObject(json));
         } catch (JSONException e) {
             Log.e(TAG, packageName + ": error while reading logfile: " + e.toString());
             this.label = this.packageName = this.versionName = this.sourceDir = this.dataDir = "";
@@ -91,9 +74,34 @@ public class LogFile implements Parcelable {
         in.readBooleanArray(bools);
         encrypted = bools[0];
         system = bools[1];
+        encryptionAlgorithm = in.readString();
+        compressionType = in.readString();
+        incrementLevel = in.readInt();
+        int apkDigestCount = in.readInt();
+        if (apkDigestCount >= 0) {
+            apkDigests = new ApkDigest[apkDigestCount];
+            for (int i = 0; i < apkDigestCount; i++) {
+                apkDigests[i] = new ApkDigest(in.readString(), in.readLong(), in.readLong(), in.readString());
+            }
+        }
+        int fingerprintCount = in.readInt();
+        if (fingerprintCount >= 0) {
+            dataFingerprints = new HashMap<>();
+            for (int i = 0; i < fingerprintCount; i++) {
+                dataFingerprints.put(in.readString(), in.readString());
+            }
+        }
+        String statsJson = in.readString();
+        if (statsJson != null) {
+            try {
+                stats = BackupLog.toStatsMap(new JSONObject(statsJson));
+            } catch (JSONException e) {
+                Log.e(TAG, packageName + ": error while reading stats: " + e.toString());
+            }
+        }
     }
 
-    public static void writeLogFile(File backupSubDir, AppInfo appInfo, int backupMode, boolean encrypted) throws IOException, JSONException {
+    public static void writeLogFile(File backupSubDir, AppInfo appInfo, int backupMode, boolean encrypted, String encryptionAlgorithm, String compressionType, int incrementLevel, ApkDigest[] apkDigests, Map<String, String> dataFingerprints, Map<String, PhaseStats> stats) throws IOException, JSONException {
         try {
             // path to apk should only be logged if it is backed up
             String sourceDir = "";
@@ -105,118 +113,17 @@ public class LogFile implements Parcelable {
                 sourceDir = appInfo.getLogInfo().getSourceDir();
                 splitSourceDirs = appInfo.getLogInfo().getSplitSourceDirs();
             }
-
-            JSONObject jsonObject = new JSONObject();
-            jsonObject.put("label", appInfo.getLabel());
-            jsonObject.put("versionName", appInfo.getVersionName());
-            jsonObject.put("versionCode", appInfo.getVersionCode());
-            jsonObject.put("packageName", appInfo.getPackageName());
-            jsonObject.put("sourceDir", sourceDir);
-            // Value won't be written to the json string if it's java's null. Fine.
-            jsonObject.put("splitSourceDirs", LogFile.toJsonArray(splitSourceDirs));
-            jsonObject.put("dataDir", appInfo.getDataDir());
-            jsonObject.put("deviceProtectedDataDir", appInfo.getDeviceProtectedDataDir());
-            jsonObject.put("lastBackupMillis", System.currentTimeMillis());
-            jsonObject.put("isEncrypted", encrypted);
-            jsonObject.put("isSystem", appInfo.isSystem());
-            jsonObject.put("backupMode", appInfo.getBackupMode());
-            String json = jsonObject.toString(4);
-            File outFile = new File(backupSubDir, appInfo.getPackageName() + ".log");
-            outFile.createNewFile();
-            try (BufferedWriter bw = new BufferedWriter(
-                    new FileWriter(outFile.getAbsoluteFile()))) {
-                bw.write(json + "\n");
-            }
+            new BackupLog(appInfo.getLabel(), appInfo.getPackageName(), appInfo.getVersionName(), appInfo.getVersionCode(),
+                    sourceDir, splitSourceDirs, appInfo.getDataDir(), appInfo.getDeviceProtectedDataDir(),
+                    System.currentTimeMillis(), encrypted, encryptionAlgorithm, appInfo.isSystem(), appInfo.getBackupMode(), compressionType,
+                    incrementLevel, apkDigests, dataFingerprints, stats)
+                    .write(backupSubDir);
         } catch (JSONException | IOException e) {
             Log.e(TAG, "LogFile.writeLogFile: " + e.toString());
             throw e;
         }
     }
 
-    public static JSONArray toJsonArray(Object[] array) {
-        if (array == null) {
-            return null;
-        }
-        JSONArray result = new JSONArray();
-        for (Object entry : array) {
-            result.put(entry);
-        }
-        return result;
-    }
-
-    public static String[] toStringArray(JSONArray array) {
-        String[] result = new String[array.length()];
-        for (int i = 0; i < result.length; i++) {
-            result[i] = array.optString(i);
-        }
-        return result;
-    }
-
-    public String getLabel() {
-        return label;
-    }
-
-    public String getPackageName() {
-        return packageName;
-    }
-
-    public String getVersionName() {
-        return versionName;
-    }
-
-    public int getVersionCode() {
-        return versionCode;
-    }
-
-    public String getSourceDir() {
-        return sourceDir;
-    }
-
-    public String[] getSplitSourceDirs() {
-        return splitSourceDirs;
-    }
-
-    public String[] getSplitApks() {
-        if (splitSourceDirs != null) {
-            String[] result = new String[splitSourceDirs.length];
-            for (int i = 0; i < result.length; i++) {
-                result[i] = splitSourceDirs[i].substring(sourceDir.lastIndexOf("/") + 1);
-            }
-            return result;
-        }
-        return new String[0];
-    }
-
-    public String getApk() {
-        if (sourceDir != null && sourceDir.length() > 0)
-            return sourceDir.substring(sourceDir.lastIndexOf("/") + 1);
-        return null;
-    }
-
-    public String getDataDir() {
-        return dataDir;
-    }
-
-    public String getDeviceProtectedDataDir() {
-        return deviceProtectedDataDir;
-    }
-
-    public long getLastBackupMillis() {
-        return lastBackupMillis;
-    }
-
-    public boolean isEncrypted() {
-        return encrypted;
-    }
-
-    public boolean isSystem() {
-        return system;
-    }
-
-    public int getBackupMode() {
-        return backupMode;
-    }
-
     public int describeContents() {
         return 0;
     }
@@ -232,5 +139,37 @@ public class LogFile implements Parcelable {
         out.writeInt(backupMode);
         out.writeLong(lastBackupMillis);
         out.writeBooleanArray(new boolean[]{encrypted, system});
+        out.writeString(encryptionAlgorithm);
+        out.writeString(compressionType);
+        out.writeInt(incrementLevel);
+        if (apkDigests == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(apkDigests.length);
+            for (ApkDigest apkDigest : apkDigests) {
+                out.writeString(apkDigest.getName());
+                out.writeLong(apkDigest.getSize());
+                out.writeLong(apkDigest.getLastModified());
+                out.writeString(apkDigest.getDigest());
+            }
+        }
+        if (dataFingerprints == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(dataFingerprints.size());
+            for (Map.Entry<String, String> fingerprint : dataFingerprints.entrySet()) {
+                out.writeString(fingerprint.getKey());
+                out.writeString(fingerprint.getValue());
+            }
+        }
+        String statsJson = null;
+        if (stats != null) {
+            try {
+                statsJson = BackupLog.toJsonObject(stats).toString();
+            } catch (JSONException e) {
+                Log.e(TAG, packageName + ": error while writing stats: " + e.toString());
+            }
+        }
+        out.writeString(statsJson);
     }
 }
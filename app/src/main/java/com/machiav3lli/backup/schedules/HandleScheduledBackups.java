@@ -30,7 +30,10 @@ import com.machiav3lli.backup.activities.MainActivityX;
 import com.machiav3lli.backup.activities.SchedulerActivityX;
 import com.machiav3lli.backup.handler.AppInfoHelper;
 import com.machiav3lli.backup.handler.BackupRestoreHelper;
+import com.machiav3lli.backup.handler.BatchRunner;
+import com.machiav3lli.backup.handler.KeyCache;
 import com.machiav3lli.backup.handler.NotificationHelper;
+import com.machiav3lli.backup.handler.RunReport;
 import com.machiav3lli.backup.handler.SortFilterManager;
 import com.machiav3lli.backup.items.ActionResult;
 import com.machiav3lli.backup.items.AppInfo;
@@ -107,11 +110,11 @@ public class HandleScheduledBackups {
                     }
                     break;
             }
-            backup(listToBackUp, subMode);
+            backup(listToBackUp, subMode, id);
         }).start();
     }
 
-    public void backup(final List<AppInfo> backupList, final int subMode) {
+    public void backup(final List<AppInfo> backupList, final int subMode, final int scheduleId) {
         if (backupDir != null) {
             new Thread(() -> {
                 @SuppressLint("InvalidWakeLockTag") PowerManager.WakeLock wl = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
@@ -120,32 +123,45 @@ public class HandleScheduledBackups {
                     Log.i(TAG, "wakelock acquired");
                 }
                 int id = (int) System.currentTimeMillis();
-                int total = backupList.size();
-                int i = 1;
                 BlacklistsDBHelper blacklistsDBHelper =
                         new BlacklistsDBHelper(context);
                 SQLiteDatabase db = blacklistsDBHelper.getReadableDatabase();
                 List<String> blacklistedPackages = blacklistsDBHelper
                         .getBlacklistedPackages(db, SchedulerActivityX.GLOBALBLACKLISTID);
+                List<AppInfo> appsToBackUp = new ArrayList<>();
                 for (AppInfo appInfo : backupList) {
                     if (blacklistedPackages.contains(appInfo.getPackageName())) {
                         Log.i(TAG, String.format("%s ignored",
                                 appInfo.getPackageName()));
-                        i++;
-                        continue;
+                    } else {
+                        appsToBackUp.add(appInfo);
                     }
-                    String title = context.getString(R.string.backupProgress) + " (" + i + "/" + total + ")";
-                    NotificationHelper.showNotification(context, MainActivityX.class, id, title, appInfo.getLabel(), false);
-                    final BackupRestoreHelper backupRestoreHelper = new BackupRestoreHelper();
-                    ActionResult result = backupRestoreHelper.backup(context, MainActivityX.getShellHandlerInstance(), appInfo, subMode);
+                }
+                final BackupRestoreHelper backupRestoreHelper = new BackupRestoreHelper(new RunReport(RunReport.TRIGGER_SCHEDULE, scheduleId));
+                List<ActionResult> results = new BatchRunner(context).runPipelined(appsToBackUp,
+                        app -> backupRestoreHelper.collectBackup(context, MainActivityX.getShellHandlerInstance(), app, subMode),
+                        new BatchRunner.Listener() {
+                            @Override
+                            public void onAppStarted(AppInfo app, int started, int finished, int total) {
+                                String title = context.getString(R.string.backupProgress) + " (" + started + "/" + total + ")";
+                                NotificationHelper.showNotification(context, MainActivityX.class, id, title, app.getLabel(), false);
+                            }
 
-                    if (i == total) {
-                        String notificationTitle = !result.succeeded ? context.getString(R.string.batchFailure) : context.getString(R.string.batchSuccess);
-                        String notificationMessage = context.getString(R.string.sched_notificationMessage);
-                        NotificationHelper.showNotification(context, MainActivityX.class, id, notificationTitle, notificationMessage, true);
-                    }
-                    i++;
+                            @Override
+                            public void onAppFinished(AppInfo app, ActionResult result, int finished, int total) {
+                                Log.d(TAG, String.format("%s: Finished (%d/%d), succeeded: %s", app, finished, total, result.succeeded));
+                            }
+                        });
+                if (!results.isEmpty()) {
+                    boolean succeeded = results.stream().allMatch(result -> result.succeeded);
+                    String notificationTitle = !succeeded ? context.getString(R.string.batchFailure) : context.getString(R.string.batchSuccess);
+                    String notificationMessage = context.getString(R.string.sched_notificationMessage);
+                    NotificationHelper.showNotification(context, MainActivityX.class, id, notificationTitle, notificationMessage, true);
                 }
+                BackupRestoreHelper.collectChunkGarbage(context);
+                backupRestoreHelper.writeExclusionReport(context);
+                backupRestoreHelper.writeRunReport(context);
+                KeyCache.wipe();
                 if (wl.isHeld()) {
                     wl.release();
                     Log.i(TAG, "wakelock released");
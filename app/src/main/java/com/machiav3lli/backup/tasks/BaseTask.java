@@ -25,6 +25,7 @@ import com.machiav3lli.backup.activities.MainActivityX;
 import com.machiav3lli.backup.handler.BackupRestoreHelper;
 import com.machiav3lli.backup.handler.HandleMessages;
 import com.machiav3lli.backup.handler.NotificationHelper;
+import com.machiav3lli.backup.handler.RunReport;
 import com.machiav3lli.backup.handler.ShellHandler;
 import com.machiav3lli.backup.items.ActionResult;
 import com.machiav3lli.backup.items.AppInfo;
@@ -57,7 +58,7 @@ public abstract class BaseTask extends AsyncTask<Void, Void, Integer> {
         this.backupDirectory = backupDirectory;
         this.shellHandler = shellHandler;
         this.mode = mode;
-        backupRestoreHelper = new BackupRestoreHelper();
+        backupRestoreHelper = new BackupRestoreHelper(new RunReport(RunReport.TRIGGER_UI, -1));
     }
 
     @Override
@@ -20,6 +20,7 @@ package com.machiav3lli.backup.tasks;
 import com.machiav3lli.backup.activities.MainActivityX;
 import com.machiav3lli.backup.handler.BackupRestoreHelper;
 import com.machiav3lli.backup.handler.HandleMessages;
+import com.machiav3lli.backup.handler.KeyCache;
 import com.machiav3lli.backup.handler.ShellHandler;
 import com.machiav3lli.backup.items.AppInfo;
 
@@ -39,6 +40,9 @@ public class RestoreTask extends BaseTask {
         if (mainActivityX == null || mainActivityX.isFinishing()) return -1;
         publishProgress();
         this.result = this.backupRestoreHelper.restore(this.mainActivityXReference.get(), this.app, this.shellHandler, this.mode);
+        this.backupRestoreHelper.writeExclusionReport(mainActivityX);
+        this.backupRestoreHelper.writeRunReport(mainActivityX);
+        KeyCache.wipe();
         return this.result.succeeded ? 0 : 1;
     }
 }
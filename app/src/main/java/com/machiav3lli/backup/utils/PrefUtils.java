@@ -56,6 +56,22 @@ public class PrefUtils {
         return !getDefaultSharedPreferences(context).getString(Constants.PREFS_PASSWORD, "").isEmpty();
     }
 
+    /**
+     * Reads a numeric preference, which is stored as a string by EditTextPreference.
+     *
+     * @param context      context to access the preferences
+     * @param key          the preference's key
+     * @param defaultValue returned if the preference is not set or not a number
+     * @return the preference's value
+     */
+    public static int getIntPreference(Context context, String key, int defaultValue) {
+        try {
+            return Integer.parseInt(getDefaultSharedPreferences(context).getString(key, String.valueOf(defaultValue)).trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     public static boolean isLockEnabled(Context context) {
         return getDefaultSharedPreferences(context).getBoolean(Constants.PREFS_BIOMETRICLOCK, false);
     }
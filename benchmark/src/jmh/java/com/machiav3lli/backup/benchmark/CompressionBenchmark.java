@@ -0,0 +1,111 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.benchmark;
+
+import com.machiav3lli.backup.handler.CompressionCodec;
+
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Compresses and decompresses buffers with the codecs and gzip thread counts of the settings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class CompressionBenchmark {
+    private static final int DATA_SIZE = 32 << 20;
+    private static final int WRITE_SIZE = 64 * 1024;
+
+    @Param({"TEXT", "RANDOM", "MIXED"})
+    public Content content;
+
+    @Param({"gz", "zst", "lz4"})
+    public String codec;
+
+    // only gzip compresses in parallel
+    @Param({"1", "4"})
+    public int threads;
+
+    private byte[] data;
+    private byte[] compressed;
+
+    @Setup(Level.Trial)
+    public void createData() throws IOException {
+        Random random = new Random(1);
+        this.data = new byte[CompressionBenchmark.DATA_SIZE];
+        byte[] text = "<string name=\"key\">value</string>\n".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < this.data.length; i += 4096) {
+            boolean isRandom = this.content == Content.RANDOM
+                    || (this.content == Content.MIXED && random.nextBoolean());
+            for (int j = i; j < Math.min(i + 4096, this.data.length); j++) {
+                this.data[j] = isRandom ? (byte) random.nextInt() : text[(j + random.nextInt(2)) % text.length];
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        this.compress(out);
+        this.compressed = out.toByteArray();
+    }
+
+    @Benchmark
+    public void compress(ThroughputCounters counters) throws IOException {
+        this.compress(NullOutputStream.NULL_OUTPUT_STREAM);
+        counters.count(this.data.length);
+    }
+
+    @Benchmark
+    public void decompress(ThroughputCounters counters) throws IOException {
+        byte[] buffer = new byte[CompressionBenchmark.WRITE_SIZE];
+        try (InputStream in = CompressionCodec.fromName(this.codec).decompress(new ByteArrayInputStream(this.compressed))) {
+            while (in.read(buffer) != -1) {
+                // only the decompression is measured
+            }
+        }
+        counters.count(this.data.length);
+    }
+
+    private void compress(OutputStream target) throws IOException {
+        CompressionCodec compressionCodec = CompressionCodec.fromName(this.codec);
+        try (OutputStream out = compressionCodec.compress(target, compressionCodec.getDefaultLevel(), this.threads, 1 << 20)) {
+            // written in pieces like the tar archive does
+            for (int i = 0; i < this.data.length; i += CompressionBenchmark.WRITE_SIZE) {
+                out.write(this.data, i, Math.min(CompressionBenchmark.WRITE_SIZE, this.data.length - i));
+            }
+        }
+    }
+
+    public enum Content {
+        TEXT,
+        RANDOM,
+        MIXED
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.benchmark;
+
+import com.machiav3lli.backup.handler.Crypto;
+
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Encrypts and decrypts a buffer like an archive is. Derives the key from a password like it was
+ * done for every archive before the master key, and the archive key from the master key like
+ * it's done now.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class CryptoBenchmark {
+    private static final int DATA_SIZE = 32 << 20;
+    private static final int WRITE_SIZE = 64 * 1024;
+    private static final String PASSWORD = "benchmark";
+
+    private byte[] data;
+    private byte[] encrypted;
+    private SecretKey key;
+    private byte[] archiveSalt;
+
+    @Setup(Level.Trial)
+    public void createData() throws IOException, Crypto.CryptoSetupException, NoSuchAlgorithmException, InvalidKeySpecException {
+        this.data = new byte[CryptoBenchmark.DATA_SIZE];
+        new Random(1).nextBytes(this.data);
+        this.key = Crypto.generateKeyFromPassword(CryptoBenchmark.PASSWORD, Crypto.FALLBACK_SALT);
+        this.archiveSalt = new byte[16];
+        new Random(2).nextBytes(this.archiveSalt);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        this.encrypt(out);
+        this.encrypted = out.toByteArray();
+    }
+
+    @Benchmark
+    public void encrypt(ThroughputCounters counters) throws IOException, Crypto.CryptoSetupException {
+        this.encrypt(NullOutputStream.NULL_OUTPUT_STREAM);
+        counters.count(this.data.length);
+    }
+
+    @Benchmark
+    public void decrypt(ThroughputCounters counters) throws IOException, Crypto.CryptoSetupException {
+        byte[] buffer = new byte[CryptoBenchmark.WRITE_SIZE];
+        try (InputStream in = Crypto.decryptStream(new ByteArrayInputStream(this.encrypted), this.key)) {
+            while (in.read(buffer) != -1) {
+                // only the decryption is measured
+            }
+        }
+        counters.count(this.data.length);
+    }
+
+    @Benchmark
+    public SecretKey deriveKey() throws NoSuchAlgorithmException, InvalidKeySpecException {
+        return Crypto.generateKeyFromPassword(CryptoBenchmark.PASSWORD, Crypto.FALLBACK_SALT);
+    }
+
+    @Benchmark
+    public byte[] deriveArchiveKey() throws NoSuchAlgorithmException, InvalidKeyException {
+        return Crypto.hkdf(this.key.getEncoded(), this.archiveSalt, "oandbackupx archive".getBytes(StandardCharsets.UTF_8), 48);
+    }
+
+    private void encrypt(OutputStream target) throws IOException, Crypto.CryptoSetupException {
+        try (OutputStream out = Crypto.encryptStream(target, this.key)) {
+            for (int i = 0; i < this.data.length; i += CryptoBenchmark.WRITE_SIZE) {
+                out.write(this.data, i, Math.min(CryptoBenchmark.WRITE_SIZE, this.data.length - i));
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.benchmark;
+
+import com.machiav3lli.backup.cli.SyntheticAppData;
+import com.machiav3lli.backup.cli.SyntheticProfile;
+import com.machiav3lli.backup.handler.ArchiveStreams;
+import com.machiav3lli.backup.handler.BackupLayout;
+import com.machiav3lli.backup.handler.CompressionCodec;
+import com.machiav3lli.backup.handler.Crypto;
+import com.machiav3lli.backup.handler.TarUtils;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+/**
+ * Archives and expands the data component of synthetic apps the way a data backup and restore
+ * does, without the encryption. The archive is written to memory, so the storage's speed
+ * doesn't count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+public class TarBenchmark {
+    // the profiles bundled with the CLI
+    @Param({"messenger", "game", "gallery"})
+    public String profile;
+
+    @Param({"none", "gz", "zst", "lz4"})
+    public String codec;
+
+    @Param({"0", "4"})
+    public int pipelineDepth;
+
+    private File root;
+    private File tree;
+    private long treeSize;
+    private byte[] archive;
+    private File restoreTarget;
+
+    @Setup(Level.Trial)
+    public void createTree() throws IOException, Crypto.CryptoSetupException {
+        this.root = Files.createTempDirectory("tarbenchmark").toFile();
+        SyntheticAppData appData = SyntheticAppData.generate(SyntheticProfile.loadBundled(this.profile), this.root);
+        this.tree = appData.getComponentDirs().get(BackupLayout.DATA);
+        this.treeSize = FileUtils.sizeOfDirectory(this.tree);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        this.writeArchive(out);
+        this.archive = out.toByteArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() {
+        FileUtils.deleteQuietly(this.root);
+    }
+
+    @Setup(Level.Invocation)
+    public void createRestoreTarget() throws IOException {
+        this.restoreTarget = Files.createTempDirectory(this.root.toPath(), "restore").toFile();
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteRestoreTarget() {
+        FileUtils.deleteQuietly(this.restoreTarget);
+    }
+
+    @Benchmark
+    public void backup(ThroughputCounters counters) throws IOException, Crypto.CryptoSetupException {
+        this.writeArchive(NullOutputStream.NULL_OUTPUT_STREAM);
+        counters.count(this.treeSize);
+    }
+
+    @Benchmark
+    public void restore(ThroughputCounters counters) throws IOException, Crypto.CryptoSetupException {
+        InputStream in = ArchiveStreams.decode(new ByteArrayInputStream(this.archive), null, null,
+                CompressionCodec.fromName(this.codec), this.pipelineDepth);
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(in)) {
+            TarUtils.uncompressTo(tar, this.restoreTarget);
+        }
+        counters.count(this.treeSize);
+    }
+
+    private void writeArchive(OutputStream target) throws IOException, Crypto.CryptoSetupException {
+        CompressionCodec compressionCodec = CompressionCodec.fromName(this.codec);
+        OutputStream out = ArchiveStreams.encode(target, null, null, compressionCodec, compressionCodec.getDefaultLevel(),
+                1, 1 << 20, this.pipelineDepth);
+        try (TarArchiveOutputStream tar = ArchiveStreams.openTar(out, true)) {
+            TarUtils.addFilepathAs(tar, this.tree, BackupLayout.DATA, null, null);
+        }
+    }
+}
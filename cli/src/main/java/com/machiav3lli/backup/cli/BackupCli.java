@@ -0,0 +1,432 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.cli;
+
+import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.EngineLog;
+import com.machiav3lli.backup.handler.ArchiveStreams;
+import com.machiav3lli.backup.handler.BackupLayout;
+import com.machiav3lli.backup.handler.ChunkFormat;
+import com.machiav3lli.backup.handler.ChunkStore;
+import com.machiav3lli.backup.handler.ChunkingOutputStream;
+import com.machiav3lli.backup.handler.CipherBenchmark;
+import com.machiav3lli.backup.handler.CompressionCodec;
+import com.machiav3lli.backup.handler.Crypto;
+import com.machiav3lli.backup.handler.EncryptionAlgorithm;
+import com.machiav3lli.backup.handler.ExclusionRules;
+import com.machiav3lli.backup.handler.ParallelGzipOutputStream;
+import com.machiav3lli.backup.handler.PhaseStats;
+import com.machiav3lli.backup.handler.PipelineInputStream;
+import com.machiav3lli.backup.handler.PipelineOutputStream;
+import com.machiav3lli.backup.handler.TarUtils;
+import com.machiav3lli.backup.items.BackupLog;
+import com.machiav3lli.backup.items.BackupManifest;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Backs up and restores local directory trees in the format of the app's data backups. The
+ * backups can be restored by the app and the other way round, which makes it possible to test
+ * the engine's throughput and format compatibility without a device.
+ */
+public final class BackupCli {
+    private static final String TAG = Constants.classTag(".BackupCli");
+    private static final String USAGE = String.join("\n",
+            "Usage:",
+            "  backup [options] <backupDir> <packageName> <component>=<directory>...",
+            "  restore [options] <backupDir> <packageName> <targetDir>",
+            "  generate [--seed <n>] <profile> <rootDir>",
+            "",
+            "Components: " + String.join(", ", BackupLayout.getComponents()),
+            "",
+            "Options:",
+            "  --codec <name>        backup: gz, zst, lz4 or none (default gz)",
+            "  --level <n>           backup: compression level, gz -1..9, zst 1..22, lz4 1..2",
+            "  --threads <n>         compression and encryption threads, decryption threads (default 1)",
+            "  --block-size <KiB>    backup: size of the blocks compressed in parallel, 64..65536 (default 1024)",
+            "  --chunks              backup: store the archives in the chunk store",
+            "  --no-adaptive         backup: compress already compressed files again",
+            "  --exclusions <file>   exclusion rules file, like the app's exclusions.txt",
+            "  --exclude-cache       exclude the cache directories",
+            "  --pipeline <n>        queue depth of the pipeline stages, 0 to disable (default 4)",
+            "  --password-env <var>  read the encryption password from the environment variable",
+            "  --salt <salt>         salt of the key derivation (default: the app's fallback salt)",
+            "  --cipher <name>       backup: aes-gcm, chacha20-poly1305 or auto for the fastest one",
+            "                        (default aes-gcm)",
+            "  --seed <n>            generate: seed of the content (default: the profile's seed)",
+            "  -v, --verbose         log debug messages",
+            "",
+            "generate creates the apks and data of an app as described by a profile file or one of",
+            "the bundled profiles messenger, game, gallery and minimal. It prints the package name",
+            "and the component arguments of backup.");
+    private static final String[] INT_OPTIONS = {"--level", "--threads", "--block-size", "--pipeline", "--seed"};
+
+    private final Map<String, String> options;
+    private final List<String> arguments;
+    private EncryptionAlgorithm encryptionAlgorithm = EncryptionAlgorithm.DEFAULT;
+
+    private BackupCli(Map<String, String> options, List<String> arguments) {
+        this.options = options;
+        this.arguments = arguments;
+    }
+
+    public static void main(String[] args) {
+        try {
+            System.exit(BackupCli.run(args));
+        } catch (UsageException e) {
+            System.err.println(e.getMessage());
+            System.err.println(BackupCli.USAGE);
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Runs a command.
+     *
+     * @param args the command followed by its options and arguments
+     * @return the exit code
+     * @throws UsageException if the command line is malformed
+     */
+    public static int run(String[] args) throws UsageException {
+        if (args.length == 0) {
+            throw new UsageException("Missing command");
+        }
+        Map<String, String> options = new HashMap<>();
+        List<String> arguments = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--chunks":
+                case "--no-adaptive":
+                case "--exclude-cache":
+                case "--verbose":
+                    options.put(args[i], "");
+                    break;
+                case "-v":
+                    options.put("--verbose", "");
+                    break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        if (i + 1 == args.length) {
+                            throw new UsageException("Missing value of " + args[i]);
+                        }
+                        options.put(args[i], args[++i]);
+                    } else {
+                        arguments.add(args[i]);
+                    }
+            }
+        }
+        EngineLog.setSink(new EngineLog.ConsoleSink(options.containsKey("--verbose") ? EngineLog.DEBUG : EngineLog.INFO));
+        BackupCli cli = new BackupCli(options, arguments);
+        try {
+            // fail before anything is written
+            for (String name : BackupCli.INT_OPTIONS) {
+                cli.getIntOption(name, 0);
+            }
+            switch (args[0]) {
+                case "backup":
+                    cli.backup();
+                    return 0;
+                case "restore":
+                    cli.restore();
+                    return 0;
+                case "generate":
+                    cli.generate();
+                    return 0;
+                default:
+                    throw new UsageException("Unknown command " + args[0]);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new UsageException(e.getMessage());
+        } catch (IOException | JSONException | Crypto.CryptoSetupException e) {
+            EngineLog.e(BackupCli.TAG, String.format("%s failed: %s", args[0], e), e);
+            return 1;
+        }
+    }
+
+    private void backup() throws UsageException, IOException, JSONException, Crypto.CryptoSetupException {
+        if (this.arguments.size() < 3) {
+            throw new UsageException("Missing arguments");
+        }
+        File backupDir = new File(this.arguments.get(0));
+        String packageName = this.arguments.get(1);
+        Map<String, File> components = new LinkedHashMap<>();
+        for (String argument : this.arguments.subList(2, this.arguments.size())) {
+            int separator = argument.indexOf('=');
+            if (separator < 0 || !Arrays.asList(BackupLayout.getComponents()).contains(argument.substring(0, separator))) {
+                throw new UsageException("Invalid component " + argument);
+            }
+            File directory = new File(argument.substring(separator + 1));
+            if (!directory.isDirectory()) {
+                throw new UsageException("Not a directory: " + directory);
+            }
+            components.put(argument.substring(0, separator), directory);
+        }
+        String codecName = this.options.getOrDefault("--codec", CompressionCodec.DEFAULT.getName());
+        CompressionCodec codec = CompressionCodec.fromName(codecName);
+        if (!codec.getName().equals(codecName)) {
+            throw new UsageException("Unknown codec " + codecName);
+        }
+        boolean encrypted = !this.getPassword().isEmpty();
+        if (encrypted) {
+            this.encryptionAlgorithm = this.getEncryptionAlgorithm();
+        }
+        File appBackupFolder = new File(backupDir, packageName);
+        if (!appBackupFolder.isDirectory() && !appBackupFolder.mkdirs()) {
+            throw new IOException("Could not create " + appBackupFolder);
+        }
+        this.deleteBackup(appBackupFolder, packageName);
+        ExclusionRules exclusions = this.getExclusionRules(packageName);
+        Map<String, PhaseStats> stats = new HashMap<>();
+        for (Map.Entry<String, File> component : components.entrySet()) {
+            File target = this.options.containsKey("--chunks")
+                    ? new File(appBackupFolder, BackupLayout.getChunkListName(component.getKey()))
+                    : new File(appBackupFolder, BackupLayout.getArchiveName(component.getKey(), codec, encrypted));
+            EngineLog.i(BackupCli.TAG, String.format("%s: Backing up %s to %s", packageName, component.getValue(), target));
+            PhaseStats archiveStats = new PhaseStats();
+            long startNanos = System.nanoTime();
+            try (TarArchiveOutputStream archive = this.createArchive(backupDir, target, codec, archiveStats)) {
+                TarUtils.addFilepathAs(archive, component.getValue(), component.getKey(), exclusions, null);
+            }
+            PhaseStats componentStats = stats.computeIfAbsent(component.getKey(), k -> new PhaseStats());
+            componentStats.addArchive(archiveStats, PhaseStats.Phase.TAR, startNanos);
+            EngineLog.d(BackupCli.TAG, String.format("%s: %s: %s", packageName, component.getKey(), componentStats));
+        }
+        File dataDir = components.getOrDefault(BackupLayout.DATA, components.values().iterator().next());
+        File deviceProtectedDataDir = components.get(BackupLayout.DEVICE_PROTECTED_FILES);
+        new BackupLog(packageName, packageName, "", 0, "", null, dataDir.getAbsolutePath(),
+                deviceProtectedDataDir != null ? deviceProtectedDataDir.getAbsolutePath() : null,
+                System.currentTimeMillis(), encrypted, encrypted ? this.encryptionAlgorithm.getName() : null, false, BackupLog.MODE_DATA, codec.getName(), 0, null, null, stats
+        ).write(appBackupFolder);
+        if (exclusions.getExcludedEntries() > 0) {
+            EngineLog.i(BackupCli.TAG, String.format("%s: Excluded %d entries with %d bytes",
+                    packageName, exclusions.getExcludedEntries(), exclusions.getExcludedBytes()));
+        }
+    }
+
+    private void restore() throws UsageException, IOException, JSONException, Crypto.CryptoSetupException {
+        if (this.arguments.size() != 3) {
+            throw new UsageException("Wrong number of arguments");
+        }
+        File backupDir = new File(this.arguments.get(0));
+        String packageName = this.arguments.get(1);
+        File targetDir = new File(this.arguments.get(2));
+        File appBackupFolder = new File(backupDir, packageName);
+        BackupLog backupLog = BackupLog.read(appBackupFolder, packageName);
+        if ((backupLog.getBackupMode() & BackupLog.MODE_DATA) != BackupLog.MODE_DATA) {
+            throw new IOException("Backup doesn't contain data");
+        }
+        if (backupLog.isEncrypted() && this.getPassword().isEmpty()) {
+            throw new UsageException("Backup is encrypted, but no password is given");
+        }
+        if (!targetDir.isDirectory() && !targetDir.mkdirs()) {
+            throw new IOException("Could not create " + targetDir);
+        }
+        CompressionCodec loggedCodec = CompressionCodec.fromName(backupLog.getCompressionType());
+        ExclusionRules exclusions = this.getExclusionRules(packageName);
+        for (String component : BackupLayout.getComponents()) {
+            List<File> archives = BackupLayout.findArchiveChain(appBackupFolder, component, backupLog.isEncrypted(),
+                    loggedCodec, backupLog.getIncrementLevel());
+            if (archives.isEmpty()) {
+                continue;
+            }
+            // increments overwrite the older versions of the files they contain
+            PhaseStats componentStats = new PhaseStats();
+            for (File archive : archives) {
+                EngineLog.i(BackupCli.TAG, String.format("%s: Restoring %s to %s", packageName, archive, targetDir));
+                PhaseStats archiveStats = new PhaseStats();
+                long startNanos = System.nanoTime();
+                try (InputStream in = this.openArchive(backupDir, archive, loggedCodec, archiveStats)) {
+                    TarUtils.uncompressTo(new TarArchiveInputStream(in), targetDir, exclusions);
+                } catch (ChunkStore.ChunkUnavailableException e) {
+                    throw new IOException(e.getMessage(), e.getCause());
+                }
+                componentStats.addArchive(archiveStats, PhaseStats.Phase.EXTRACT, startNanos);
+            }
+            EngineLog.d(BackupCli.TAG, String.format("%s: %s: %s", packageName, component, componentStats));
+            File manifestFile = new File(appBackupFolder, BackupLayout.getManifestFileName(packageName));
+            if (backupLog.getIncrementLevel() > 0 && manifestFile.exists()) {
+                BackupManifest manifest = BackupManifest.read(manifestFile);
+                if (manifest.contains(component)) {
+                    int removed = manifest.removeUnlisted(new File(targetDir, component), component);
+                    EngineLog.d(BackupCli.TAG, String.format("%s: Removed %d deleted files from %s", packageName, removed, component));
+                }
+            }
+        }
+    }
+
+    private void generate() throws UsageException, IOException {
+        if (this.arguments.size() != 2) {
+            throw new UsageException("Wrong number of arguments");
+        }
+        File profileFile = new File(this.arguments.get(0));
+        SyntheticProfile profile = profileFile.isFile()
+                ? SyntheticProfile.load(profileFile)
+                : SyntheticProfile.loadBundled(this.arguments.get(0));
+        SyntheticAppData appData = SyntheticAppData.generate(profile, new File(this.arguments.get(1)),
+                this.options.containsKey("--seed") ? this.getIntOption("--seed", 0) : profile.getSeed());
+        StringBuilder backupArguments = new StringBuilder(profile.getPackageName());
+        for (Map.Entry<String, File> component : appData.getComponentDirs().entrySet()) {
+            backupArguments.append(' ').append(component.getKey()).append('=').append(component.getValue().getAbsolutePath());
+        }
+        System.out.println(backupArguments);
+    }
+
+    /**
+     * Removes the data archives and the manifest of an existing backup, which might have been
+     * created with other settings. The chunks are left in the chunk store.
+     */
+    private void deleteBackup(File appBackupFolder, String packageName) throws IOException {
+        File[] files = appBackupFolder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            boolean isArchive = false;
+            for (String component : BackupLayout.getComponents()) {
+                isArchive |= file.getName().startsWith(component + '.');
+            }
+            if ((isArchive || file.getName().equals(BackupLayout.getManifestFileName(packageName))) && !file.delete()) {
+                throw new IOException("Could not delete " + file);
+            }
+        }
+    }
+
+    private TarArchiveOutputStream createArchive(File backupDir, File target, CompressionCodec codec, PhaseStats stats)
+            throws IOException, Crypto.CryptoSetupException {
+        int pipelineDepth = this.getIntOption("--pipeline", ArchiveStreams.DEFAULT_PIPELINE_DEPTH);
+        OutputStream out;
+        if (BackupLayout.isChunkList(target)) {
+            ChunkFormat format = new ChunkFormat(codec, this.getPassword(), this.getSalt(), this.encryptionAlgorithm);
+            out = new ChunkingOutputStream(new ChunkStore(backupDir), target, format, chunk -> {
+                try {
+                    return this.encodeStream(chunk, codec, 1, 0, stats);
+                } catch (Crypto.CryptoSetupException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            });
+            if (pipelineDepth > 0) {
+                out = new PipelineOutputStream(out, "chunk", pipelineDepth, stats);
+            }
+        } else {
+            out = this.encodeStream(new BufferedOutputStream(new FileOutputStream(target, false)), codec,
+                    this.getIntOption("--threads", 1), pipelineDepth, stats);
+        }
+        return ArchiveStreams.openTar(out, !this.options.containsKey("--no-adaptive"));
+    }
+
+    private OutputStream encodeStream(OutputStream out, CompressionCodec codec, int threads, int pipelineDepth, PhaseStats stats)
+            throws IOException, Crypto.CryptoSetupException {
+        return ArchiveStreams.encode(out, this.getPassword(), this.getSalt(), this.encryptionAlgorithm, codec,
+                codec.getLevel(this.getIntOption("--level", codec.getDefaultLevel())), threads,
+                ParallelGzipOutputStream.getBlockSize(this.getIntOption("--block-size", 1024)), pipelineDepth, stats);
+    }
+
+    private InputStream openArchive(File backupDir, File archive, CompressionCodec loggedCodec, PhaseStats stats)
+            throws IOException, Crypto.CryptoSetupException {
+        int pipelineDepth = this.getIntOption("--pipeline", ArchiveStreams.DEFAULT_PIPELINE_DEPTH);
+        CompressionCodec codec = CompressionCodec.fromArchiveName(archive.getName());
+        if (codec == null && BackupLayout.isChunkList(archive)) {
+            codec = ChunkStore.readCodec(archive);
+        }
+        if (codec == null) {
+            codec = loggedCodec;
+        }
+        final CompressionCodec chunkCodec = codec;
+        if (BackupLayout.isChunkList(archive)) {
+            InputStream in = new ChunkStore(backupDir).open(archive, chunk -> {
+                try {
+                    return ArchiveStreams.decode(chunk, this.getPassword(), this.getSalt(), chunkCodec, 0, 1, stats);
+                } catch (Crypto.CryptoSetupException e) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            });
+            return pipelineDepth > 0 ? new PipelineInputStream(in, "chunk", pipelineDepth, stats) : in;
+        }
+        return ArchiveStreams.decode(new BufferedInputStream(new FileInputStream(archive)), this.getPassword(), this.getSalt(),
+                codec, pipelineDepth, this.getIntOption("--threads", 1), stats);
+    }
+
+    private ExclusionRules getExclusionRules(String packageName) throws IOException {
+        boolean excludeCache = this.options.containsKey("--exclude-cache");
+        String rulesFile = this.options.get("--exclusions");
+        return rulesFile != null ? ExclusionRules.load(new File(rulesFile), packageName, excludeCache) : ExclusionRules.defaults(excludeCache);
+    }
+
+    private String getPassword() {
+        String variable = this.options.get("--password-env");
+        String password = variable != null ? System.getenv(variable) : null;
+        return password != null ? password : "";
+    }
+
+    private EncryptionAlgorithm getEncryptionAlgorithm() throws UsageException {
+        String name = this.options.getOrDefault("--cipher", EncryptionAlgorithm.DEFAULT.getName());
+        if (name.equals("auto")) {
+            return CipherBenchmark.selectFastest();
+        }
+        EncryptionAlgorithm algorithm = EncryptionAlgorithm.fromName(name);
+        if (algorithm == null) {
+            throw new UsageException("Unknown cipher " + name);
+        }
+        if (!algorithm.isAvailable()) {
+            throw new UsageException(name + " is not supported by this JVM");
+        }
+        return algorithm;
+    }
+
+    private byte[] getSalt() {
+        // the same as PrefUtils.getCryptoSalt of the app
+        String salt = this.options.get("--salt");
+        return salt != null && !salt.isEmpty() ? salt.getBytes(StandardCharsets.UTF_8) : Crypto.FALLBACK_SALT;
+    }
+
+    private int getIntOption(String name, int defaultValue) {
+        String value = this.options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Invalid value of %s: %s", name, value), e);
+        }
+    }
+
+    public static class UsageException extends Exception {
+        public UsageException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.cli;
+
+import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.EngineLog;
+import com.machiav3lli.backup.handler.BackupLayout;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Creates the apks and data of an app as described by a {@link SyntheticProfile}. The same
+ * profile and seed always create the same files with the same modification times, so
+ * benchmarks and regression tests run on identical inputs.
+ * <p>
+ * The files are laid out like on a device below the given root, e.g. the data component in
+ * root/data/data/[package] and the obb files in root/storage/emulated/0/Android/obb/[package].
+ */
+public class SyntheticAppData {
+    // 2020-09-01, all files are a bit older
+    private static final long BASE_TIME = 1598918400000L;
+    private static final long MAX_AGE = 90L * 24 * 60 * 60 * 1000;
+    private static final int PAGE_SIZE = 4096;
+    private static final String[] WORDS = {
+            "last_sync", "user_id", "session", "token", "enabled", "notification", "theme", "cache_size",
+            "version", "install_time", "account", "feature_flag", "function", "return", "var", "const",
+            "window", "document", "null", "true", "false", "0", "1", "42", "https://example.com/api/v2"
+    };
+    private static final String[] SPLIT_NAMES = {"config.arm64_v8a", "config.xxhdpi", "config.en", "config.de", "config.fr"};
+    private static final byte[] JPEG_MAGIC = {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0};
+    private static final byte[] MP4_MAGIC = {0, 0, 0, 0x20, 'f', 't', 'y', 'p', 'i', 's', 'o', 'm'};
+    private static final byte[] SQLITE_MAGIC = "SQLite format 3\0".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] WAL_MAGIC = {0x37, 0x7f, 0x06, (byte) 0x82};
+    private static final byte[] DEX_MAGIC = "dex\n035\0".getBytes(StandardCharsets.US_ASCII);
+    private static final String TAG = Constants.classTag(".SyntheticAppData");
+    private final SyntheticProfile profile;
+    private final File root;
+    private final Map<String, File> componentDirs = new LinkedHashMap<>();
+    private final List<File> apks = new ArrayList<>();
+    private long bytes;
+    private int files;
+    private int symlinks;
+
+    private SyntheticAppData(SyntheticProfile profile, File root) {
+        this.profile = profile;
+        this.root = root;
+    }
+
+    /**
+     * Creates the files of a profile with the profile's seed.
+     *
+     * @see #generate(SyntheticProfile, File, long)
+     */
+    public static SyntheticAppData generate(SyntheticProfile profile, File root) throws IOException {
+        return SyntheticAppData.generate(profile, root, profile.getSeed());
+    }
+
+    /**
+     * Creates the files of a profile.
+     *
+     * @param profile the profile to create
+     * @param root    the directory to create the device like layout in. Existing files are overwritten.
+     * @param seed    the seed of the content
+     * @return the created files' locations and statistics
+     * @throws IOException if the files could not be written
+     */
+    public static SyntheticAppData generate(SyntheticProfile profile, File root, long seed) throws IOException {
+        SyntheticAppData appData = new SyntheticAppData(profile, root);
+        for (String section : profile.getSectionNames()) {
+            // every section has its own random numbers, so changing one section doesn't change the others
+            Random random = new Random(seed * 31 + section.hashCode());
+            if (section.equals(SyntheticProfile.APK)) {
+                appData.generateApks(profile.getItems(section), random);
+            } else {
+                appData.generateComponent(section, profile.getItems(section), random);
+            }
+        }
+        appData.fixDirectoryTimes();
+        EngineLog.i(SyntheticAppData.TAG, String.format("%s: Created %d files with %d bytes and %d symlinks in %s",
+                profile.getPackageName(), appData.files, appData.bytes, appData.symlinks, root));
+        return appData;
+    }
+
+    /**
+     * Returns a data component's directory in the device like layout.
+     *
+     * @param root        the root of the layout
+     * @param component   the data component, e.g. data
+     * @param packageName the app's package name
+     */
+    public static File getComponentDir(File root, String component, String packageName) {
+        switch (component) {
+            case BackupLayout.DATA:
+                return new File(root, "data/data/" + packageName);
+            case BackupLayout.DEVICE_PROTECTED_FILES:
+                return new File(root, "data/user_de/0/" + packageName);
+            case BackupLayout.EXTERNAL_FILES:
+                return new File(root, "storage/emulated/0/Android/data/" + packageName);
+            case BackupLayout.OBB_FILES:
+                return new File(root, "storage/emulated/0/Android/obb/" + packageName);
+            default:
+                throw new IllegalArgumentException("Unknown component " + component);
+        }
+    }
+
+    public static File getApkDir(File root, String packageName) {
+        return new File(root, "data/app/" + packageName + "-1");
+    }
+
+    /**
+     * @return the directories of the created data components by their names
+     */
+    public Map<String, File> getComponentDirs() {
+        return this.componentDirs;
+    }
+
+    public List<File> getApks() {
+        return this.apks;
+    }
+
+    /**
+     * @return the size of all created files in bytes
+     */
+    public long getBytes() {
+        return this.bytes;
+    }
+
+    public int getFiles() {
+        return this.files;
+    }
+
+    public int getSymlinks() {
+        return this.symlinks;
+    }
+
+    private void generateApks(List<SyntheticProfile.Item> items, Random random) throws IOException {
+        File apkDir = SyntheticAppData.getApkDir(this.root, this.profile.getPackageName());
+        for (SyntheticProfile.Item item : items) {
+            for (int i = 0; i < item.getCount(); i++) {
+                String name;
+                if (item.getKind().equals("base")) {
+                    name = "base.apk";
+                } else {
+                    name = "split_" + (i < SyntheticAppData.SPLIT_NAMES.length ? SyntheticAppData.SPLIT_NAMES[i] : "feature" + i) + ".apk";
+                }
+                File apk = new File(apkDir, name);
+                this.writeApk(apk, SyntheticAppData.pickSize(item, random), random);
+                this.apks.add(apk);
+            }
+        }
+    }
+
+    private void generateComponent(String component, List<SyntheticProfile.Item> items, Random random) throws IOException {
+        String packageName = this.profile.getPackageName();
+        File dir = SyntheticAppData.getComponentDir(this.root, component, packageName);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        this.componentDirs.put(component, dir);
+        // the targets of symlinks
+        List<File> regularFiles = new ArrayList<>();
+        for (SyntheticProfile.Item item : items) {
+            for (int i = 0; i < item.getCount(); i++) {
+                switch (item.getKind()) {
+                    case "shared_prefs":
+                        String prefsName = i == 0 ? packageName + "_preferences.xml" : "prefs" + i + ".xml";
+                        regularFiles.add(this.writePreferences(new File(dir, "shared_prefs/" + prefsName), SyntheticAppData.pickSize(item, random), random));
+                        break;
+                    case "databases":
+                        regularFiles.add(this.writeDatabase(new File(dir, "databases/db" + i + ".db"), SyntheticAppData.pickSize(item, random), random));
+                        break;
+                    case "webview_cache":
+                        // the chromium simple cache names its entries by a hash of the url
+                        String entryName = String.format("%016x_0", random.nextLong());
+                        File entry = new File(dir, "app_webview/Default/Cache/" + entryName);
+                        regularFiles.add(this.writeCacheEntry(entry, SyntheticAppData.pickSize(item, random), random));
+                        break;
+                    case "files":
+                        regularFiles.add(this.writeContentFile(dir, item.getContent(), i, SyntheticAppData.pickSize(item, random), random));
+                        break;
+                    case "obb":
+                        String prefix = i == 0 ? "main" : i == 1 ? "patch" : "extra" + i;
+                        File obb = new File(dir, String.format("%s.%d.%s.obb", prefix, this.profile.getVersionCode(), packageName));
+                        regularFiles.add(this.writeRandom(obb, SyntheticAppData.pickSize(item, random), null, random));
+                        break;
+                    case "symlinks":
+                        this.writeSymlink(component, dir, i, regularFiles, random);
+                        break;
+                }
+            }
+        }
+    }
+
+    private static long pickSize(SyntheticProfile.Item item, Random random) {
+        long range = item.getMaxSize() - item.getMinSize();
+        return item.getMinSize() + (range == 0 ? 0 : (long) (random.nextDouble() * (range + 1)));
+    }
+
+    private OutputStream open(File file) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        this.files++;
+        return new BufferedOutputStream(new FileOutputStream(file));
+    }
+
+    /**
+     * Sets the modification time of a written file and counts its size.
+     */
+    private File finish(File file, Random random) throws IOException {
+        long age = (long) (random.nextDouble() * SyntheticAppData.MAX_AGE);
+        // in seconds like in tar headers
+        Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis((SyntheticAppData.BASE_TIME - age) / 1000 * 1000));
+        this.bytes += file.length();
+        return file;
+    }
+
+    private File writePreferences(File file, long size, Random random) throws IOException {
+        StringBuilder xml = new StringBuilder("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n<map>\n");
+        String end = "</map>\n";
+        for (int key = 0; ; key++) {
+            String name = SyntheticAppData.WORDS[random.nextInt(12)] + '_' + key;
+            String element;
+            switch (random.nextInt(4)) {
+                case 0:
+                    element = String.format("    <boolean name=\"%s\" value=\"%b\" />\n", name, random.nextBoolean());
+                    break;
+                case 1:
+                    element = String.format("    <long name=\"%s\" value=\"%d\" />\n", name, SyntheticAppData.BASE_TIME - random.nextInt(Integer.MAX_VALUE));
+                    break;
+                default:
+                    element = String.format("    <string name=\"%s\">%s</string>\n", name, SyntheticAppData.words(random, 1 + random.nextInt(12)));
+            }
+            if (xml.length() + element.length() + end.length() > size) {
+                break;
+            }
+            xml.append(element);
+        }
+        xml.append(end);
+        try (OutputStream out = this.open(file)) {
+            out.write(xml.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return this.finish(file, random);
+    }
+
+    private static String words(Random random, int count) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(SyntheticAppData.WORDS[random.nextInt(SyntheticAppData.WORDS.length)]);
+        }
+        return text.toString();
+    }
+
+    private void writeText(OutputStream out, long size, Random random) throws IOException {
+        long written = 0;
+        while (written < size) {
+            byte[] line = (SyntheticAppData.words(random, 1 + random.nextInt(16)) + '\n').getBytes(StandardCharsets.UTF_8);
+            int length = (int) Math.min(line.length, size - written);
+            out.write(line, 0, length);
+            written += length;
+        }
+    }
+
+    private void writeRandom(OutputStream out, long size, Random random) throws IOException {
+        byte[] buffer = new byte[65536];
+        long written = 0;
+        while (written < size) {
+            random.nextBytes(buffer);
+            int length = (int) Math.min(buffer.length, size - written);
+            out.write(buffer, 0, length);
+            written += length;
+        }
+    }
+
+    private File writeRandom(File file, long size, byte[] magic, Random random) throws IOException {
+        try (OutputStream out = this.open(file)) {
+            long written = 0;
+            if (magic != null) {
+                written = Math.min(magic.length, size);
+                out.write(magic, 0, (int) written);
+            }
+            this.writeRandom(out, size - written, random);
+        }
+        return this.finish(file, random);
+    }
+
+    private File writeContentFile(File dir, String content, int index, long size, Random random) throws IOException {
+        switch (content) {
+            case "text":
+                File textFile = new File(dir, "files/text/file" + index + ".txt");
+                try (OutputStream out = this.open(textFile)) {
+                    this.writeText(out, size, random);
+                }
+                return this.finish(textFile, random);
+            case "jpeg":
+                return this.writeRandom(new File(dir, "files/images/img" + index + ".jpg"), size, SyntheticAppData.JPEG_MAGIC, random);
+            case "mp4":
+                return this.writeRandom(new File(dir, "files/video/vid" + index + ".mp4"), size, SyntheticAppData.MP4_MAGIC, random);
+            default:
+                return this.writeRandom(new File(dir, "files/blobs/blob" + index + ".bin"), size, null, random);
+        }
+    }
+
+    /**
+     * Writes a database in WAL mode: the database, its write-ahead log with the pages changed
+     * since the last checkpoint and the shared memory index.
+     */
+    private File writeDatabase(File file, long size, Random random) throws IOException {
+        long pages = Math.max(1, size / SyntheticAppData.PAGE_SIZE);
+        byte[] page = new byte[SyntheticAppData.PAGE_SIZE];
+        try (OutputStream out = this.open(file)) {
+            for (long i = 0; i < pages; i++) {
+                SyntheticAppData.fillPage(page, random);
+                if (i == 0) {
+                    System.arraycopy(SyntheticAppData.SQLITE_MAGIC, 0, page, 0, SyntheticAppData.SQLITE_MAGIC.length);
+                }
+                out.write(page);
+            }
+        }
+        File wal = new File(file.getPath() + "-wal");
+        try (OutputStream out = this.open(wal)) {
+            byte[] header = new byte[32];
+            random.nextBytes(header);
+            System.arraycopy(SyntheticAppData.WAL_MAGIC, 0, header, 0, SyntheticAppData.WAL_MAGIC.length);
+            out.write(header);
+            byte[] frameHeader = new byte[24];
+            for (long i = random.nextInt((int) Math.min(pages / 4 + 1, 1024)); i >= 0; i--) {
+                random.nextBytes(frameHeader);
+                out.write(frameHeader);
+                SyntheticAppData.fillPage(page, random);
+                out.write(page);
+            }
+        }
+        this.finish(wal, random);
+        File shm = new File(file.getPath() + "-shm");
+        try (OutputStream out = this.open(shm)) {
+            byte[] index = new byte[32768];
+            byte[] header = new byte[136];
+            random.nextBytes(header);
+            System.arraycopy(header, 0, index, 0, header.length);
+            out.write(index);
+        }
+        this.finish(shm, random);
+        return this.finish(file, random);
+    }
+
+    private static void fillPage(byte[] page, Random random) {
+        // records of text at the end of the page, free space in front of them
+        Arrays.fill(page, (byte) 0);
+        int used = random.nextInt(page.length);
+        for (int i = page.length - used; i < page.length; i++) {
+            page[i] = (byte) ('a' + random.nextInt(16));
+        }
+    }
+
+    private File writeCacheEntry(File file, long size, Random random) throws IOException {
+        // responses are scripts and pages or already compressed images
+        boolean isText = random.nextBoolean();
+        byte[] header = String.format("HTTP/1.1 200\ncontent-type: %s\ncontent-length: %d\n\n",
+                isText ? "application/javascript" : "image/webp", size).getBytes(StandardCharsets.US_ASCII);
+        try (OutputStream out = this.open(file)) {
+            out.write(header);
+            if (isText) {
+                this.writeText(out, size, random);
+            } else {
+                this.writeRandom(out, size, random);
+            }
+        }
+        return this.finish(file, random);
+    }
+
+    private void writeSymlink(String component, File dir, int index, List<File> regularFiles, Random random) throws IOException {
+        Path link;
+        Path target;
+        if (index == 0 && component.equals(BackupLayout.DATA)) {
+            // like on a device, the native libraries are linked from the installation
+            link = new File(dir, "lib").toPath();
+            target = Paths.get("/data/app/" + this.profile.getPackageName() + "-1/lib/arm64");
+        } else {
+            link = new File(dir, "files/links/link" + index).toPath();
+            target = regularFiles.isEmpty()
+                    ? Paths.get("missing" + index)
+                    : link.getParent().relativize(regularFiles.get(random.nextInt(regularFiles.size())).toPath());
+        }
+        Files.createDirectories(link.getParent());
+        Files.deleteIfExists(link);
+        Files.createSymbolicLink(link, target);
+        this.symlinks++;
+    }
+
+    private void writeApk(File file, long size, Random random) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(this.open(file))) {
+            // the content is random, spending time to compress it is useless
+            zip.setLevel(Deflater.BEST_SPEED);
+            ZipEntry manifest = new ZipEntry("AndroidManifest.xml");
+            manifest.setTime(SyntheticAppData.BASE_TIME);
+            zip.putNextEntry(manifest);
+            this.writeText(zip, Math.min(size, 4096), random);
+            zip.closeEntry();
+            ZipEntry dex = new ZipEntry("classes.dex");
+            dex.setTime(SyntheticAppData.BASE_TIME);
+            zip.putNextEntry(dex);
+            zip.write(SyntheticAppData.DEX_MAGIC);
+            this.writeRandom(zip, Math.max(0, size - 4096 - SyntheticAppData.DEX_MAGIC.length), random);
+            zip.closeEntry();
+        }
+        this.finish(file, random);
+    }
+
+    /**
+     * Gives all created directories and symlinks the same modification time, because creating
+     * the files changed them.
+     */
+    private void fixDirectoryTimes() throws IOException {
+        FileTime time = FileTime.fromMillis(SyntheticAppData.BASE_TIME);
+        List<File> dirs = new ArrayList<>(this.componentDirs.values());
+        if (!this.apks.isEmpty()) {
+            dirs.add(SyntheticAppData.getApkDir(this.root, this.profile.getPackageName()));
+        }
+        for (File dir : dirs) {
+            Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (attrs.isSymbolicLink()) {
+                        Files.getFileAttributeView(file, BasicFileAttributeView.class, LinkOption.NOFOLLOW_LINKS).setTimes(time, null, null);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    if (exc != null) {
+                        throw exc;
+                    }
+                    Files.setLastModifiedTime(dir, time);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+}
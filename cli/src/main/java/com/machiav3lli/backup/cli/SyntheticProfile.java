@@ -0,0 +1,261 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.cli;
+
+import com.machiav3lli.backup.handler.BackupLayout;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Describes the synthetic data of an app, which is created by {@link SyntheticAppData}.
+ * <p>
+ * A profile is a text file. The header sets the app's {@code package}, {@code version} and the
+ * {@code seed} of the content. It's followed by a section for each part of the app, i.e.
+ * {@code [apk]} and the data components like {@code [data]} or {@code [obb_files]}. Every line
+ * of a section adds files of one kind: {@code <kind> <count> <size>[-<maxSize>] [<content>]}.
+ * Sizes may end with K, M or G, the size of each file is picked between size and maxSize.
+ * <p>
+ * Kinds:
+ * <ul>
+ * <li>{@code shared_prefs}: preference XMLs</li>
+ * <li>{@code databases}: SQLite databases with WAL and shared memory files</li>
+ * <li>{@code webview_cache}: entries of WebView's HTTP cache</li>
+ * <li>{@code files}: files with text, jpeg, mp4 or random content</li>
+ * <li>{@code symlinks}: links to other files and the app's native library directory, without size</li>
+ * <li>{@code obb}: expansion files</li>
+ * <li>{@code base} and {@code splits}: the apks, only in the apk section</li>
+ * </ul>
+ * Empty lines and lines starting with # are ignored.
+ */
+public class SyntheticProfile {
+    public static final String APK = "apk";
+    private static final List<String> APK_KINDS = Arrays.asList("base", "splits");
+    private static final List<String> DATA_KINDS = Arrays.asList(
+            "shared_prefs", "databases", "webview_cache", "files", "symlinks", "obb");
+    private static final List<String> CONTENTS = Arrays.asList("text", "jpeg", "mp4", "random");
+    private final Map<String, List<Item>> sections = new LinkedHashMap<>();
+    private String packageName = "com.example.synthetic";
+    private int versionCode = 1;
+    private long seed = 1;
+
+    private SyntheticProfile() {
+    }
+
+    /**
+     * Reads a profile file.
+     *
+     * @param profileFile the profile
+     * @throws IOException if the profile could not be read or is malformed
+     */
+    public static SyntheticProfile load(File profileFile) throws IOException {
+        try (InputStream in = new FileInputStream(profileFile)) {
+            return SyntheticProfile.load(in);
+        }
+    }
+
+    /**
+     * Reads one of the profiles shipped with the CLI, e.g. messenger, game or gallery.
+     *
+     * @param name the profile's name
+     * @throws IOException if there is no such profile
+     */
+    public static SyntheticProfile loadBundled(String name) throws IOException {
+        try (InputStream in = SyntheticProfile.class.getResourceAsStream("/profiles/" + name + ".profile")) {
+            if (in == null) {
+                throw new IOException("Unknown profile " + name);
+            }
+            return SyntheticProfile.load(in);
+        }
+    }
+
+    public static SyntheticProfile load(InputStream in) throws IOException {
+        SyntheticProfile profile = new SyntheticProfile();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        List<String> components = Arrays.asList(BackupLayout.getComponents());
+        List<Item> section = null;
+        String sectionName = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] words = line.split("\\s+");
+            if (line.startsWith("[") && line.endsWith("]")) {
+                sectionName = line.substring(1, line.length() - 1).trim();
+                if (!sectionName.equals(SyntheticProfile.APK) && !components.contains(sectionName)) {
+                    throw new IOException("Unknown section in profile: " + line);
+                }
+                section = profile.sections.computeIfAbsent(sectionName, name -> new ArrayList<>());
+            } else if (section == null) {
+                profile.readHeader(line, words);
+            } else {
+                boolean isApk = sectionName.equals(SyntheticProfile.APK);
+                if (!(isApk ? SyntheticProfile.APK_KINDS : SyntheticProfile.DATA_KINDS).contains(words[0])) {
+                    throw new IOException("Unknown kind in profile: " + line);
+                }
+                section.add(SyntheticProfile.parseItem(line, words));
+            }
+        }
+        return profile;
+    }
+
+    private void readHeader(String line, String[] words) throws IOException {
+        if (words.length != 2) {
+            throw new IOException("Invalid line in profile: " + line);
+        }
+        try {
+            switch (words[0]) {
+                case "package":
+                    this.packageName = words[1];
+                    break;
+                case "version":
+                    this.versionCode = Integer.parseInt(words[1]);
+                    break;
+                case "seed":
+                    this.seed = Long.parseLong(words[1]);
+                    break;
+                default:
+                    throw new IOException("Invalid line in profile: " + line);
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid line in profile: " + line, e);
+        }
+    }
+
+    private static Item parseItem(String line, String[] words) throws IOException {
+        // the base apk has no count, symlinks have no size
+        boolean isBase = words[0].equals("base");
+        boolean isSymlinks = words[0].equals("symlinks");
+        int sizeIndex = isBase ? 1 : 2;
+        int expectedWords = isSymlinks ? 2 : sizeIndex + 1;
+        String content = "random";
+        if (words.length == expectedWords + 1 && words[0].equals("files")) {
+            content = words[expectedWords].toLowerCase(Locale.ROOT);
+            if (!SyntheticProfile.CONTENTS.contains(content)) {
+                throw new IOException("Unknown content in profile: " + line);
+            }
+        } else if (words.length != expectedWords) {
+            throw new IOException("Invalid line in profile: " + line);
+        }
+        try {
+            int count = isBase ? 1 : Integer.parseInt(words[1]);
+            long minSize = 0;
+            long maxSize = 0;
+            if (!isSymlinks) {
+                String[] sizes = words[sizeIndex].split("-", 2);
+                minSize = SyntheticProfile.parseSize(sizes[0]);
+                maxSize = sizes.length == 2 ? SyntheticProfile.parseSize(sizes[1]) : minSize;
+            }
+            if (count < 0 || minSize > maxSize) {
+                throw new IOException("Invalid line in profile: " + line);
+            }
+            return new Item(words[0], count, minSize, maxSize, content);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IOException("Invalid line in profile: " + line, e);
+        }
+    }
+
+    private static long parseSize(String size) {
+        long factor = 1;
+        switch (Character.toUpperCase(size.charAt(size.length() - 1))) {
+            case 'K':
+                factor = 1024;
+                break;
+            case 'M':
+                factor = 1024 * 1024;
+                break;
+            case 'G':
+                factor = 1024 * 1024 * 1024;
+                break;
+        }
+        return Long.parseLong(factor == 1 ? size : size.substring(0, size.length() - 1)) * factor;
+    }
+
+    public String getPackageName() {
+        return this.packageName;
+    }
+
+    public int getVersionCode() {
+        return this.versionCode;
+    }
+
+    public long getSeed() {
+        return this.seed;
+    }
+
+    /**
+     * @return the names of the sections in the order of the profile, e.g. apk and data
+     */
+    public List<String> getSectionNames() {
+        return new ArrayList<>(this.sections.keySet());
+    }
+
+    public List<Item> getItems(String section) {
+        return this.sections.getOrDefault(section, Collections.emptyList());
+    }
+
+    public static class Item {
+        private final String kind;
+        private final int count;
+        private final long minSize;
+        private final long maxSize;
+        private final String content;
+
+        public Item(String kind, int count, long minSize, long maxSize, String content) {
+            this.kind = kind;
+            this.count = count;
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            this.content = content;
+        }
+
+        public String getKind() {
+            return this.kind;
+        }
+
+        public int getCount() {
+            return this.count;
+        }
+
+        public long getMinSize() {
+            return this.minSize;
+        }
+
+        public long getMaxSize() {
+            return this.maxSize;
+        }
+
+        public String getContent() {
+            return this.content;
+        }
+    }
+}
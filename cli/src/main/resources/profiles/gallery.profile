@@ -0,0 +1,17 @@
+# A gallery or camera app: lots of media, a few databases and preferences
+package org.example.gallery
+version 130
+seed 1
+
+[apk]
+base 12M
+
+[data]
+shared_prefs 100 64-8K
+databases 10 1M
+files 1000 8K-64K jpeg
+symlinks 5
+
+[external_files]
+files 300 1M-6M jpeg
+files 20 4M-32M mp4
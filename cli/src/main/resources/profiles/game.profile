@@ -0,0 +1,21 @@
+# A game: few huge files, most of them already compressed
+package org.example.game
+version 87
+seed 1
+
+[apk]
+base 60M
+splits 2 20M-40M
+
+[data]
+shared_prefs 20 1K-16K
+databases 2 16M-48M
+files 50 1M-4M random
+files 1 16M text
+symlinks 1
+
+[external_files]
+files 30 1M-16M random
+
+[obb_files]
+obb 2 64M-256M
@@ -0,0 +1,24 @@
+# A messenger or browser: many small files, databases in WAL mode and a big WebView cache
+package org.example.messenger
+version 4211
+seed 1
+
+[apk]
+base 24M
+splits 3 200K-2M
+
+[data]
+shared_prefs 3000 100-8K
+databases 12 256K-8M
+webview_cache 8000 1K-64K
+files 2000 200-4K text
+files 300 20K-400K jpeg
+symlinks 20
+
+[device_protected_files]
+shared_prefs 20 100-2K
+databases 1 64K
+
+[external_files]
+files 200 100K-2M jpeg
+files 10 2M-8M mp4
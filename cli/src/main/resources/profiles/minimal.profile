@@ -0,0 +1,25 @@
+# A small app with every kind of file, quick enough for regression tests
+package org.example.minimal
+version 1
+seed 1
+
+[apk]
+base 256K
+splits 2 16K-64K
+
+[data]
+shared_prefs 20 100-4K
+databases 2 64K-256K
+webview_cache 50 1K-16K
+files 20 1K-32K text
+files 5 16K-128K jpeg
+symlinks 4
+
+[device_protected_files]
+shared_prefs 2 100-1K
+
+[external_files]
+files 5 16K-64K mp4
+
+[obb_files]
+obb 1 1M
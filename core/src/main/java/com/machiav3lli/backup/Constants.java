@@ -52,9 +52,26 @@ public class Constants {
     public static final String PREFS_PASSWORD = "password";
     public static final String PREFS_PASSWORD_CONFIRMATION = "passwordConfirmation";
     public static final String PREFS_SALT = "salt";
+    public static final String PREFS_ENCRYPTIONALGORITHM = "encryptionAlgorithm";
+    public static final String PREFS_FASTESTENCRYPTIONALGORITHM = "fastestEncryptionAlgorithm";
     public static final String PREFS_EXCLUDECACHE = "excludeCache";
     public static final String PREFS_EXTERNALDATA = "backupExternalData";
     public static final String PREFS_DEVICEPROTECTEDDATA = "backupDeviceProtectedData";
+    public static final String PREFS_STREAMBACKUP = "streamBackup";
+    public static final String PREFS_STREAMRESTORE = "streamRestore";
+    public static final String PREFS_COMPONENTWORKERS = "componentWorkers";
+    public static final String PREFS_BATCHWORKERS = "batchWorkers";
+    public static final String PREFS_BATCHLOOKAHEAD = "batchLookahead";
+    public static final String PREFS_INCREMENTAL = "incrementalBackup";
+    public static final String PREFS_INCREMENTAL_CHAINLENGTH = "incrementalChainLength";
+    public static final String PREFS_CHUNKSTORE = "chunkStore";
+    public static final String PREFS_SKIPUNCHANGEDDATA = "skipUnchangedData";
+    public static final String PREFS_ADAPTIVECOMPRESSION = "adaptiveCompression";
+    public static final String PREFS_COMPRESSIONCODEC = "compressionCodec";
+    public static final String PREFS_COMPRESSIONLEVEL = "compressionLevel";
+    public static final String PREFS_COMPRESSIONTHREADS = "compressionThreads";
+    public static final String PREFS_COMPRESSIONBLOCKSIZE = "compressionBlockSize";
+    public static final String PREFS_PIPELINEDEPTH = "pipelineDepth";
     public static final String PREFS_PATH_BACKUP_DIRECTORY = "pathBackupFolder";
     public static final String PREFS_QUICK_REBOOT = "quickReboot";
     public static final String PREFS_BATCH_DELETE = "batchDelete";
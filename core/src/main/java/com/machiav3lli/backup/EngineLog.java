@@ -0,0 +1,105 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+
+/**
+ * Logging of the backup engine, which doesn't depend on Android.
+ * <p>
+ * On a device the messages go to android.util.Log like the ones of the app. It's looked up at
+ * runtime, so the engine runs on a desktop JVM as well. There warnings and errors are printed to
+ * stderr, unless another sink is set.
+ */
+public final class EngineLog {
+    // the same values as android.util.Log's
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    private static volatile Sink sink = EngineLog.createDefaultSink();
+
+    private EngineLog() {
+    }
+
+    public static void setSink(Sink sink) {
+        EngineLog.sink = sink;
+    }
+
+    public static void d(String tag, String msg) {
+        EngineLog.sink.log(EngineLog.DEBUG, tag, msg);
+    }
+
+    public static void i(String tag, String msg) {
+        EngineLog.sink.log(EngineLog.INFO, tag, msg);
+    }
+
+    public static void w(String tag, String msg) {
+        EngineLog.sink.log(EngineLog.WARN, tag, msg);
+    }
+
+    public static void e(String tag, String msg) {
+        EngineLog.sink.log(EngineLog.ERROR, tag, msg);
+    }
+
+    public static void e(String tag, String msg, Throwable tr) {
+        StringWriter stackTrace = new StringWriter();
+        tr.printStackTrace(new PrintWriter(stackTrace));
+        EngineLog.sink.log(EngineLog.ERROR, tag, msg + '\n' + stackTrace);
+    }
+
+    private static Sink createDefaultSink() {
+        try {
+            Method println = Class.forName("android.util.Log").getMethod("println", int.class, String.class, String.class);
+            return (priority, tag, msg) -> {
+                try {
+                    println.invoke(null, priority, tag, msg);
+                } catch (ReflectiveOperationException e) {
+                    // can't happen, the method has been found
+                }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return new ConsoleSink(EngineLog.WARN);
+        }
+    }
+
+    public interface Sink {
+        void log(int priority, String tag, String msg);
+    }
+
+    /**
+     * Prints the messages of at least the given priority to stderr.
+     */
+    public static class ConsoleSink implements Sink {
+        private static final String PRIORITY_LETTERS = "VVVDIWEA";
+        private final int minPriority;
+
+        public ConsoleSink(int minPriority) {
+            this.minPriority = minPriority;
+        }
+
+        @Override
+        public void log(int priority, String tag, String msg) {
+            if (priority >= this.minPriority) {
+                System.err.println(ConsoleSink.PRIORITY_LETTERS.charAt(priority) + "/" + tag + ": " + msg);
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import java.io.IOException;
+
+/**
+ * A compressor, that can be told to store data without compressing it. Used for content, which
+ * is already compressed like images, videos or zip files, where compression only burns CPU time.
+ */
+public interface AdaptiveCompressor {
+
+    /**
+     * @param storeOnly true to store the following data, false to compress it again
+     * @throws IOException if pending data could not be written
+     */
+    void setStoreOnly(boolean storeOnly) throws IOException;
+}
@@ -0,0 +1,53 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compressor, that switches the deflate level to stored blocks for incompressible content.
+ * The result is a standard gzip file, because deflate allows changing the level between blocks.
+ */
+public class AdaptiveGzipOutputStream extends GZIPOutputStream implements AdaptiveCompressor {
+    private static final int BUFFER_SIZE = 65536;
+    private final int compressionLevel;
+    private boolean storeOnly;
+
+    /**
+     * @param out              the stream to write the compressed data to
+     * @param compressionLevel deflate level or Deflater.DEFAULT_COMPRESSION
+     * @throws IOException if the gzip header could not be written
+     */
+    public AdaptiveGzipOutputStream(OutputStream out, int compressionLevel) throws IOException {
+        super(out, AdaptiveGzipOutputStream.BUFFER_SIZE);
+        this.compressionLevel = compressionLevel;
+        this.def.setLevel(compressionLevel);
+    }
+
+    @Override
+    public void setStoreOnly(boolean storeOnly) {
+        if (this.storeOnly != storeOnly) {
+            this.storeOnly = storeOnly;
+            // takes effect with the next deflate call, the pending input is finished with the old level
+            this.def.setLevel(storeOnly ? Deflater.NO_COMPRESSION : this.compressionLevel);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A tar archive, that passes the hint to store incompressible entries to its compressor.
+ * TarUtils decides for every entry, if it's worth to be compressed.
+ */
+public class AdaptiveTarArchiveOutputStream extends TarArchiveOutputStream {
+    private final AdaptiveCompressor compressor;
+
+    /**
+     * @param out the compressor to write the archive to. If it's not an AdaptiveCompressor,
+     *            all entries are written to it in the same way.
+     */
+    public AdaptiveTarArchiveOutputStream(OutputStream out) {
+        super(out);
+        this.compressor = out instanceof AdaptiveCompressor ? (AdaptiveCompressor) out : null;
+    }
+
+    public void setStoreOnly(boolean storeOnly) throws IOException {
+        if (this.compressor != null) {
+            this.compressor.setStoreOnly(storeOnly);
+        }
+    }
+}
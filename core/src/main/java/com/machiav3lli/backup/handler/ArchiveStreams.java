@@ -0,0 +1,174 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Builds the stream chains of archives, so backups made on the device and by the desktop tools
+ * are the same: the tar stream is compressed, then encrypted, if a password is set.
+ * <p>
+ * With a pipeline depth above 0, compressing and encrypting/writing run on their own threads,
+ * see PipelineOutputStream. The same applies to reading/decrypting and decompressing.
+ * <p>
+ * Given PhaseStats, the stages are metered. The phase, that creates the tar stream or reads it,
+ * is metered by the caller, only its waiting for the stages is subtracted here.
+ */
+public final class ArchiveStreams {
+    public static final int DEFAULT_PIPELINE_DEPTH = 4;
+
+    private ArchiveStreams() {
+    }
+
+    /**
+     * Wraps the given stream to compress and encrypt an archive.
+     *
+     * @param out           the stream to write the archive file to. It's closed on errors.
+     * @param password      the password to encrypt with, null or empty to not encrypt
+     * @param salt          the salt of the key derivation
+     * @param codec         the codec to compress with
+     * @param level         the codec specific compression level
+     * @param threads       number of threads to use, if the codec supports parallel compression,
+     *                      and for encryption
+     * @param blockSize     size of the blocks in bytes, that are compressed in parallel
+     * @param pipelineDepth the queue depth of the pipeline stages, 0 to not use them
+     * @return the stream to write the tar stream to
+     * @throws IOException                 if the compressor could not write its header
+     * @throws Crypto.CryptoSetupException if the cipher could not be initialized
+     */
+    public static OutputStream encode(OutputStream out, String password, byte[] salt, CompressionCodec codec, int level,
+                                      int threads, int blockSize, int pipelineDepth)
+            throws IOException, Crypto.CryptoSetupException {
+        return ArchiveStreams.encode(out, password, salt, codec, level, threads, blockSize, pipelineDepth, null);
+    }
+
+    /**
+     * Like encode without stats, but meters the compression, encryption and writing.
+     *
+     * @param stats the stats to add to, may be null
+     */
+    public static OutputStream encode(OutputStream out, String password, byte[] salt, CompressionCodec codec, int level,
+                                      int threads, int blockSize, int pipelineDepth, PhaseStats stats)
+            throws IOException, Crypto.CryptoSetupException {
+        return ArchiveStreams.encode(out, password, salt, EncryptionAlgorithm.DEFAULT, codec, level, threads, blockSize, pipelineDepth, stats);
+    }
+
+    /**
+     * Like encode with stats, but encrypts with the given algorithm.
+     *
+     * @param algorithm the algorithm to encrypt with, if a password is given
+     */
+    public static OutputStream encode(OutputStream out, String password, byte[] salt, EncryptionAlgorithm algorithm, CompressionCodec codec,
+                                      int level, int threads, int blockSize, int pipelineDepth, PhaseStats stats)
+            throws IOException, Crypto.CryptoSetupException {
+        // the phase writing to the encryption or the file, if it's on the same thread
+        PhaseStats.Phase compressor = pipelineDepth > 0 ? null : PhaseStats.Phase.COMPRESS;
+        try {
+            if (password != null && !password.isEmpty()) {
+                out = PhaseStats.meter(out, stats, PhaseStats.Phase.ENCRYPT, PhaseStats.Phase.WRITE);
+                out = Crypto.encryptStream(out, password, salt, algorithm, threads);
+                out = PhaseStats.meter(out, stats, compressor, PhaseStats.Phase.ENCRYPT);
+            } else {
+                out = PhaseStats.meter(out, stats, compressor, PhaseStats.Phase.WRITE);
+            }
+            if (pipelineDepth > 0) {
+                out = new PipelineOutputStream(out, "write", pipelineDepth, stats);
+                out = PhaseStats.meter(out, stats, PhaseStats.Phase.COMPRESS, null);
+            }
+            out = codec.compress(out, level, threads, blockSize);
+            out = PhaseStats.meter(out, stats, pipelineDepth > 0 ? null : PhaseStats.Phase.TAR, PhaseStats.Phase.COMPRESS);
+            if (pipelineDepth > 0) {
+                out = new PipelineOutputStream(out, "compress", pipelineDepth, stats);
+                out = PhaseStats.meter(out, stats, PhaseStats.Phase.TAR, null);
+            }
+            return out;
+        } catch (IOException | Crypto.CryptoSetupException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Wraps the given stream to decrypt and decompress an archive.
+     *
+     * @param in            the stream to read the archive file from. It's closed on errors.
+     * @param password      the password to decrypt with, null or empty, if it's not encrypted
+     * @param salt          the salt of the key derivation
+     * @param codec         the codec to decompress with
+     * @param pipelineDepth the queue depth of the pipeline stages, 0 to not use them
+     * @return the stream to read the tar stream from
+     * @throws IOException                 if the stream's header could not be read
+     * @throws Crypto.CryptoSetupException if the cipher could not be initialized
+     */
+    public static InputStream decode(InputStream in, String password, byte[] salt, CompressionCodec codec, int pipelineDepth)
+            throws IOException, Crypto.CryptoSetupException {
+        return ArchiveStreams.decode(in, password, salt, codec, pipelineDepth, 1, null);
+    }
+
+    /**
+     * Like decode without stats, but meters the reading, decryption and decompression.
+     *
+     * @param threads number of threads decrypting the archive
+     * @param stats   the stats to add to, may be null
+     */
+    public static InputStream decode(InputStream in, String password, byte[] salt, CompressionCodec codec, int pipelineDepth,
+                                     int threads, PhaseStats stats)
+            throws IOException, Crypto.CryptoSetupException {
+        // the phase reading from the decryption or the file, if it's on the same thread
+        PhaseStats.Phase decompressor = pipelineDepth > 0 ? null : PhaseStats.Phase.DECOMPRESS;
+        try {
+            if (password != null && !password.isEmpty()) {
+                in = PhaseStats.meter(in, stats, PhaseStats.Phase.DECRYPT, PhaseStats.Phase.READ);
+                in = Crypto.decryptStream(in, password, salt, threads);
+                in = PhaseStats.meter(in, stats, decompressor, PhaseStats.Phase.DECRYPT);
+            } else {
+                in = PhaseStats.meter(in, stats, decompressor, PhaseStats.Phase.READ);
+            }
+            if (pipelineDepth > 0) {
+                in = new PipelineInputStream(in, "read", pipelineDepth, stats);
+                in = PhaseStats.meter(in, stats, PhaseStats.Phase.DECOMPRESS, null);
+            }
+            in = codec.decompress(in);
+            in = PhaseStats.meter(in, stats, pipelineDepth > 0 ? null : PhaseStats.Phase.EXTRACT, PhaseStats.Phase.DECOMPRESS);
+            if (pipelineDepth > 0) {
+                in = new PipelineInputStream(in, "decompress", pipelineDepth, stats);
+                in = PhaseStats.meter(in, stats, PhaseStats.Phase.EXTRACT, null);
+            }
+            return in;
+        } catch (IOException | Crypto.CryptoSetupException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the tar stream of an archive.
+     *
+     * @param out      the compressing stream
+     * @param adaptive true to store already compressed entries without compressing them again
+     */
+    public static TarArchiveOutputStream openTar(OutputStream out, boolean adaptive) {
+        TarArchiveOutputStream archive = adaptive ? new AdaptiveTarArchiveOutputStream(out) : new TarArchiveOutputStream(out);
+        archive.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        return archive;
+    }
+}
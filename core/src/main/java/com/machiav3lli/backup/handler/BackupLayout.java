@@ -0,0 +1,135 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.EngineLog;
+import com.machiav3lli.backup.items.BackupLog;
+import com.machiav3lli.backup.items.BackupManifest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The names of the files in an app's backup folder {@code <backup dir>/<package>/}.
+ * <p>
+ * Every data component is stored as an archive named after the component, e.g.
+ * data.tar.gz.enc, or as a chunk list like data.chunks. Increments of incremental backups add
+ * their level to the name: data.1.tar.gz. The log file {@code <package>.log} describes the
+ * backup, the manifest {@code <package>.manifest} lists the archived entries.
+ */
+public final class BackupLayout {
+    public static final String DATA = "data";
+    public static final String DEVICE_PROTECTED_FILES = "device_protected_files";
+    public static final String EXTERNAL_FILES = "external_files";
+    public static final String OBB_FILES = "obb_files";
+    public static final String ENCRYPTED_SUFFIX = ".enc";
+    private static final String TAG = Constants.classTag(".BackupLayout");
+
+    private BackupLayout() {
+    }
+
+    /**
+     * @return the data components in the order they are backed up
+     */
+    public static String[] getComponents() {
+        return new String[]{BackupLayout.DATA, BackupLayout.EXTERNAL_FILES, BackupLayout.OBB_FILES, BackupLayout.DEVICE_PROTECTED_FILES};
+    }
+
+    public static String getArchiveName(String what, CompressionCodec codec, boolean isEncrypted) {
+        return what + codec.getArchiveSuffix() + (isEncrypted ? BackupLayout.ENCRYPTED_SUFFIX : "");
+    }
+
+    public static String getChunkListName(String what) {
+        return what + ChunkStore.CHUNK_LIST_SUFFIX;
+    }
+
+    public static boolean isChunkList(File archive) {
+        return archive.getName().endsWith(ChunkStore.CHUNK_LIST_SUFFIX);
+    }
+
+    /**
+     * Returns the name of an incremental archive's component. The archive of increment level n
+     * is stored as e.g. data.n.tar.gz next to the full backup's data.tar.gz.
+     */
+    public static String getIncrementName(String what, int incrementLevel) {
+        return incrementLevel == 0 ? what : String.format("%s.%d", what, incrementLevel);
+    }
+
+    public static String getLogFileName(String packageName) {
+        return packageName + BackupLog.FILE_SUFFIX;
+    }
+
+    public static String getManifestFileName(String packageName) {
+        return packageName + BackupManifest.FILE_SUFFIX;
+    }
+
+    /**
+     * Looks for an existing archive of the given component. A chunk list is preferred, then the
+     * codec recorded in the log file is tried and finally all other codecs.
+     *
+     * @param appBackupFolder the app's backup folder
+     * @param what            the archive's component
+     * @param isEncrypted     if an encrypted archive is expected
+     * @param loggedCodec     the codec recorded in the log file
+     * @return the archive, its chunk list or null, if none exists
+     */
+    public static File findBackupArchive(File appBackupFolder, String what, boolean isEncrypted, CompressionCodec loggedCodec) {
+        File chunkList = new File(appBackupFolder, BackupLayout.getChunkListName(what));
+        if (chunkList.exists()) {
+            return chunkList;
+        }
+        File archive = new File(appBackupFolder, BackupLayout.getArchiveName(what, loggedCodec, isEncrypted));
+        if (archive.exists()) {
+            return archive;
+        }
+        for (CompressionCodec codec : CompressionCodec.values()) {
+            archive = new File(appBackupFolder, BackupLayout.getArchiveName(what, codec, isEncrypted));
+            if (archive.exists()) {
+                EngineLog.w(BackupLayout.TAG, String.format("%s: Found %s archive with unexpected codec %s",
+                        appBackupFolder.getName(), what, codec));
+                return archive;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Collects the archives of a component, that have to be expanded in order to restore the
+     * latest backup: the full backup followed by all increments.
+     *
+     * @param appBackupFolder the app's backup folder
+     * @param what            the archives' component
+     * @param isEncrypted     if encrypted archives are expected
+     * @param loggedCodec     the codec recorded in the log file
+     * @param incrementLevel  the increment level recorded in the log file
+     * @return the existing archives in the order they need to be expanded, might be empty
+     */
+    public static List<File> findArchiveChain(File appBackupFolder, String what, boolean isEncrypted, CompressionCodec loggedCodec, int incrementLevel) {
+        List<File> archives = new ArrayList<>(incrementLevel + 1);
+        for (int level = 0; level <= incrementLevel; level++) {
+            // a component might not have existed, when the full backup was made
+            File archive = BackupLayout.findBackupArchive(appBackupFolder, BackupLayout.getIncrementName(what, level), isEncrypted, loggedCodec);
+            if (archive != null) {
+                archives.add(archive);
+            }
+        }
+        return archives;
+    }
+}
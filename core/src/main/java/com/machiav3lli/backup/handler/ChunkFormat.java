@@ -0,0 +1,118 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * How the chunks of a backup are encoded: the codec and, if a password is set, the encryption
+ * algorithm.
+ * <p>
+ * Chunk ids are an HMAC-SHA256 of the format and the chunk's content. With a password, the key
+ * is derived from the master key, so the ids of encrypted chunks don't reveal hashes of their
+ * content. Chunks encoded in another format or with another password get other ids and are
+ * stored again instead of being reused with the wrong decoder.
+ */
+public final class ChunkFormat {
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final byte[] UNENCRYPTED_ID_KEY = "oandbackupx chunk id".getBytes(StandardCharsets.UTF_8);
+    private final CompressionCodec codec;
+    private final EncryptionAlgorithm algorithm;
+    private final byte[] idKey;
+
+    /**
+     * @param codec     the codec the chunks are compressed with
+     * @param password  the password the chunks are encrypted with, null or empty to not encrypt
+     * @param salt      the salt of the key derivation
+     * @param algorithm the algorithm the chunks are encrypted with, if a password is given
+     * @throws Crypto.CryptoSetupException if the key of the ids could not be derived
+     */
+    public ChunkFormat(CompressionCodec codec, String password, byte[] salt, EncryptionAlgorithm algorithm) throws Crypto.CryptoSetupException {
+        boolean encrypted = password != null && !password.isEmpty();
+        this.codec = codec;
+        this.algorithm = encrypted ? algorithm : null;
+        this.idKey = encrypted ? Crypto.deriveChunkIdKey(password, salt) : ChunkFormat.UNENCRYPTED_ID_KEY;
+    }
+
+    public CompressionCodec getCodec() {
+        return this.codec;
+    }
+
+    /**
+     * @return the encryption algorithm or null, if the chunks are not encrypted
+     */
+    public EncryptionAlgorithm getEncryptionAlgorithm() {
+        return this.algorithm;
+    }
+
+    /**
+     * @return the name of the format like gz+aes-gcm, which is part of every chunk id
+     */
+    public String getName() {
+        return this.codec.getName() + '+' + (this.algorithm != null ? this.algorithm.getName() : "none");
+    }
+
+    /**
+     * @return a MAC to compute chunk ids with, which is only used by one thread
+     */
+    Mac createIdMac() {
+        try {
+            Mac mac = Mac.getInstance(ChunkFormat.MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(this.idKey, ChunkFormat.MAC_ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            // HMAC-SHA256 is guaranteed to be available
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Computes a fingerprint of the format and further settings. It changes with the password,
+     * but doesn't reveal it, like the chunk ids.
+     *
+     * @param settings the settings to include
+     * @return the fingerprint as hex string
+     */
+    public String getFingerprint(String settings) {
+        byte[] data = settings.getBytes(StandardCharsets.UTF_8);
+        return this.computeId(this.createIdMac(), data, data.length);
+    }
+
+    /**
+     * Computes the id of a chunk.
+     *
+     * @param mac    a MAC of createIdMac
+     * @param data   buffer containing the chunk's content
+     * @param length the chunk's length
+     * @return the id as hex string
+     */
+    String computeId(Mac mac, byte[] data, int length) {
+        mac.update(this.getName().getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        mac.update(data, 0, length);
+        StringBuilder id = new StringBuilder();
+        for (byte b : mac.doFinal()) {
+            id.append(String.format("%02x", b));
+        }
+        return id.toString();
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.EngineLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A content addressed store for chunks of archive streams, shared by all apps and backups.
+ * <p>
+ * Chunks are identified by a keyed hash of their uncompressed content and their format, see
+ * ChunkFormat, and stored in {@code <backup dir>/.chunks/<first 2 hex digits>/<id>}. Each backup
+ * stores a chunk list instead of an archive. It starts with the format of the chunks, followed by
+ * the ids of the chunks, that form the archive's tar stream, one per line. Identical content of
+ * different apps or backup revisions is only stored once, as long as it's stored in the same
+ * format.
+ * <p>
+ * Chunks are not deleted with the backups referencing them. collectGarbage counts the
+ * references of all chunk lists and removes the chunks, which are not referenced anymore.
+ * Writers hold a lease from adding their first chunk until their chunk list is written, so the
+ * garbage collection never removes chunks, that are about to be referenced. The leases are shared
+ * by all instances of a store in the process, but not with other processes.
+ */
+public class ChunkStore {
+    public static final String DIRECTORY_NAME = ".chunks";
+    public static final String CHUNK_LIST_SUFFIX = ".chunks";
+    private static final String TAG = Constants.classTag(".ChunkStore");
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String HEADER_PREFIX = "#";
+    private static final String HEADER_CODEC = "#codec ";
+    private static final String HEADER_FORMAT = "#format ";
+    private static final Map<String, StampedLock> LOCKS = new HashMap<>();
+    private final File root;
+    private final StampedLock lock;
+
+    public ChunkStore(File backupDirectory) {
+        this.root = new File(backupDirectory, ChunkStore.DIRECTORY_NAME);
+        this.lock = ChunkStore.getLock(this.root);
+    }
+
+    public static List<String> readChunkList(File chunkList) throws IOException {
+        List<String> ids = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(chunkList))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty() && !line.startsWith(ChunkStore.HEADER_PREFIX)) {
+                    ids.add(line);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Reads the codec, the chunks of a chunk list are compressed with.
+     *
+     * @param chunkList the chunk list of a backup
+     * @return the codec or null, if the list doesn't name it
+     * @throws IOException if the chunk list could not be read
+     */
+    public static CompressionCodec readCodec(File chunkList) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(chunkList))) {
+            String line;
+            while ((line = reader.readLine()) != null && line.startsWith(ChunkStore.HEADER_PREFIX)) {
+                if (line.startsWith(ChunkStore.HEADER_CODEC)) {
+                    return CompressionCodec.fromName(line.substring(ChunkStore.HEADER_CODEC.length()));
+                }
+            }
+        }
+        return null;
+    }
+
+    public static void writeChunkList(File chunkList, ChunkFormat format, List<String> ids) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(chunkList, false))) {
+            writer.write(ChunkStore.HEADER_CODEC + format.getCodec().getName() + '\n');
+            writer.write(ChunkStore.HEADER_FORMAT + format.getName() + '\n');
+            for (String id : ids) {
+                writer.write(id);
+                writer.write('\n');
+            }
+        }
+    }
+
+    private static synchronized StampedLock getLock(File root) {
+        return ChunkStore.LOCKS.computeIfAbsent(root.getAbsolutePath(), k -> new StampedLock());
+    }
+
+    /**
+     * Starts writing a backup to the store. Until the lease is closed, the garbage collection
+     * doesn't run. Waits for a running garbage collection to finish.
+     *
+     * @return the lease to close, when the chunk list has been written or the backup failed
+     */
+    public Lease acquireWriterLease() {
+        return new Lease(this.lock, this.lock.readLock());
+    }
+
+    public File getChunkFile(String id) {
+        return new File(new File(this.root, id.substring(0, 2)), id);
+    }
+
+    public boolean contains(String id) {
+        return this.getChunkFile(id).exists();
+    }
+
+    public boolean exists() {
+        return this.root.isDirectory();
+    }
+
+    /**
+     * Stores a chunk, if it's not part of the store yet.
+     *
+     * @param id      the chunk's id
+     * @param data    buffer containing the chunk's content
+     * @param length  the chunk's length
+     * @param encoder wraps the chunk file's stream, e.g. to compress and encrypt the content
+     * @return true, if the chunk was new and has been written
+     * @throws IOException if the chunk could not be written
+     */
+    public boolean put(String id, byte[] data, int length, Encoder encoder) throws IOException {
+        File chunkFile = this.getChunkFile(id);
+        if (chunkFile.exists()) {
+            return false;
+        }
+        File directory = chunkFile.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Could not create chunk directory " + directory);
+        }
+        // written to a temporary file first, so an interrupted backup leaves no broken chunk
+        File tempFile = new File(directory, id + '.' + Thread.currentThread().getId() + ChunkStore.TEMP_SUFFIX);
+        try (OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(tempFile));
+             OutputStream out = encoder.encode(fileOut)) {
+            out.write(data, 0, length);
+        }
+        if (!tempFile.renameTo(chunkFile)) {
+            tempFile.delete();
+            // another thread might have stored the same chunk in the meantime
+            if (!chunkFile.exists()) {
+                throw new IOException("Could not store chunk " + id);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Opens the stream, that is formed by the chunks of the given list.
+     *
+     * @param chunkList the chunk list of a backup
+     * @param decoder   wraps each chunk file's stream, e.g. to decrypt and decompress the content
+     * @return the concatenated content of all chunks
+     * @throws IOException if the chunk list could not be read
+     */
+    public InputStream open(File chunkList, Decoder decoder) throws IOException {
+        final Iterator<String> ids = ChunkStore.readChunkList(chunkList).iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return ids.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                String id = ids.next();
+                try {
+                    return decoder.decode(new BufferedInputStream(new FileInputStream(ChunkStore.this.getChunkFile(id))));
+                } catch (IOException e) {
+                    // Enumeration can't throw checked exceptions
+                    throw new ChunkUnavailableException(id, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes all chunks, which are not referenced by any chunk list in the backup directory.
+     * Skipped, while backups are written to the store, because their chunks are not referenced
+     * yet. The batch writing them collects the garbage at its end.
+     *
+     * @param backupDirectory the backup directory containing the apps' backup folders
+     * @return the number of removed chunks
+     */
+    public int collectGarbage(File backupDirectory) throws IOException {
+        long stamp = this.lock.tryWriteLock();
+        if (stamp == 0) {
+            EngineLog.i(ChunkStore.TAG, "Skipped garbage collection, backups are written to the chunk store");
+            return 0;
+        }
+        try {
+            return this.removeUnreferencedChunks(backupDirectory);
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    private int removeUnreferencedChunks(File backupDirectory) throws IOException {
+        Map<String, Integer> referenceCounts = new HashMap<>();
+        File[] appFolders = backupDirectory.listFiles(File::isDirectory);
+        if (appFolders == null) {
+            return 0;
+        }
+        for (File appFolder : appFolders) {
+            File[] chunkLists = appFolder.listFiles((dir, name) -> name.endsWith(ChunkStore.CHUNK_LIST_SUFFIX));
+            if (chunkLists == null) {
+                continue;
+            }
+            for (File chunkList : chunkLists) {
+                for (String id : ChunkStore.readChunkList(chunkList)) {
+                    referenceCounts.merge(id, 1, Integer::sum);
+                }
+            }
+        }
+        int removed = 0;
+        long freedBytes = 0;
+        File[] prefixDirectories = this.root.listFiles(File::isDirectory);
+        if (prefixDirectories == null) {
+            return 0;
+        }
+        for (File prefixDirectory : prefixDirectories) {
+            File[] chunkFiles = prefixDirectory.listFiles();
+            if (chunkFiles == null) {
+                continue;
+            }
+            for (File chunkFile : chunkFiles) {
+                // leftovers of interrupted backups are not referenced either
+                if (!referenceCounts.containsKey(chunkFile.getName())) {
+                    long size = chunkFile.length();
+                    if (chunkFile.delete()) {
+                        removed++;
+                        freedBytes += size;
+                    }
+                }
+            }
+        }
+        EngineLog.i(ChunkStore.TAG, String.format("Garbage collection: %d chunks referenced, %d chunks removed, %d bytes freed",
+                referenceCounts.size(), removed, freedBytes));
+        return removed;
+    }
+
+    /**
+     * A writer's lease, see acquireWriterLease. It may be closed by another thread than the one
+     * acquiring it and more than once.
+     */
+    public static class Lease implements AutoCloseable {
+        private final StampedLock lock;
+        private long stamp;
+
+        private Lease(StampedLock lock, long stamp) {
+            this.lock = lock;
+            this.stamp = stamp;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (this.stamp != 0) {
+                this.lock.unlockRead(this.stamp);
+                this.stamp = 0;
+            }
+        }
+    }
+
+    public interface Encoder {
+        OutputStream encode(OutputStream out) throws IOException;
+    }
+
+    public interface Decoder {
+        InputStream decode(InputStream in) throws IOException;
+    }
+
+    public static class ChunkUnavailableException extends NoSuchElementException {
+        public ChunkUnavailableException(String id, Throwable cause) {
+            super("Could not open chunk " + id);
+            this.initCause(cause);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Decrypts a stream written by ChunkedAeadOutputStream. The data of a chunk is only returned after
+ * the chunk has been authenticated, so reading fails at the first corrupt, missing or reordered
+ * chunk and not after the whole stream has been processed. With several threads, the following
+ * chunks are read and decrypted ahead.
+ */
+public class ChunkedAeadInputStream extends InputStream {
+    private final InputStream in;
+    private final EncryptionAlgorithm algorithm;
+    private final SecretKey key;
+    private final byte[] noncePrefix;
+    private final byte[] associatedData;
+    private final int chunkSize;
+    private final ExecutorService executor;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final int maxPending;
+    private long chunkIndex;
+    private boolean lastChunkRead;
+    private byte[] current;
+    private int position;
+    private boolean closed;
+
+    /**
+     * @param in             the stream to read the encrypted chunks from, positioned after the header
+     * @param algorithm      the cipher
+     * @param key            the key of the cipher
+     * @param noncePrefix    the nonce prefix from the header
+     * @param associatedData the header of the container
+     * @param chunkSize      size of the unencrypted chunks in bytes
+     * @param threads        number of threads used for decryption, 1 to decrypt on the calling thread
+     */
+    public ChunkedAeadInputStream(InputStream in, EncryptionAlgorithm algorithm, SecretKey key, byte[] noncePrefix, byte[] associatedData,
+                                  int chunkSize, int threads) {
+        this.in = in;
+        this.algorithm = algorithm;
+        this.key = key;
+        this.noncePrefix = noncePrefix;
+        this.associatedData = associatedData;
+        this.chunkSize = chunkSize;
+        this.executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        this.maxPending = threads > 1 ? threads * 2 : 1;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (this.current == null || this.position == this.current.length) {
+            if (!this.nextChunk()) {
+                return -1;
+            }
+        }
+        int count = Math.min(len, this.current.length - this.position);
+        System.arraycopy(this.current, this.position, b, off, count);
+        this.position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return this.current != null ? this.current.length - this.position : 0;
+    }
+
+    private boolean nextChunk() throws IOException {
+        this.readAhead();
+        if (this.pending.isEmpty()) {
+            return false;
+        }
+        try {
+            this.current = this.pending.removeFirst().get();
+            this.position = 0;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Decryption of a chunk failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decrypting", e);
+        }
+        if (this.executor != null) {
+            // keeps the threads busy, while the chunk is consumed
+            this.readAhead();
+        }
+        return true;
+    }
+
+    private void readAhead() throws IOException {
+        while (!this.lastChunkRead && this.pending.size() < this.maxPending) {
+            byte[] chunk = new byte[this.chunkSize + EncryptionAlgorithm.TAG_LENGTH];
+            int length = 0;
+            int read;
+            while (length < chunk.length && (read = this.in.read(chunk, length, chunk.length - length)) != -1) {
+                length += read;
+            }
+            if (length < EncryptionAlgorithm.TAG_LENGTH) {
+                throw new IOException(String.format("Encrypted stream is truncated at chunk %d", this.chunkIndex));
+            }
+            // only the last chunk is shorter than the chunk size
+            boolean last = length < chunk.length;
+            if (last) {
+                this.lastChunkRead = true;
+                if (this.in.read() != -1) {
+                    throw new IOException(String.format("Encrypted stream has data after its last chunk %d", this.chunkIndex));
+                }
+            }
+            final long index = this.chunkIndex++;
+            final int chunkLength = length;
+            if (this.executor == null) {
+                this.pending.add(CompletableFuture.completedFuture(this.decryptChunk(chunk, chunkLength, index, last)));
+            } else {
+                this.pending.add(this.executor.submit(() -> this.decryptChunk(chunk, chunkLength, index, last)));
+            }
+        }
+    }
+
+    private byte[] decryptChunk(byte[] chunk, int length, long index, boolean last) throws IOException {
+        try {
+            Cipher cipher = this.algorithm.createCipher();
+            cipher.init(Cipher.DECRYPT_MODE, this.key, this.algorithm.getParameterSpec(ChunkedAeadOutputStream.getNonce(this.noncePrefix, index, last)));
+            cipher.updateAAD(this.associatedData);
+            return cipher.doFinal(chunk, 0, length);
+        } catch (AEADBadTagException e) {
+            throw new IOException(String.format("Chunk %d of the encrypted stream is corrupt or the password is wrong", index), e);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not decrypt chunk " + index, e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+        this.pending.clear();
+        this.current = null;
+        this.in.close();
+    }
+}
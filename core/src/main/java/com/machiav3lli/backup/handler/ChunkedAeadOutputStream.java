@@ -0,0 +1,185 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Encrypts a stream in chunks with an AEAD cipher like AES-GCM. Every chunk is authenticated on
+ * its own, so the chunks can be encrypted on several threads and ChunkedAeadInputStream notices a
+ * corrupt chunk before it returns any of its data.
+ * <p>
+ * The nonce of a chunk consists of a random prefix, the index of the chunk and a flag marking the
+ * last chunk (the STREAM construction), so reordered, dropped and appended chunks fail the
+ * authentication. The last chunk is always shorter than the chunk size, even if it's empty, so a
+ * stream cut off after a complete chunk is noticed, too. The header of the container is passed as
+ * additional authenticated data of every chunk.
+ */
+public class ChunkedAeadOutputStream extends OutputStream {
+    static final int NONCE_PREFIX_LENGTH = 7;
+    private static final long MAX_CHUNKS = 0xFFFFFFFFL;
+    private final OutputStream out;
+    private final EncryptionAlgorithm algorithm;
+    private final SecretKey key;
+    private final byte[] noncePrefix;
+    private final byte[] associatedData;
+    private final int chunkSize;
+    private final ExecutorService executor;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final int maxPending;
+    private byte[] buffer;
+    private int bufferLength;
+    private long chunkIndex;
+    private boolean closed;
+
+    /**
+     * @param out            the stream to write the encrypted chunks to
+     * @param algorithm      the cipher
+     * @param key            the key of the cipher
+     * @param noncePrefix    random bytes of NONCE_PREFIX_LENGTH, that are never used twice with the key
+     * @param associatedData the header of the container
+     * @param chunkSize      size of the unencrypted chunks in bytes
+     * @param threads        number of threads used for encryption, 1 to encrypt on the calling thread
+     */
+    public ChunkedAeadOutputStream(OutputStream out, EncryptionAlgorithm algorithm, SecretKey key, byte[] noncePrefix, byte[] associatedData,
+                                   int chunkSize, int threads) {
+        this.out = out;
+        this.algorithm = algorithm;
+        this.key = key;
+        this.noncePrefix = noncePrefix;
+        this.associatedData = associatedData;
+        this.chunkSize = chunkSize;
+        this.executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        // keeps all threads busy, while the oldest chunk is written
+        this.maxPending = threads * 2;
+        this.buffer = new byte[chunkSize];
+    }
+
+    static byte[] getNonce(byte[] noncePrefix, long chunkIndex, boolean last) {
+        return ByteBuffer.allocate(ChunkedAeadOutputStream.NONCE_PREFIX_LENGTH + 5)
+                .put(noncePrefix)
+                .putInt((int) chunkIndex)
+                .put((byte) (last ? 1 : 0))
+                .array();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream closed");
+        }
+        while (len > 0) {
+            int count = Math.min(len, this.chunkSize - this.bufferLength);
+            System.arraycopy(b, off, this.buffer, this.bufferLength, count);
+            this.bufferLength += count;
+            off += count;
+            len -= count;
+            // a full chunk is never the last one
+            if (this.bufferLength == this.chunkSize) {
+                this.submitChunk(false);
+            }
+        }
+    }
+
+    private void submitChunk(boolean last) throws IOException {
+        if (this.chunkIndex > ChunkedAeadOutputStream.MAX_CHUNKS) {
+            throw new IOException("Too many chunks for one stream");
+        }
+        final byte[] chunk = this.buffer;
+        final int length = this.bufferLength;
+        final long index = this.chunkIndex++;
+        if (this.executor == null) {
+            this.out.write(this.encryptChunk(chunk, length, index, last));
+        } else {
+            this.pending.add(this.executor.submit(() -> this.encryptChunk(chunk, length, index, last)));
+            this.buffer = new byte[this.chunkSize];
+            while (this.pending.size() >= this.maxPending) {
+                this.writeOldestChunk();
+            }
+        }
+        this.bufferLength = 0;
+    }
+
+    private byte[] encryptChunk(byte[] chunk, int length, long index, boolean last) throws IOException {
+        try {
+            Cipher cipher = this.algorithm.createCipher();
+            cipher.init(Cipher.ENCRYPT_MODE, this.key, this.algorithm.getParameterSpec(ChunkedAeadOutputStream.getNonce(this.noncePrefix, index, last)));
+            cipher.updateAAD(this.associatedData);
+            return cipher.doFinal(chunk, 0, length);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not encrypt chunk " + index, e);
+        }
+    }
+
+    private void writeOldestChunk() throws IOException {
+        try {
+            this.out.write(this.pending.removeFirst().get());
+        } catch (ExecutionException e) {
+            throw new IOException("Encryption of a chunk failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encrypting", e);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // only chunks, that are complete, are flushed. Partial chunks would end the stream
+        while (!this.pending.isEmpty() && this.pending.peekFirst().isDone()) {
+            this.writeOldestChunk();
+        }
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            this.submitChunk(true);
+            while (!this.pending.isEmpty()) {
+                this.writeOldestChunk();
+            }
+        } finally {
+            if (this.executor != null) {
+                this.executor.shutdownNow();
+            }
+            this.buffer = null;
+            this.out.close();
+        }
+    }
+}
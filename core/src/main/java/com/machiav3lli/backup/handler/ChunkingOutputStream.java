@@ -0,0 +1,132 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.EngineLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Mac;
+
+/**
+ * Splits a stream into content defined chunks and stores them in a ChunkStore.
+ * <p>
+ * Chunk boundaries are found with a gear rolling hash (like FastCDC), so they only depend on the
+ * content close to them. Inserting or removing data shifts the following boundaries with it and
+ * the unchanged chunks are found in the store again. On close the format and the ids of all
+ * chunks are written to the chunk list file.
+ */
+public class ChunkingOutputStream extends OutputStream {
+    public static final int MIN_CHUNK_SIZE = 256 * 1024;
+    public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final String TAG = Constants.classTag(".ChunkingOutputStream");
+    // 20 bits result in 1 MiB chunks on average. The upper bits depend on the last 64 bytes.
+    private static final long BOUNDARY_MASK = ((1L << 20) - 1) << 44;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // the table must never change, otherwise the boundaries of existing chunks are not found
+        Random random = new Random(0x6f616e64L);
+        for (int i = 0; i < ChunkingOutputStream.GEAR.length; i++) {
+            ChunkingOutputStream.GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final ChunkStore store;
+    private final File chunkList;
+    private final ChunkFormat format;
+    private final ChunkStore.Encoder encoder;
+    private final List<String> ids = new ArrayList<>();
+    private final Mac idMac;
+    private final ChunkStore.Lease lease;
+    private final byte[] buffer = new byte[ChunkingOutputStream.MAX_CHUNK_SIZE];
+    private int bufferLength;
+    private long hash;
+    private int newChunks;
+    private boolean closed;
+
+    /**
+     * @param store     the store to put the chunks into
+     * @param chunkList the file to write the chunk ids to
+     * @param format    the format, the encoder writes the chunks in
+     * @param encoder   wraps each chunk file's stream, e.g. to compress and encrypt the content
+     */
+    public ChunkingOutputStream(ChunkStore store, File chunkList, ChunkFormat format, ChunkStore.Encoder encoder) {
+        this.store = store;
+        this.chunkList = chunkList;
+        this.format = format;
+        this.encoder = encoder;
+        this.idMac = format.createIdMac();
+        // the garbage collection must not remove the chunks before the list references them
+        this.lease = store.acquireWriterLease();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream closed");
+        }
+        for (int i = off; i < off + len; i++) {
+            this.buffer[this.bufferLength++] = b[i];
+            this.hash = (this.hash << 1) + ChunkingOutputStream.GEAR[b[i] & 0xff];
+            if ((this.bufferLength >= ChunkingOutputStream.MIN_CHUNK_SIZE && (this.hash & ChunkingOutputStream.BOUNDARY_MASK) == 0)
+                    || this.bufferLength == ChunkingOutputStream.MAX_CHUNK_SIZE) {
+                this.storeChunk();
+            }
+        }
+    }
+
+    private void storeChunk() throws IOException {
+        String id = this.format.computeId(this.idMac, this.buffer, this.bufferLength);
+        if (this.store.put(id, this.buffer, this.bufferLength, this.encoder)) {
+            this.newChunks++;
+        }
+        this.ids.add(id);
+        this.bufferLength = 0;
+        this.hash = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            if (this.bufferLength > 0) {
+                this.storeChunk();
+            }
+            ChunkStore.writeChunkList(this.chunkList, this.format, this.ids);
+        } finally {
+            this.lease.close();
+        }
+        EngineLog.d(ChunkingOutputStream.TAG, String.format("%s: %d chunks, %d of them new",
+                this.chunkList.getName(), this.ids.size(), this.newChunks));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.EngineLog;
+
+import java.security.GeneralSecurityException;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Measures, how fast the encryption algorithms run on this device, to pick the fastest one.
+ * Without hardware support for AES, ChaCha20-Poly1305 is several times faster than AES-GCM, with
+ * it AES-GCM usually wins. The chunks of archives and of the chunk store are encrypted, so both
+ * sizes are measured.
+ * <p>
+ * It takes about half a second, so the result should be stored and not measured again for every
+ * run.
+ */
+public final class CipherBenchmark {
+    private static final String TAG = Constants.classTag(".CipherBenchmark");
+    private static final int[] BUFFER_SIZES = {64 * 1024, Crypto.ENCRYPTION_CHUNK_SIZE};
+    private static final long WARMUP_NANOS = 50000000L;
+    private static final long MEASURE_NANOS = 100000000L;
+
+    private CipherBenchmark() {
+    }
+
+    /**
+     * @return the fastest algorithm, that is available, or EncryptionAlgorithm.DEFAULT, if none
+     * could be measured
+     */
+    public static EncryptionAlgorithm selectFastest() {
+        EncryptionAlgorithm fastest = EncryptionAlgorithm.DEFAULT;
+        double fastestSpeed = 0;
+        for (Map.Entry<EncryptionAlgorithm, Double> entry : CipherBenchmark.measure().entrySet()) {
+            if (entry.getValue() > fastestSpeed) {
+                fastest = entry.getKey();
+                fastestSpeed = entry.getValue();
+            }
+        }
+        EngineLog.i(CipherBenchmark.TAG, "Fastest encryption algorithm: " + fastest.getName());
+        return fastest;
+    }
+
+    /**
+     * @return the bytes per second, the available algorithms encrypt. The speeds of the buffer
+     * sizes are averaged by the time it takes to encrypt the same amount of each size.
+     */
+    public static Map<EncryptionAlgorithm, Double> measure() {
+        Map<EncryptionAlgorithm, Double> speeds = new EnumMap<>(EncryptionAlgorithm.class);
+        byte[] data = new byte[CipherBenchmark.BUFFER_SIZES[CipherBenchmark.BUFFER_SIZES.length - 1]];
+        new Random(1).nextBytes(data);
+        for (EncryptionAlgorithm algorithm : EncryptionAlgorithm.values()) {
+            if (!algorithm.isAvailable()) {
+                EngineLog.i(CipherBenchmark.TAG, algorithm.getName() + " is not available");
+                continue;
+            }
+            try {
+                double secondsPerByte = 0;
+                for (int bufferSize : CipherBenchmark.BUFFER_SIZES) {
+                    CipherBenchmark.encrypt(algorithm, data, bufferSize, CipherBenchmark.WARMUP_NANOS);
+                    double speed = CipherBenchmark.encrypt(algorithm, data, bufferSize, CipherBenchmark.MEASURE_NANOS);
+                    EngineLog.d(CipherBenchmark.TAG, String.format(Locale.ENGLISH, "%s with %d KiB buffers: %.1f MB/s",
+                            algorithm.getName(), bufferSize / 1024, speed / 1000000));
+                    secondsPerByte += 1 / speed;
+                }
+                speeds.put(algorithm, CipherBenchmark.BUFFER_SIZES.length / secondsPerByte);
+            } catch (GeneralSecurityException e) {
+                EngineLog.w(CipherBenchmark.TAG, String.format("Could not measure %s: %s", algorithm.getName(), e));
+            }
+        }
+        return speeds;
+    }
+
+    /**
+     * Encrypts buffers like ChunkedAeadOutputStream encrypts chunks, until the time is up.
+     *
+     * @return bytes per second
+     */
+    private static double encrypt(EncryptionAlgorithm algorithm, byte[] data, int bufferSize, long nanos) throws GeneralSecurityException {
+        SecretKeySpec key = new SecretKeySpec(new byte[32], algorithm.getKeyAlgorithm());
+        byte[] noncePrefix = new byte[ChunkedAeadOutputStream.NONCE_PREFIX_LENGTH];
+        long bytes = 0;
+        long chunkIndex = 0;
+        long startNanos = System.nanoTime();
+        long elapsedNanos;
+        do {
+            Cipher cipher = algorithm.createCipher();
+            cipher.init(Cipher.ENCRYPT_MODE, key, algorithm.getParameterSpec(ChunkedAeadOutputStream.getNonce(noncePrefix, chunkIndex++, false)));
+            cipher.doFinal(data, 0, bufferSize);
+            bytes += bufferSize;
+            elapsedNanos = System.nanoTime() - startNanos;
+        } while (elapsedNanos < nanos);
+        return bytes * 1e9 / elapsedNanos;
+    }
+}
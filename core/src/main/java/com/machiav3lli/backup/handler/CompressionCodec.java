@@ -0,0 +1,204 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.EngineLog;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.EngineLog;
+
+import org.apache.commons.compress.compressors.lz4.BlockLZ4CompressorOutputStream;
+import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.EngineLog;
+
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorInputStream;
+import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.EngineLog;
+
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream;
+import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.EngineLog;
+
+import org.apache.commons.compress.compressors.lz77support.Parameters;
+import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.EngineLog;
+
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.EngineLog;
+
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * The compression formats, that can be used for data archives.
+ * The codec is part of the archive's file extension and recorded in the log file, so the right
+ * decoder can be chosen on restore.
+ */
+public enum CompressionCodec {
+    GZIP("gz", ".tar.gz", Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION),
+    ZSTD("zst", ".tar.zst", 3, 1, 22),
+    // 1 is tuned for speed, 2 for ratio
+    LZ4("lz4", ".tar.lz4", 1, 1, 2),
+    NONE("none", ".tar", 0, 0, 0);
+
+    public static final CompressionCodec DEFAULT = CompressionCodec.GZIP;
+    private static final String TAG = Constants.classTag(".CompressionCodec");
+    private final String codecName;
+    private final String archiveSuffix;
+    private final int defaultLevel;
+    private final int minLevel;
+    private final int maxLevel;
+
+    CompressionCodec(String codecName, String archiveSuffix, int defaultLevel, int minLevel, int maxLevel) {
+        this.codecName = codecName;
+        this.archiveSuffix = archiveSuffix;
+        this.defaultLevel = defaultLevel;
+        this.minLevel = minLevel;
+        this.maxLevel = maxLevel;
+    }
+
+    /**
+     * Looks up a codec by its name as stored in the preferences and log files.
+     *
+     * @param name the codec's name
+     * @return the codec or DEFAULT, if the name is unknown or null. Older log files do not
+     * contain a codec, their archives are gzip compressed.
+     */
+    public static CompressionCodec fromName(String name) {
+        for (CompressionCodec codec : CompressionCodec.values()) {
+            if (codec.codecName.equals(name)) {
+                return codec;
+            }
+        }
+        return CompressionCodec.DEFAULT;
+    }
+
+    /**
+     * Detects the codec from an archive's file name like data.tar.zst.enc
+     *
+     * @param filename the archive's file name
+     * @return the matching codec or null, if the file name is not the one of an archive
+     */
+    public static CompressionCodec fromArchiveName(String filename) {
+        if (filename.endsWith(".enc")) {
+            filename = filename.substring(0, filename.length() - 4);
+        }
+        for (CompressionCodec codec : CompressionCodec.values()) {
+            if (filename.endsWith(codec.archiveSuffix)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    public String getName() {
+        return this.codecName;
+    }
+
+    public String getArchiveSuffix() {
+        return this.archiveSuffix;
+    }
+
+    public int getDefaultLevel() {
+        return this.defaultLevel;
+    }
+
+    /**
+     * Checks a configured level. All codecs share the level preference, so it might have been
+     * set for another codec.
+     *
+     * @param level the configured level
+     * @return the level or the default level, if it's not one of this codec
+     */
+    public int getLevel(int level) {
+        if (level < this.minLevel || level > this.maxLevel) {
+            EngineLog.w(CompressionCodec.TAG, String.format("Compression level %d is not one of %s (%d..%d), using %d",
+                    level, this.codecName, this.minLevel, this.maxLevel, this.defaultLevel));
+            return this.defaultLevel;
+        }
+        return level;
+    }
+
+    /**
+     * Wraps the given stream in a compressor of this codec.
+     *
+     * @param out       the stream to write the compressed data to
+     * @param level     the codec specific compression level
+     * @param threads   number of threads to use, if the codec supports parallel compression
+     * @param blockSize size of the blocks in bytes, that are compressed in parallel
+     * @return the compressing stream. Closing it closes out as well.
+     * @throws IOException if the compressor could not write its header
+     */
+    public OutputStream compress(OutputStream out, int level, int threads, int blockSize) throws IOException {
+        switch (this) {
+            case ZSTD:
+                return new ZstdCompressorOutputStream(out, level);
+            case LZ4:
+                // the lz4 format has no levels. 2 trades speed for ratio.
+                Parameters lz77Parameters = level > 1
+                        ? BlockLZ4CompressorOutputStream.createParameterBuilder().tunedForCompressionRatio().build()
+                        : BlockLZ4CompressorOutputStream.createParameterBuilder().tunedForSpeed().build();
+                return new FramedLZ4CompressorOutputStream(out, new FramedLZ4CompressorOutputStream.Parameters(
+                        FramedLZ4CompressorOutputStream.BlockSize.M4, lz77Parameters));
+            case NONE:
+                return out;
+            case GZIP:
+            default:
+                if (threads > 1) {
+                    return new ParallelGzipOutputStream(out, threads, blockSize, level);
+                }
+                return new AdaptiveGzipOutputStream(out, level);
+        }
+    }
+
+    /**
+     * Wraps the given stream in a decompressor of this codec.
+     *
+     * @param in the stream to read the compressed data from
+     * @return the decompressing stream
+     * @throws IOException if the stream's header could not be read
+     */
+    public InputStream decompress(InputStream in) throws IOException {
+        switch (this) {
+            case ZSTD:
+                return new ZstdCompressorInputStream(in);
+            case LZ4:
+                return new FramedLZ4CompressorInputStream(in, true);
+            case NONE:
+                return in;
+            case GZIP:
+            default:
+                // archives created with multiple compression threads consist of several gzip members
+                return new GzipCompressorInputStream(in, true);
+        }
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        return this.codecName;
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.EngineLog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.KeySpec;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Crypto. The class to handle encryption and decryption of streams.
+ * Call `encryptStream` or `decryptStream` with a password and a salt or a better a secret key
+ * (for performance reasons) and the class will wrap the given stream in return.
+ * <p>
+ * Android Keystore API is not used on purpose, because the key material needs to be portable for
+ * uses cases when the device has been wiped or when backups are restored on another device.
+ * <p>
+ * With a password, a master key is derived once per run and kept in the KeyCache. Each archive
+ * gets its own key, which is derived from the master key with HKDF and a random salt. The data is
+ * encrypted in chunks with an EncryptionAlgorithm like AES-GCM, which are authenticated on their
+ * own, so they can be encrypted and decrypted on several threads and a corrupt chunk is noticed,
+ * before its data is restored. The salt is stored in a header in front of the encrypted data
+ * together with the algorithm, the iteration count of the master key, the chunk size and the
+ * random prefix of the nonces. The iteration count can be raised without breaking older backups.
+ * <p>
+ * Older archives without header are still decrypted. They use AES-CBC with the key derived
+ * directly from the password and a static IV.
+ * <p>
+ * The variants with a secret key don't write or expect the header and use AES-CBC with the static
+ * IV.
+ */
+public final class Crypto {
+    /**
+     * Default salt, if no user specified salt is available to improve security.
+     * Better a constant salt for the app that using no salt.
+     */
+    public static final byte[] FALLBACK_SALT = "oandbackupx".getBytes(StandardCharsets.UTF_8);
+    private static final String TAG = Constants.classTag(".Crypto");
+    /**
+     * Taken from here. Chosen because of API Level 24+ compatibility. Newer algorithms are available
+     * with API Level 26+.
+     * https://developer.android.com/guide/topics/security/cryptography#SupportedSecretKeyFactory
+     * <p>
+     * The actual choice was inspired by this blog post:
+     * https://www.raywenderlich.com/778533-encryption-tutorial-for-android-getting-started
+     */
+    private static final String DEFAULT_SECRET_KEY_FACTORY_ALGORITHM = "PBKDF2WithHmacSHA1";
+    private static final String DEFAULT_CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+    private static final int DEFAULT_IV_BLOCK_SIZE = 16;  // 128 bit
+    private static final int ITERATION_COUNT = 1000;
+    private static final int KEY_LENGTH = 128;
+    /**
+     * The master key is derived once per run, so it can afford far more iterations than the keys
+     * derived for every archive before. OWASP recommends 310000 for PBKDF2-HMAC-SHA256.
+     */
+    public static final int MASTER_KEY_ITERATION_COUNT = 310000;
+    /**
+     * A header can ask for more iterations than written today, but not for so many, that a
+     * corrupt or crafted archive keeps the device busy for hours.
+     */
+    private static final int MAX_MASTER_KEY_ITERATION_COUNT = 10 * Crypto.MASTER_KEY_ITERATION_COUNT;
+    private static final String MASTER_KEY_FACTORY_ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int MASTER_KEY_LENGTH = 256;
+    private static final String HKDF_MAC_ALGORITHM = "HmacSHA256";
+    private static final byte[] HKDF_CHUNK_ID_INFO = "oandbackupx chunk id".getBytes(StandardCharsets.UTF_8);
+    private static final int ARCHIVE_KEY_LENGTH = 32;  // 256 bit
+    private static final int ARCHIVE_SALT_LENGTH = 16;
+    private static final byte[] HEADER_MAGIC = "OABXCRYP".getBytes(StandardCharsets.US_ASCII);
+    /**
+     * Chunks of the EncryptionAlgorithm, whose id follows the version, see ChunkedAeadOutputStream.
+     */
+    private static final int HEADER_VERSION = 1;
+    public static final int ENCRYPTION_CHUNK_SIZE = 1 << 20;
+    private static final int MAX_ENCRYPTION_CHUNK_SIZE = 64 << 20;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    public static SecretKey generateKeyFromPassword(String password, byte[] salt) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        return Crypto.generateKeyFromPassword(password, salt, Crypto.DEFAULT_SECRET_KEY_FACTORY_ALGORITHM, Crypto.DEFAULT_CIPHER_ALGORITHM);
+    }
+
+    public static SecretKey generateKeyFromPassword(String password, byte[] salt, String keyFactoryAlgorithm, String cipherAlgorithm) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        SecretKeyFactory factory = SecretKeyFactory.getInstance(keyFactoryAlgorithm);
+        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, Crypto.ITERATION_COUNT, Crypto.KEY_LENGTH);
+        byte[] keyBytes = factory.generateSecret(spec).getEncoded();
+        return new SecretKeySpec(keyBytes, Crypto.getKeyAlgorithm(cipherAlgorithm));
+    }
+
+    /**
+     * Derives key material from a secret with HKDF-SHA256 as specified by RFC 5869.
+     *
+     * @param secret the input key material
+     * @param salt   the salt, should be random
+     * @param info   what the key material is used for
+     * @param length the number of bytes to derive, at most 255 * 32
+     * @return the derived bytes
+     * @throws NoSuchAlgorithmException if HMAC-SHA256 is not available
+     * @throws InvalidKeyException      if the salt is empty
+     */
+    public static byte[] hkdf(byte[] secret, byte[] salt, byte[] info, int length) throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac mac = Mac.getInstance(Crypto.HKDF_MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(salt, Crypto.HKDF_MAC_ALGORITHM));
+        byte[] pseudoRandomKey = mac.doFinal(secret);
+        mac.init(new SecretKeySpec(pseudoRandomKey, Crypto.HKDF_MAC_ALGORITHM));
+        Arrays.fill(pseudoRandomKey, (byte) 0);
+        byte[] result = new byte[length];
+        byte[] block = new byte[0];
+        for (int offset = 0, counter = 1; offset < length; offset += block.length, counter++) {
+            mac.update(block);
+            mac.update(info);
+            mac.update((byte) counter);
+            Arrays.fill(block, (byte) 0);
+            block = mac.doFinal();
+            System.arraycopy(block, 0, result, offset, Math.min(block.length, length - offset));
+        }
+        Arrays.fill(block, (byte) 0);
+        return result;
+    }
+
+    /**
+     * Derives the key material of an archive from the master key, which is derived from the
+     * password only once per run.
+     */
+    private static byte[] deriveArchiveKey(String password, byte[] salt, int iterations, byte[] archiveSalt, byte[] info, int length)
+            throws CryptoSetupException {
+        try {
+            byte[] masterKey = KeyCache.get(Crypto.MASTER_KEY_FACTORY_ALGORITHM, password, salt, iterations, Crypto.MASTER_KEY_LENGTH);
+            try {
+                return Crypto.hkdf(masterKey, archiveSalt, info, length);
+            } finally {
+                Arrays.fill(masterKey, (byte) 0);
+            }
+        } catch (GeneralSecurityException e) {
+            EngineLog.e(Crypto.TAG, "Could not setup encryption: " + e.getMessage());
+            throw new CryptoSetupException("Could not setup encryption", e);
+        }
+    }
+
+    /**
+     * Derives the key of the chunk store's ids from the master key. Unlike the keys of archives,
+     * it's the same for every backup with the password and salt, so the chunks are found again.
+     *
+     * @param password the password
+     * @param salt     the salt of the key derivation
+     * @return the key
+     * @throws CryptoSetupException if the key could not be derived
+     */
+    public static byte[] deriveChunkIdKey(String password, byte[] salt) throws CryptoSetupException {
+        return Crypto.deriveArchiveKey(password, salt, Crypto.MASTER_KEY_ITERATION_COUNT, salt, Crypto.HKDF_CHUNK_ID_INFO,
+                Crypto.ARCHIVE_KEY_LENGTH);
+    }
+
+    private static SecretKey deriveAeadKey(EncryptionAlgorithm algorithm, String password, byte[] salt, int iterations, byte[] archiveSalt)
+            throws CryptoSetupException {
+        byte[] keyMaterial = Crypto.deriveArchiveKey(password, salt, iterations, archiveSalt, algorithm.getKeyInfo(), Crypto.ARCHIVE_KEY_LENGTH);
+        try {
+            return new SecretKeySpec(keyMaterial, algorithm.getKeyAlgorithm());
+        } finally {
+            Arrays.fill(keyMaterial, (byte) 0);
+        }
+    }
+
+    private static String getKeyAlgorithm(String cipherAlgorithm) {
+        return cipherAlgorithm.split(File.separator)[0];
+    }
+
+    public static OutputStream encryptStream(OutputStream os, String password, byte[] salt) throws CryptoSetupException, IOException {
+        return Crypto.encryptStream(os, password, salt, EncryptionAlgorithm.DEFAULT, 1);
+    }
+
+    /**
+     * Writes the header with a new random salt and nonce prefix and wraps the stream to encrypt
+     * chunks of ENCRYPTION_CHUNK_SIZE with the algorithm and the key derived from the master key
+     * and the salt.
+     *
+     * @param algorithm the cipher of the chunks
+     * @param threads   number of threads encrypting chunks
+     * @throws IOException if the header could not be written
+     */
+    public static OutputStream encryptStream(OutputStream os, String password, byte[] salt, EncryptionAlgorithm algorithm, int threads)
+            throws CryptoSetupException, IOException {
+        byte[] archiveSalt = new byte[Crypto.ARCHIVE_SALT_LENGTH];
+        Crypto.RANDOM.nextBytes(archiveSalt);
+        byte[] noncePrefix = new byte[ChunkedAeadOutputStream.NONCE_PREFIX_LENGTH];
+        Crypto.RANDOM.nextBytes(noncePrefix);
+        SecretKey key = Crypto.deriveAeadKey(algorithm, password, salt, Crypto.MASTER_KEY_ITERATION_COUNT, archiveSalt);
+        byte[] header = Crypto.getAeadHeader(algorithm, Crypto.MASTER_KEY_ITERATION_COUNT, archiveSalt,
+                Crypto.ENCRYPTION_CHUNK_SIZE, noncePrefix);
+        os.write(header);
+        return new ChunkedAeadOutputStream(os, algorithm, key, noncePrefix, header, Crypto.ENCRYPTION_CHUNK_SIZE, threads);
+    }
+
+    private static byte[] getAeadHeader(EncryptionAlgorithm algorithm, int iterations, byte[] archiveSalt, int chunkSize, byte[] noncePrefix)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.write(Crypto.HEADER_MAGIC);
+        header.writeByte(Crypto.HEADER_VERSION);
+        header.writeByte(algorithm.getId());
+        header.writeInt(iterations);
+        header.write(archiveSalt);
+        header.writeInt(chunkSize);
+        header.write(noncePrefix);
+        return bytes.toByteArray();
+    }
+
+    public static CipherOutputStream encryptStream(OutputStream os, SecretKey secret) throws CryptoSetupException {
+        return Crypto.encryptStream(os, secret, Crypto.DEFAULT_CIPHER_ALGORITHM);
+    }
+
+    public static CipherOutputStream encryptStream(OutputStream os, SecretKey secret, String cipherAlgorithm) throws CryptoSetupException {
+        try {
+            Cipher cipher = Cipher.getInstance(cipherAlgorithm);
+            final IvParameterSpec iv = new IvParameterSpec(Crypto.initIv(cipherAlgorithm));
+            cipher.init(Cipher.ENCRYPT_MODE, secret, iv);
+            return new CipherOutputStream(os, cipher);
+        } catch (NoSuchAlgorithmException | InvalidKeyException | InvalidAlgorithmParameterException | NoSuchPaddingException e) {
+            EngineLog.e(Crypto.TAG, "Could not setup encryption: " + e.getMessage());
+            throw new CryptoSetupException("Could not setup encryption", e);
+        }
+    }
+
+    public static InputStream decryptStream(InputStream in, String password, byte[] salt) throws CryptoSetupException, IOException {
+        return Crypto.decryptStream(in, password, salt, 1);
+    }
+
+    /**
+     * Reads the header and wraps the stream to decrypt with the key derived from the master key
+     * and the header's salt. Streams without header are decrypted with the key derived directly
+     * from the password.
+     *
+     * @param threads number of threads decrypting chunks, if the stream is chunked
+     * @throws IOException if the header could not be read or has an unknown version
+     */
+    public static InputStream decryptStream(InputStream in, String password, byte[] salt, int threads) throws CryptoSetupException, IOException {
+        PushbackInputStream pushbackIn = new PushbackInputStream(in, Crypto.HEADER_MAGIC.length);
+        byte[] magic = new byte[Crypto.HEADER_MAGIC.length];
+        int length = 0;
+        int read;
+        while (length < magic.length && (read = pushbackIn.read(magic, length, magic.length - length)) != -1) {
+            length += read;
+        }
+        if (!Arrays.equals(magic, Crypto.HEADER_MAGIC)) {
+            pushbackIn.unread(magic, 0, length);
+            try {
+                byte[] key = KeyCache.get(Crypto.DEFAULT_SECRET_KEY_FACTORY_ALGORITHM, password, salt, Crypto.ITERATION_COUNT, Crypto.KEY_LENGTH);
+                SecretKeySpec keySpec;
+                try {
+                    // the spec keeps its own copy
+                    keySpec = new SecretKeySpec(key, Crypto.getKeyAlgorithm(Crypto.DEFAULT_CIPHER_ALGORITHM));
+                } finally {
+                    Arrays.fill(key, (byte) 0);
+                }
+                return Crypto.decryptStream(pushbackIn, keySpec);
+            } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+                EngineLog.e(Crypto.TAG, "Could not setup encryption: " + e.getMessage());
+                throw new CryptoSetupException("Could not setup encryption", e);
+            }
+        }
+        DataInputStream header = new DataInputStream(pushbackIn);
+        int version = header.readUnsignedByte();
+        if (version != Crypto.HEADER_VERSION) {
+            throw new IOException("Unsupported encryption header version " + version);
+        }
+        int algorithmId = header.readUnsignedByte();
+        EncryptionAlgorithm algorithm = EncryptionAlgorithm.fromId(algorithmId);
+        if (algorithm == null) {
+            throw new IOException("Unsupported encryption algorithm " + algorithmId);
+        }
+        if (!algorithm.isAvailable()) {
+            throw new CryptoSetupException(String.format("Encryption algorithm %s is not available on this device", algorithm.getName()), null);
+        }
+        int iterations = header.readInt();
+        if (iterations <= 0 || iterations > Crypto.MAX_MASTER_KEY_ITERATION_COUNT) {
+            throw new IOException("Invalid iteration count in encryption header: " + iterations);
+        }
+        byte[] archiveSalt = new byte[Crypto.ARCHIVE_SALT_LENGTH];
+        header.readFully(archiveSalt);
+        int chunkSize = header.readInt();
+        if (chunkSize <= 0 || chunkSize > Crypto.MAX_ENCRYPTION_CHUNK_SIZE) {
+            throw new IOException("Invalid chunk size in encryption header: " + chunkSize);
+        }
+        byte[] noncePrefix = new byte[ChunkedAeadOutputStream.NONCE_PREFIX_LENGTH];
+        header.readFully(noncePrefix);
+        SecretKey key = Crypto.deriveAeadKey(algorithm, password, salt, iterations, archiveSalt);
+        return new ChunkedAeadInputStream(pushbackIn, algorithm, key, noncePrefix,
+                Crypto.getAeadHeader(algorithm, iterations, archiveSalt, chunkSize, noncePrefix), chunkSize, threads);
+    }
+
+    public static CipherInputStream decryptStream(InputStream in, SecretKey secret) throws CryptoSetupException {
+        return Crypto.decryptStream(in, secret, Crypto.DEFAULT_CIPHER_ALGORITHM);
+    }
+
+    public static CipherInputStream decryptStream(InputStream in, SecretKey secret, String cipherAlgorithm) throws CryptoSetupException {
+        try {
+            Cipher cipher = Cipher.getInstance(cipherAlgorithm);
+            final IvParameterSpec iv = new IvParameterSpec(Crypto.initIv(cipherAlgorithm));
+            cipher.init(Cipher.DECRYPT_MODE, secret, iv);
+            return new CipherInputStream(in, cipher);
+        } catch (NoSuchPaddingException | NoSuchAlgorithmException | InvalidAlgorithmParameterException | InvalidKeyException e) {
+            EngineLog.e(Crypto.TAG, "Could not setup encryption: " + e.getMessage());
+            throw new CryptoSetupException("Could not setup encryption", e);
+        }
+    }
+
+    private static byte[] initIv(String cipherAlgorithm) {
+        int blockSize;
+        try {
+            Cipher cipher = Cipher.getInstance(cipherAlgorithm);
+            blockSize = cipher.getBlockSize();
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            // Fallback if the cipher has issues. Might lead to another exception later, but saves
+            // the situation here. The use cipher might not match or will cause other exceptions
+            // when used like this.
+            blockSize = Crypto.DEFAULT_IV_BLOCK_SIZE;
+        }
+        // IV is nothing secret. Could also be constant, but why not spend a few cpu cycles to have
+        // it dynamic, if the algorithm changes?
+        byte[] iv = new byte[blockSize];
+        for (int i = 0; i < blockSize; ++i) {
+            iv[i] = 0;
+        }
+        return iv;
+    }
+
+    public static class CryptoSetupException extends Exception {
+        public CryptoSetupException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
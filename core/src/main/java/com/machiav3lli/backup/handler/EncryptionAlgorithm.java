@@ -0,0 +1,147 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.AlgorithmParameterSpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * The AEAD ciphers, that can encrypt the chunks of an archive. Both use 256 bit keys, 96 bit
+ * nonces and 128 bit tags. AES-GCM is fast with hardware support for AES, ChaCha20-Poly1305
+ * without it. The algorithm is part of the archive's header and recorded in the log file.
+ */
+public enum EncryptionAlgorithm {
+    AES_GCM("aes-gcm", 1, "AES", "oandbackupx archive gcm", "AES/GCM/NoPadding"),
+    /**
+     * Available with Java 11 and Android 9
+     */
+    CHACHA20_POLY1305("chacha20-poly1305", 2, "ChaCha20", "oandbackupx archive chacha20-poly1305",
+            "ChaCha20-Poly1305", "ChaCha20/Poly1305/NoPadding");
+
+    public static final EncryptionAlgorithm DEFAULT = EncryptionAlgorithm.AES_GCM;
+    static final int TAG_LENGTH = 16;  // 128 bit
+    private final String algorithmName;
+    private final int id;
+    private final String keyAlgorithm;
+    private final byte[] keyInfo;
+    private final String[] transformations;
+
+    EncryptionAlgorithm(String algorithmName, int id, String keyAlgorithm, String keyInfo, String... transformations) {
+        this.algorithmName = algorithmName;
+        this.id = id;
+        this.keyAlgorithm = keyAlgorithm;
+        this.keyInfo = keyInfo.getBytes(StandardCharsets.UTF_8);
+        // the providers of Java and Android name them differently
+        this.transformations = transformations;
+    }
+
+    /**
+     * Looks up an algorithm by its name as stored in the preferences and log files.
+     *
+     * @param name the algorithm's name
+     * @return the algorithm or null, if the name is unknown or null
+     */
+    public static EncryptionAlgorithm fromName(String name) {
+        for (EncryptionAlgorithm algorithm : EncryptionAlgorithm.values()) {
+            if (algorithm.algorithmName.equals(name)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Looks up an algorithm by its id as stored in archive headers.
+     *
+     * @param id the algorithm's id
+     * @return the algorithm or null, if the id is unknown
+     */
+    public static EncryptionAlgorithm fromId(int id) {
+        for (EncryptionAlgorithm algorithm : EncryptionAlgorithm.values()) {
+            if (algorithm.id == id) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    public String getName() {
+        return this.algorithmName;
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    public String getKeyAlgorithm() {
+        return this.keyAlgorithm;
+    }
+
+    /**
+     * @return the HKDF info, the archive keys of this algorithm are derived with
+     */
+    byte[] getKeyInfo() {
+        return this.keyInfo;
+    }
+
+    /**
+     * @return true, if a provider of this device supports the algorithm
+     */
+    public boolean isAvailable() {
+        try {
+            this.createCipher();
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return a new cipher of the first transformation name, that is supported
+     * @throws NoSuchAlgorithmException if no provider supports the algorithm
+     * @throws NoSuchPaddingException   if no provider supports the algorithm
+     */
+    public Cipher createCipher() throws NoSuchAlgorithmException, NoSuchPaddingException {
+        NoSuchAlgorithmException lastException = null;
+        for (String transformation : this.transformations) {
+            try {
+                return Cipher.getInstance(transformation);
+            } catch (NoSuchAlgorithmException e) {
+                lastException = e;
+            }
+        }
+        throw lastException;
+    }
+
+    /**
+     * @param nonce the 96 bit nonce
+     * @return the parameters to initialize a cipher with
+     */
+    public AlgorithmParameterSpec getParameterSpec(byte[] nonce) {
+        return this == EncryptionAlgorithm.AES_GCM
+                ? new GCMParameterSpec(EncryptionAlgorithm.TAG_LENGTH * 8, nonce)
+                : new IvParameterSpec(nonce);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects, what the exclusion rules left out during a batch of backups or restores. Every batch
+ * has its own report, so batches running at the same time don't mix their apps. At the end of
+ * the batch, the report is appended to {@code exclusionReport.txt} in the backup directory.
+ * <p>
+ * Excluded directories count as one entry. They are not walked to measure their size, because
+ * that would cost about as much as backing them up, so the bytes are the ones of excluded files.
+ */
+public final class ExclusionReport {
+    public static final String FILE_NAME = "exclusionReport.txt";
+    private final Map<String, long[]> excluded = new TreeMap<>();
+
+    /**
+     * Adds what was excluded for a package.
+     *
+     * @param packageName the package
+     * @param rules       the rules, that were used for the package
+     */
+    public synchronized void add(String packageName, ExclusionRules rules) {
+        if (rules.getExcludedEntries() == 0) {
+            return;
+        }
+        long[] counts = this.excluded.computeIfAbsent(packageName, k -> new long[2]);
+        counts[0] += rules.getExcludedEntries();
+        counts[1] += rules.getExcludedBytes();
+    }
+
+    /**
+     * Appends the report of the finished batch to the report file.
+     *
+     * @param backupDirectory the backup directory
+     * @throws IOException if the report could not be written
+     */
+    public synchronized void write(File backupDirectory) throws IOException {
+        if (this.excluded.isEmpty()) {
+            return;
+        }
+        long totalEntries = 0;
+        long totalBytes = 0;
+        for (long[] counts : this.excluded.values()) {
+            totalEntries += counts[0];
+            totalBytes += counts[1];
+        }
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(new File(backupDirectory, ExclusionReport.FILE_NAME), true))) {
+            writer.write(String.format("%s: excluded %d entries, %d bytes of files\n",
+                    new SimpleDateFormat("yyyy/MM/dd - HH:mm:ss", Locale.ENGLISH).format(new Date()), totalEntries, totalBytes));
+            for (Map.Entry<String, long[]> entry : this.excluded.entrySet()) {
+                writer.write(String.format("    %s: %d entries, %d bytes of files\n", entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+            }
+        }
+    }
+}
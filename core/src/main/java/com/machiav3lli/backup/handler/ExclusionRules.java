@@ -0,0 +1,243 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.EngineLog;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which files of an app's data are left out of backups and restores.
+ * <p>
+ * The rules are read from {@code exclusions.txt} in the backup directory. Every line is a glob
+ * pattern relative to the root of a data component, e.g. {@code app_webview/*}{@code /Cache}
+ * or {@code files/.cache}. {@code *} and {@code ?} match within a path segment, {@code **}
+ * matches across segments. A matching directory is excluded with all of its contents.
+ * {@code maxsize 50M} excludes files larger than the given size. Rules following a line like
+ * {@code [com.example.app]} only apply to this package, the ones before the first section to
+ * all packages. Empty lines and lines starting with # are ignored.
+ * <p>
+ * The rules count the entries and bytes they excluded. The rules are used by the threads
+ * backing up the data components at the same time.
+ */
+public class ExclusionRules {
+    public static final String FILE_NAME = "exclusions.txt";
+    // excluded by the "exclude cache" preference
+    public static final List<String> CACHE_PATTERNS = Arrays.asList(
+            "cache", "code_cache", "lib", "app_webview/*/Cache", "app_webview/*/Code Cache", "app_webview/*/GPUCache");
+    private static final String TAG = Constants.classTag(".ExclusionRules");
+    private static final String MAX_SIZE_KEYWORD = "maxsize";
+    private final List<Pattern> patterns = new ArrayList<>();
+    private final AtomicLong excludedEntries = new AtomicLong();
+    private final AtomicLong excludedBytes = new AtomicLong();
+    private long maxFileSize = Long.MAX_VALUE;
+
+    /**
+     * @param excludeCache if the cache patterns are added
+     * @return the rules, that apply without a rules file
+     */
+    public static ExclusionRules defaults(boolean excludeCache) {
+        ExclusionRules rules = new ExclusionRules();
+        if (excludeCache) {
+            for (String glob : ExclusionRules.CACHE_PATTERNS) {
+                rules.patterns.add(ExclusionRules.compile(glob));
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * Reads the rules for a package.
+     *
+     * @param rulesFile    the rules file. If it doesn't exist, only the cache patterns are used.
+     * @param packageName  the package to read the rules for
+     * @param excludeCache if the cache patterns are added
+     * @return the rules, that apply to the package
+     * @throws IOException if the rules file could not be read or is malformed
+     */
+    public static ExclusionRules load(File rulesFile, String packageName, boolean excludeCache) throws IOException {
+        ExclusionRules rules = ExclusionRules.defaults(excludeCache);
+        if (!rulesFile.exists()) {
+            return rules;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(rulesFile))) {
+            String line;
+            boolean applies = true;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                if (line.startsWith("[") && line.endsWith("]")) {
+                    applies = line.substring(1, line.length() - 1).trim().equals(packageName);
+                } else if (!applies) {
+                    continue;
+                } else if (line.toLowerCase(Locale.ROOT).startsWith(ExclusionRules.MAX_SIZE_KEYWORD + ' ')) {
+                    // the smallest applying cap wins
+                    rules.maxFileSize = Math.min(rules.maxFileSize,
+                            ExclusionRules.parseSize(line.substring(ExclusionRules.MAX_SIZE_KEYWORD.length()).trim()));
+                } else {
+                    rules.patterns.add(ExclusionRules.compile(line));
+                }
+            }
+        }
+        EngineLog.d(ExclusionRules.TAG, String.format("%s: %d exclusion patterns, max file size %d",
+                packageName, rules.patterns.size(), rules.maxFileSize));
+        return rules;
+    }
+
+    private static long parseSize(String size) throws IOException {
+        long factor = 1;
+        switch (Character.toUpperCase(size.charAt(size.length() - 1))) {
+            case 'K':
+                factor = 1024;
+                break;
+            case 'M':
+                factor = 1024 * 1024;
+                break;
+            case 'G':
+                factor = 1024 * 1024 * 1024;
+                break;
+        }
+        try {
+            long value = Long.parseLong(factor == 1 ? size : size.substring(0, size.length() - 1).trim());
+            // a negative cap would exclude all files
+            if (value < 0) {
+                throw new IOException("Invalid size in exclusion rules: " + size);
+            }
+            return Math.multiplyExact(value, factor);
+        } catch (NumberFormatException | ArithmeticException e) {
+            throw new IOException("Invalid size in exclusion rules: " + size, e);
+        }
+    }
+
+    private static Pattern compile(String glob) {
+        // leading and trailing slashes are optional, all paths are relative to the component
+        while (glob.startsWith("/")) {
+            glob = glob.substring(1);
+        }
+        while (glob.endsWith("/")) {
+            glob = glob.substring(0, glob.length() - 1);
+        }
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                regex.append(".*");
+                i++;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * @return the patterns and the size cap, which differ, if other entries are excluded
+     */
+    public String getDescription() {
+        StringBuilder description = new StringBuilder(ExclusionRules.MAX_SIZE_KEYWORD).append(' ').append(this.maxFileSize);
+        for (Pattern pattern : this.patterns) {
+            description.append('\n').append(pattern.pattern());
+        }
+        return description.toString();
+    }
+
+    /**
+     * Checks if a path or one of its parent directories matches a pattern.
+     *
+     * @param path the path relative to the component's root, e.g. files/.cache/x
+     * @return true, if the path is excluded
+     */
+    public boolean isExcluded(String path) {
+        if (this.patterns.isEmpty()) {
+            return false;
+        }
+        int end = 0;
+        while (end >= 0) {
+            end = path.indexOf('/', end + 1);
+            String prefix = end < 0 ? path : path.substring(0, end);
+            for (Pattern pattern : this.patterns) {
+                if (pattern.matcher(prefix).matches()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if an archive entry is excluded and counts it. The entry's name starts with the
+     * component, e.g. data/files/.cache
+     *
+     * @param entry the entry to check
+     * @return true, if the entry is excluded
+     */
+    public boolean isExcluded(TarArchiveEntry entry) {
+        String name = entry.getName();
+        if (name.endsWith("/")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        int separator = name.indexOf('/');
+        if (separator < 0) {
+            // the component's root directory
+            return false;
+        }
+        boolean excluded = (!entry.isDirectory() && entry.getSize() > this.maxFileSize)
+                || this.isExcluded(name.substring(separator + 1));
+        if (excluded) {
+            this.countExcluded(1, entry.isDirectory() ? 0 : entry.getSize());
+        }
+        return excluded;
+    }
+
+    /**
+     * Counts excluded files or directories.
+     *
+     * @param entries the number of excluded files and directories
+     * @param bytes   the size of the files, directories are not measured
+     */
+    public void countExcluded(int entries, long bytes) {
+        this.excludedEntries.addAndGet(entries);
+        this.excludedBytes.addAndGet(bytes);
+    }
+
+    public long getExcludedEntries() {
+        return this.excludedEntries.get();
+    }
+
+    public long getExcludedBytes() {
+        return this.excludedBytes.get();
+    }
+}
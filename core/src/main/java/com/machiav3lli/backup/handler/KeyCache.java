@@ -0,0 +1,97 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Keeps the keys derived from the password during a run, so the expensive key derivation runs
+ * once and not for every archive. The keys are stored as byte arrays, which are overwritten by
+ * wipe at the end of the run. The password itself is not kept, entries are looked up by a hash
+ * of the password and the derivation's parameters.
+ */
+public final class KeyCache {
+    private static final Map<String, byte[]> KEYS = new HashMap<>();
+
+    private KeyCache() {
+    }
+
+    /**
+     * Returns the key derived from the password or derives it. Threads asking for a key at the
+     * same time wait for the first one to derive it. The returned array is a copy, which the
+     * caller overwrites after use. So wipe at the end of one run doesn't destroy the keys, that
+     * other runs still use, they only derive them again.
+     *
+     * @param keyFactoryAlgorithm a PBKDF2 algorithm of SecretKeyFactory
+     * @param password            the password
+     * @param salt                the salt
+     * @param iterations          the iteration count
+     * @param keyLength           the key length in bits
+     * @return the key
+     * @throws NoSuchAlgorithmException if the algorithm is not available
+     * @throws InvalidKeySpecException  if the parameters are not supported by the algorithm
+     */
+    static synchronized byte[] get(String keyFactoryAlgorithm, String password, byte[] salt, int iterations, int keyLength)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+        String id = KeyCache.getId(keyFactoryAlgorithm, password, salt, iterations, keyLength);
+        byte[] key = KeyCache.KEYS.get(id);
+        if (key == null) {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(keyFactoryAlgorithm);
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, keyLength);
+            try {
+                key = factory.generateSecret(spec).getEncoded();
+            } finally {
+                spec.clearPassword();
+            }
+            KeyCache.KEYS.put(id, key);
+        }
+        return key.clone();
+    }
+
+    /**
+     * Overwrites and forgets all keys. The next run derives them again.
+     */
+    public static synchronized void wipe() {
+        for (byte[] key : KeyCache.KEYS.values()) {
+            Arrays.fill(key, (byte) 0);
+        }
+        KeyCache.KEYS.clear();
+    }
+
+    private static String getId(String keyFactoryAlgorithm, String password, byte[] salt, int iterations, int keyLength)
+            throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(String.format("%s:%d:%d:%d:", keyFactoryAlgorithm, iterations, keyLength, salt.length).getBytes(StandardCharsets.UTF_8));
+        digest.update(salt);
+        digest.update(password.getBytes(StandardCharsets.UTF_8));
+        StringBuilder id = new StringBuilder();
+        for (byte b : digest.digest()) {
+            id.append(String.format("%02x", b));
+        }
+        return id.toString();
+    }
+}
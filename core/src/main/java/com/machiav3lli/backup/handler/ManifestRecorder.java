@@ -0,0 +1,114 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import com.machiav3lli.backup.items.BackupManifest;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Records the entries written to an archive into a manifest and decides which entries can be
+ * left out of an incremental archive, because they are unchanged since the previous backup.
+ */
+public class ManifestRecorder {
+    private static final String HASH_ALGORITHM = "MD5";
+    private final BackupManifest previous;
+    private final BackupManifest current;
+    private long skippedEntries;
+
+    /**
+     * @param previous the manifest of the previous backup or null for a full backup
+     * @param current  the manifest to record the entries of this backup to
+     */
+    public ManifestRecorder(BackupManifest previous, BackupManifest current) {
+        this.previous = previous;
+        this.current = current;
+    }
+
+    public static String toPath(TarArchiveEntry entry) {
+        String name = entry.getName();
+        return name.endsWith("/") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    private static BackupManifest.Entry toManifestEntry(TarArchiveEntry entry, String hash) {
+        return new BackupManifest.Entry(
+                ManifestRecorder.toPath(entry),
+                entry.getMode(),
+                entry.getSize(),
+                entry.getModTime().getTime() / 1000,
+                hash);
+    }
+
+    /**
+     * Checks if the entry has to be written to the archive. Directories are always written, so
+     * empty directories are restored. An unchanged entry is recorded with the metadata of the
+     * previous backup.
+     *
+     * @param entry the entry to check
+     * @return false, if the entry is unchanged and can be left out
+     */
+    public boolean shouldArchive(TarArchiveEntry entry) {
+        if (this.previous == null || entry.isDirectory()) {
+            return true;
+        }
+        BackupManifest.Entry previousEntry = this.previous.get(ManifestRecorder.toPath(entry));
+        if (ManifestRecorder.toManifestEntry(entry, BackupManifest.NO_HASH).hasSameMetadata(previousEntry)) {
+            this.current.put(previousEntry);
+            this.skippedEntries++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return a digest to hash the content of the next entry with
+     */
+    public MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ManifestRecorder.HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // MD5 is guaranteed to be available
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Records an entry, that has been written to the archive.
+     *
+     * @param entry  the written entry
+     * @param digest the digest of the content or null, if the entry has no content
+     */
+    public void record(TarArchiveEntry entry, MessageDigest digest) {
+        String hash = BackupManifest.NO_HASH;
+        if (digest != null) {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            hash = sb.toString();
+        }
+        this.current.put(ManifestRecorder.toManifestEntry(entry, hash));
+    }
+
+    public long getSkippedEntries() {
+        return this.skippedEntries;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the time spent in the wrapped stream and the bytes read from it, see PhaseStats.meter.
+ */
+class MeteredInputStream extends FilterInputStream {
+    private final PhaseStats stats;
+    private final PhaseStats.Phase caller;
+    private final PhaseStats.Phase callee;
+
+    MeteredInputStream(InputStream in, PhaseStats stats, PhaseStats.Phase caller, PhaseStats.Phase callee) {
+        super(in);
+        this.stats = stats;
+        this.caller = caller;
+        this.callee = callee;
+    }
+
+    private void count(long start, long bytes) {
+        long nanos = System.nanoTime() - start;
+        if (this.callee != null) {
+            this.stats.add(this.callee, nanos, Math.max(0, bytes));
+        }
+        if (this.caller != null) {
+            this.stats.add(this.caller, -nanos, 0);
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        long start = System.nanoTime();
+        int b = -1;
+        try {
+            b = this.in.read();
+            return b;
+        } finally {
+            this.count(start, b >= 0 ? 1 : 0);
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        int read = -1;
+        try {
+            read = this.in.read(b, off, len);
+            return read;
+        } finally {
+            this.count(start, read);
+        }
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long start = System.nanoTime();
+        long skipped = 0;
+        try {
+            skipped = this.in.skip(n);
+            return skipped;
+        } finally {
+            this.count(start, skipped);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        long start = System.nanoTime();
+        try {
+            this.in.close();
+        } finally {
+            this.count(start, 0);
+        }
+    }
+}
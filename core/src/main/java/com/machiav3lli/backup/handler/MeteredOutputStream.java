@@ -0,0 +1,102 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the time spent in the wrapped stream and the bytes written to it, see PhaseStats.meter.
+ * If the wrapped stream is an AdaptiveCompressor, the store only hint is passed on to it.
+ */
+class MeteredOutputStream extends FilterOutputStream implements AdaptiveCompressor {
+    private final PhaseStats stats;
+    private final PhaseStats.Phase caller;
+    private final PhaseStats.Phase callee;
+
+    MeteredOutputStream(OutputStream out, PhaseStats stats, PhaseStats.Phase caller, PhaseStats.Phase callee) {
+        super(out);
+        this.stats = stats;
+        this.caller = caller;
+        this.callee = callee;
+    }
+
+    private void count(long start, long bytes) {
+        long nanos = System.nanoTime() - start;
+        if (this.callee != null) {
+            this.stats.add(this.callee, nanos, bytes);
+        }
+        if (this.caller != null) {
+            this.stats.add(this.caller, -nanos, 0);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        long start = System.nanoTime();
+        try {
+            this.out.write(b);
+        } finally {
+            this.count(start, 1);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        long start = System.nanoTime();
+        try {
+            this.out.write(b, off, len);
+        } finally {
+            this.count(start, len);
+        }
+    }
+
+    @Override
+    public void setStoreOnly(boolean storeOnly) throws IOException {
+        if (!(this.out instanceof AdaptiveCompressor)) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            ((AdaptiveCompressor) this.out).setStoreOnly(storeOnly);
+        } finally {
+            this.count(start, 0);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        long start = System.nanoTime();
+        try {
+            this.out.flush();
+        } finally {
+            this.count(start, 0);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        long start = System.nanoTime();
+        try {
+            this.out.close();
+        } finally {
+            this.count(start, 0);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipParameters;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compressor, that deflates blocks of the input on several threads (like pigz does).
+ * <p>
+ * Every block is written as a complete gzip member. The result is a standard multi member gzip
+ * file, that can be read by gunzip or by GzipCompressorInputStream with decompressConcatenated
+ * enabled. Blocks are compressed independently, so the ratio is slightly worse than the one of a
+ * single stream.
+ * <p>
+ * Blocks, which only received data while store only was set, are written as stored deflate
+ * blocks.
+ */
+public class ParallelGzipOutputStream extends OutputStream implements AdaptiveCompressor {
+    public static final int MIN_BLOCK_SIZE = 64 * 1024;
+    public static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+    private final OutputStream out;
+    private final ExecutorService executor;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final int maxPending;
+    private final int compressionLevel;
+    private final int blockSize;
+    private byte[] buffer;
+    private int bufferLength;
+    private boolean membersWritten;
+    private boolean storeOnly;
+    private boolean blockCompressible;
+    private boolean closed;
+
+    public ParallelGzipOutputStream(OutputStream out, int threads, int blockSize) {
+        this(out, threads, blockSize, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param out              the stream to write the compressed data to
+     * @param threads          number of threads used for compression
+     * @param blockSize        size of the uncompressed blocks in bytes, at least 1
+     * @param compressionLevel deflate level or Deflater.DEFAULT_COMPRESSION
+     * @throws IllegalArgumentException if threads or blockSize is less than 1
+     */
+    public ParallelGzipOutputStream(OutputStream out, int threads, int blockSize, int compressionLevel) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid number of compression threads: " + threads);
+        }
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Invalid compression block size: " + blockSize);
+        }
+        this.out = out;
+        this.executor = Executors.newFixedThreadPool(threads);
+        // keeps all threads busy, while the oldest block is written
+        this.maxPending = threads * 2;
+        this.blockSize = blockSize;
+        this.compressionLevel = compressionLevel;
+        this.buffer = new byte[blockSize];
+    }
+
+    /**
+     * Converts a configured block size into the size in bytes to compress in parallel.
+     *
+     * @param kibibytes the block size in KiB as configured
+     * @return the block size in bytes between MIN_BLOCK_SIZE and MAX_BLOCK_SIZE
+     */
+    public static int getBlockSize(int kibibytes) {
+        return (int) Math.max(ParallelGzipOutputStream.MIN_BLOCK_SIZE, Math.min(ParallelGzipOutputStream.MAX_BLOCK_SIZE, kibibytes * 1024L));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream closed");
+        }
+        while (len > 0) {
+            int count = Math.min(len, this.blockSize - this.bufferLength);
+            System.arraycopy(b, off, this.buffer, this.bufferLength, count);
+            this.bufferLength += count;
+            this.blockCompressible |= !this.storeOnly;
+            off += count;
+            len -= count;
+            if (this.bufferLength == this.blockSize) {
+                this.submitBlock();
+            }
+        }
+    }
+
+    private void submitBlock() throws IOException {
+        final byte[] block = this.buffer;
+        final int length = this.bufferLength;
+        final int level = this.blockCompressible ? this.compressionLevel : Deflater.NO_COMPRESSION;
+        this.pending.add(this.executor.submit(() -> this.compressBlock(block, length, level)));
+        this.buffer = new byte[this.blockSize];
+        this.bufferLength = 0;
+        this.blockCompressible = false;
+        while (this.pending.size() >= this.maxPending) {
+            this.writeOldestBlock();
+        }
+    }
+
+    private byte[] compressBlock(byte[] block, int length, int level) throws IOException {
+        GzipParameters parameters = new GzipParameters();
+        parameters.setCompressionLevel(level);
+        ByteArrayOutputStream member = new ByteArrayOutputStream(length / 2 + 64);
+        try (GzipCompressorOutputStream gzip = new GzipCompressorOutputStream(member, parameters)) {
+            gzip.write(block, 0, length);
+        }
+        return member.toByteArray();
+    }
+
+    private void writeOldestBlock() throws IOException {
+        try {
+            this.out.write(this.pending.removeFirst().get());
+            this.membersWritten = true;
+        } catch (ExecutionException e) {
+            throw new IOException("Compression of a block failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        }
+    }
+
+    @Override
+    public void setStoreOnly(boolean storeOnly) {
+        // a block is compressed, if any of its data is compressible
+        this.storeOnly = storeOnly;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // only blocks, that are complete, are flushed. Flushing partial blocks would create tiny members
+        while (!this.pending.isEmpty() && this.pending.peekFirst().isDone()) {
+            this.writeOldestBlock();
+        }
+        this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            // an empty input still has to produce a valid gzip file
+            if (this.bufferLength > 0 || (this.pending.isEmpty() && !this.membersWritten)) {
+                this.submitBlock();
+            }
+            while (!this.pending.isEmpty()) {
+                this.writeOldestBlock();
+            }
+        } finally {
+            this.executor.shutdownNow();
+            this.buffer = null;
+            this.out.close();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Time and bytes spent in the phases of backing up or restoring one component of an app.
+ * <p>
+ * The time of a phase is the time its thread was busy with it. Waiting for the next phase is
+ * not counted, so the phases of a pipeline add up to more than the wall time. The bytes are the
+ * ones handed to a phase during a backup and the ones returned by it during a restore, e.g. the
+ * size of the tar stream for compress and decompress or the size of the archive for write and
+ * read. The counters are updated by the threads of a pipeline at the same time.
+ * <p>
+ * The queue depths and stalls of the pipeline stages are kept by their names, see
+ * PipelineStats.
+ */
+public class PhaseStats {
+    private final AtomicLongArray nanos = new AtomicLongArray(Phase.values().length);
+    private final AtomicLongArray bytes = new AtomicLongArray(Phase.values().length);
+    private final Map<String, PipelineStats> pipelines = new ConcurrentSkipListMap<>();
+
+    /**
+     * Wraps a stream to count the time spent in it and the bytes written to it. The time is
+     * added to the phase behind the stream and subtracted from the writing one, so both only get
+     * their own time. Either phase may be null, if it runs on another thread.
+     *
+     * @param out    the stream of the callee
+     * @param stats  the stats to add to, null to return the stream unchanged
+     * @param caller the phase writing to the stream or null
+     * @param callee the phase behind the stream or null
+     */
+    public static OutputStream meter(OutputStream out, PhaseStats stats, Phase caller, Phase callee) {
+        return stats != null ? new MeteredOutputStream(out, stats, caller, callee) : out;
+    }
+
+    /**
+     * Like meter for output streams, but counts the bytes read from the stream.
+     */
+    public static InputStream meter(InputStream in, PhaseStats stats, Phase caller, Phase callee) {
+        return stats != null ? new MeteredInputStream(in, stats, caller, callee) : in;
+    }
+
+    public static PhaseStats fromJson(JSONObject jsonObject) throws JSONException {
+        PhaseStats stats = new PhaseStats();
+        for (Phase phase : Phase.values()) {
+            JSONObject phaseObject = jsonObject.optJSONObject(phase.getName());
+            if (phaseObject != null) {
+                stats.add(phase, phaseObject.getLong("millis") * 1000000, phaseObject.getLong("bytes"));
+            }
+        }
+        JSONObject pipelinesObject = jsonObject.optJSONObject("pipelines");
+        if (pipelinesObject != null) {
+            Iterator<String> names = pipelinesObject.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                stats.addPipeline(PipelineStats.fromJson(name, pipelinesObject.getJSONObject(name)));
+            }
+        }
+        return stats;
+    }
+
+    public void add(Phase phase, long nanos, long bytes) {
+        this.nanos.addAndGet(phase.ordinal(), nanos);
+        this.bytes.addAndGet(phase.ordinal(), bytes);
+    }
+
+    /**
+     * Adds the counters of other stats, e.g. of several archives of a component.
+     */
+    public void add(PhaseStats other) {
+        for (Phase phase : Phase.values()) {
+            this.add(phase, other.getNanos(phase), other.getBytes(phase));
+        }
+        for (PipelineStats pipeline : other.getPipelines()) {
+            this.addPipeline(pipeline);
+        }
+    }
+
+    /**
+     * Adds the counters of a pipeline stage, when its stream is closed.
+     */
+    public void addPipeline(PipelineStats pipeline) {
+        this.pipelines.computeIfAbsent(pipeline.getName(), name -> new PipelineStats(name, 0)).add(pipeline);
+    }
+
+    public Collection<PipelineStats> getPipelines() {
+        return this.pipelines.values();
+    }
+
+    /**
+     * Adds the stats of an archive, that has been created or read. Its tar phase gets the time
+     * since the start, from which the waiting for the other phases has been subtracted already,
+     * and the size of the tar stream.
+     *
+     * @param archiveStats the stats, the archive's streams were metered with
+     * @param tarPhase     TAR for a backup, EXTRACT for a restore
+     * @param startNanos   System.nanoTime() before the archive was opened
+     */
+    public void addArchive(PhaseStats archiveStats, Phase tarPhase, long startNanos) {
+        long tarBytes = archiveStats.getBytes(tarPhase == Phase.TAR ? Phase.COMPRESS : Phase.DECOMPRESS);
+        archiveStats.add(tarPhase, System.nanoTime() - startNanos, tarBytes);
+        this.add(archiveStats);
+    }
+
+    public long getNanos(Phase phase) {
+        return this.nanos.get(phase.ordinal());
+    }
+
+    public long getMillis(Phase phase) {
+        return this.getNanos(phase) / 1000000;
+    }
+
+    public long getBytes(Phase phase) {
+        return this.bytes.get(phase.ordinal());
+    }
+
+    /**
+     * @return the size of the compressed data divided by the size of the tar stream or 0, if
+     * nothing was compressed or decompressed
+     */
+    public double getCompressionRatio() {
+        long compressed;
+        long uncompressed;
+        if (this.getBytes(Phase.COMPRESS) > 0) {
+            compressed = this.getBytes(Phase.ENCRYPT) > 0 ? this.getBytes(Phase.ENCRYPT) : this.getBytes(Phase.WRITE);
+            uncompressed = this.getBytes(Phase.COMPRESS);
+        } else {
+            compressed = this.getBytes(Phase.DECRYPT) > 0 ? this.getBytes(Phase.DECRYPT) : this.getBytes(Phase.READ);
+            uncompressed = this.getBytes(Phase.DECOMPRESS);
+        }
+        return uncompressed > 0 ? (double) compressed / uncompressed : 0;
+    }
+
+    /**
+     * @return the bytes read from the app's files by a backup, the size of the tar stream, or
+     * from the backup by a restore, the size of the archive. The size of the copy, if the
+     * component is only copied like the apks.
+     */
+    public long getBytesIn() {
+        if (this.isUsed(Phase.TAR)) {
+            return this.getBytes(Phase.TAR);
+        }
+        return this.isUsed(Phase.READ) ? this.getBytes(Phase.READ) : this.getBytes(Phase.COPY);
+    }
+
+    /**
+     * @return the bytes written to the backup by a backup, the size of the archive, or to the
+     * app's files by a restore, the size of the tar stream. The size of the copy, if the
+     * component is only copied like the apks.
+     */
+    public long getBytesOut() {
+        if (this.isUsed(Phase.WRITE)) {
+            return this.getBytes(Phase.WRITE);
+        }
+        return this.isUsed(Phase.EXTRACT) ? this.getBytes(Phase.EXTRACT) : this.getBytes(Phase.COPY);
+    }
+
+    private boolean isUsed(Phase phase) {
+        return this.getNanos(phase) != 0 || this.getBytes(phase) != 0;
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject jsonObject = new JSONObject();
+        for (Phase phase : Phase.values()) {
+            if (this.isUsed(phase)) {
+                JSONObject phaseObject = new JSONObject();
+                phaseObject.put("millis", this.getMillis(phase));
+                phaseObject.put("bytes", this.getBytes(phase));
+                jsonObject.put(phase.getName(), phaseObject);
+            }
+        }
+        if (this.getCompressionRatio() > 0) {
+            jsonObject.put("compressionRatio", Math.round(this.getCompressionRatio() * 1000) / 1000.0);
+        }
+        if (!this.pipelines.isEmpty()) {
+            JSONObject pipelinesObject = new JSONObject();
+            for (PipelineStats pipeline : this.getPipelines()) {
+                pipelinesObject.put(pipeline.getName(), pipeline.toJson());
+            }
+            jsonObject.put("pipelines", pipelinesObject);
+        }
+        return jsonObject;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            if (this.isUsed(phase)) {
+                if (result.length() > 0) {
+                    result.append(", ");
+                }
+                result.append(String.format(Locale.ENGLISH, "%s %d ms %d bytes", phase.getName(), this.getMillis(phase), this.getBytes(phase)));
+            }
+        }
+        if (this.getCompressionRatio() > 0) {
+            result.append(String.format(Locale.ENGLISH, ", ratio %.3f", this.getCompressionRatio()));
+        }
+        for (PipelineStats pipeline : this.getPipelines()) {
+            result.append("; pipeline ").append(pipeline);
+        }
+        return result.toString();
+    }
+
+    public enum Phase {
+        /**
+         * listing the contents of a directory with the root shell
+         */
+        LIST,
+        /**
+         * copying or moving files with the root shell
+         */
+        COPY,
+        /**
+         * reading files and creating the tar stream of a backup
+         */
+        TAR,
+        COMPRESS,
+        ENCRYPT,
+        /**
+         * writing the archive file or chunks
+         */
+        WRITE,
+        /**
+         * reading the archive file or chunks
+         */
+        READ,
+        DECRYPT,
+        DECOMPRESS,
+        /**
+         * reading the tar stream and writing the files of a restore
+         */
+        EXTRACT;
+
+        public String getName() {
+            return this.name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+}
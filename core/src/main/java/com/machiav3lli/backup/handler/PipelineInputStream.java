@@ -0,0 +1,212 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.EngineLog;
+
+import org.apache.commons.compress.utils.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pipeline stage, that reads from the wrapped stream on its own thread.
+ * <p>
+ * The stage's thread reads ahead into blocks, which are handed to the reader through a bounded
+ * queue. Chaining stages lets reading/decrypting the archive, decompressing and expanding the
+ * entries run at the same time instead of waiting on each other. The blocks are recycled, at
+ * most depth + 2 of them exist at the same time.
+ */
+public class PipelineInputStream extends InputStream {
+    public static final int BLOCK_SIZE = 256 * 1024;
+    private static final String TAG = Constants.classTag(".PipelineInputStream");
+    private static final Block END = new Block(0);
+    private final InputStream in;
+    private final BlockingQueue<Block> filled;
+    private final BlockingQueue<Block> free;
+    private final int maxBlocks;
+    private final PipelineStats stats;
+    private final PhaseStats phaseStats;
+    private final Thread worker;
+    private volatile Throwable failure;
+    private volatile boolean closed;
+    private int allocatedBlocks;
+    private Block current;
+    private int position;
+
+    /**
+     * @param in    the stream to read from on the stage's thread
+     * @param name  the stage's name for the thread and the stats
+     * @param depth the number of blocks in addition to the ones being filled and read
+     */
+    public PipelineInputStream(InputStream in, String name, int depth) {
+        this(in, name, depth, null);
+    }
+
+    /**
+     * @param phaseStats the stats of the component, the stage's counters are added to on close,
+     *                   may be null
+     */
+    public PipelineInputStream(InputStream in, String name, int depth, PhaseStats phaseStats) {
+        this.in = in;
+        this.phaseStats = phaseStats;
+        // the blocks being filled and read are not queued
+        this.maxBlocks = depth + 2;
+        this.filled = new ArrayBlockingQueue<>(this.maxBlocks + 1);
+        this.free = new ArrayBlockingQueue<>(this.maxBlocks);
+        this.stats = new PipelineStats(name, this.maxBlocks);
+        this.worker = new Thread(this::fill, "pipeline-" + name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public PipelineStats getStats() {
+        return this.stats;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (this.current == null || this.position == this.current.length) {
+            if (this.current == PipelineInputStream.END) {
+                return -1;
+            }
+            this.nextFilledBlock();
+            if (this.current == PipelineInputStream.END) {
+                this.checkFailure();
+                return -1;
+            }
+        }
+        int length = Math.min(len, this.current.length - this.position);
+        System.arraycopy(this.current.data, this.position, b, off, length);
+        this.position += length;
+        return length;
+    }
+
+    @Override
+    public int available() {
+        return this.current == null ? 0 : this.current.length - this.position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        // the stage's thread might wait for a free block
+        this.worker.interrupt();
+        try {
+            this.worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.in.close();
+        EngineLog.d(PipelineInputStream.TAG, this.stats.toString());
+        if (this.phaseStats != null) {
+            this.phaseStats.addPipeline(this.stats);
+        }
+    }
+
+    private void nextFilledBlock() throws IOException {
+        if (this.current != null) {
+            this.free.add(this.current);
+        }
+        this.position = 0;
+        this.current = this.filled.poll();
+        if (this.current != null) {
+            return;
+        }
+        this.stats.countConsumerStall();
+        try {
+            this.current = this.filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the pipeline");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable failure = this.failure;
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new IOException(failure.getMessage(), failure);
+        }
+    }
+
+    private void fill() {
+        try {
+            while (!this.closed) {
+                Block block = this.free.poll();
+                if (block == null) {
+                    if (this.allocatedBlocks < this.maxBlocks) {
+                        this.allocatedBlocks++;
+                        block = new Block(PipelineInputStream.BLOCK_SIZE);
+                    } else {
+                        this.stats.countProducerStall();
+                        block = this.free.take();
+                    }
+                }
+                int length = IOUtils.readFully(this.in, block.data);
+                block.length = length;
+                if (length > 0) {
+                    this.filled.add(block);
+                    this.stats.countBlock(length, this.filled.size());
+                }
+                if (length < block.data.length) {
+                    // end of the stream
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed by the reader
+            return;
+        } catch (IOException | RuntimeException e) {
+            // thrown to the reader after the blocks read before
+            this.failure = e;
+        }
+        this.filled.add(PipelineInputStream.END);
+    }
+
+    private static class Block {
+        private final byte[] data;
+        private int length;
+
+        private Block(int size) {
+            this.data = new byte[size];
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import com.machiav3lli.backup.Constants;
+import com.machiav3lli.backup.EngineLog;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pipeline stage, that writes to the wrapped stream on its own thread.
+ * <p>
+ * Written data is collected in blocks, which are handed to the stage's thread through a bounded
+ * queue. Chaining stages lets reading the files, compressing and encrypting/writing run at the
+ * same time instead of waiting on each other. The blocks are recycled, at most depth + 2 of
+ * them exist at the same time. If the wrapped stream is an AdaptiveCompressor, the store only
+ * hint is passed along with the blocks, so it applies to the same data as without the stage.
+ */
+public class PipelineOutputStream extends OutputStream implements AdaptiveCompressor {
+    public static final int BLOCK_SIZE = 256 * 1024;
+    private static final String TAG = Constants.classTag(".PipelineOutputStream");
+    private static final Block END = new Block(0);
+    private final OutputStream out;
+    private final BlockingQueue<Block> filled;
+    private final BlockingQueue<Block> free;
+    private final int maxBlocks;
+    private final PipelineStats stats;
+    private final PhaseStats phaseStats;
+    private final Thread worker;
+    private volatile Throwable failure;
+    private int allocatedBlocks;
+    private Block current;
+    private boolean storeOnly;
+    private boolean closed;
+
+    /**
+     * @param out   the stream to write to on the stage's thread
+     * @param name  the stage's name for the thread and the stats
+     * @param depth the number of blocks in addition to the ones being filled and written
+     */
+    public PipelineOutputStream(OutputStream out, String name, int depth) {
+        this(out, name, depth, null);
+    }
+
+    /**
+     * @param phaseStats the stats of the component, the stage's counters are added to on close,
+     *                   may be null
+     */
+    public PipelineOutputStream(OutputStream out, String name, int depth, PhaseStats phaseStats) {
+        this.out = out;
+        this.phaseStats = phaseStats;
+        // the blocks being filled and written are not queued
+        this.maxBlocks = depth + 2;
+        this.filled = new ArrayBlockingQueue<>(this.maxBlocks + 1);
+        this.free = new ArrayBlockingQueue<>(this.maxBlocks);
+        this.stats = new PipelineStats(name, this.maxBlocks);
+        this.worker = new Thread(this::drain, "pipeline-" + name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public PipelineStats getStats() {
+        return this.stats;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (this.closed) {
+            throw new IOException("Stream closed");
+        }
+        while (len > 0) {
+            if (this.current == null) {
+                this.current = this.nextFreeBlock();
+                this.current.storeOnly = this.storeOnly;
+            }
+            int length = Math.min(len, this.current.data.length - this.current.length);
+            System.arraycopy(b, off, this.current.data, this.current.length, length);
+            this.current.length += length;
+            off += length;
+            len -= length;
+            if (this.current.length == this.current.data.length) {
+                this.handOver();
+            }
+        }
+    }
+
+    @Override
+    public void setStoreOnly(boolean storeOnly) throws IOException {
+        if (!(this.out instanceof AdaptiveCompressor) || storeOnly == this.storeOnly) {
+            return;
+        }
+        // the data written so far is compressed with the previous setting
+        this.handOver();
+        this.storeOnly = storeOnly;
+    }
+
+    /**
+     * Hands the written data over to the stage's thread. The wrapped stream is only flushed on
+     * close, because that would have to wait for the stage's thread.
+     */
+    @Override
+    public void flush() throws IOException {
+        this.handOver();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        try {
+            this.handOver();
+        } finally {
+            this.closed = true;
+            this.filled.add(PipelineOutputStream.END);
+            try {
+                this.worker.join();
+            } catch (InterruptedException e) {
+                this.worker.interrupt();
+                Thread.currentThread().interrupt();
+            }
+            this.out.close();
+            EngineLog.d(PipelineOutputStream.TAG, this.stats.toString());
+            if (this.phaseStats != null) {
+                this.phaseStats.addPipeline(this.stats);
+            }
+        }
+        this.checkFailure();
+    }
+
+    private Block nextFreeBlock() throws IOException {
+        Block block = this.free.poll();
+        if (block != null) {
+            return block;
+        }
+        if (this.allocatedBlocks < this.maxBlocks) {
+            this.allocatedBlocks++;
+            return new Block(PipelineOutputStream.BLOCK_SIZE);
+        }
+        this.stats.countProducerStall();
+        try {
+            return this.free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the pipeline");
+        }
+    }
+
+    private void handOver() throws IOException {
+        this.checkFailure();
+        if (this.current == null || this.current.length == 0) {
+            return;
+        }
+        // the stage's thread resets the block, once it has been written
+        int length = this.current.length;
+        this.filled.add(this.current);
+        this.stats.countBlock(length, this.filled.size());
+        this.current = null;
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable failure = this.failure;
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new IOException(failure.getMessage(), failure);
+        }
+    }
+
+    private void drain() {
+        boolean storeOnly = false;
+        try {
+            while (true) {
+                Block block = this.filled.poll();
+                if (block == null) {
+                    this.stats.countConsumerStall();
+                    block = this.filled.take();
+                }
+                if (block == PipelineOutputStream.END) {
+                    return;
+                }
+                // after a failure the blocks are only recycled, so the writer doesn't get stuck
+                if (this.failure == null) {
+                    try {
+                        if (block.storeOnly != storeOnly) {
+                            storeOnly = block.storeOnly;
+                            ((AdaptiveCompressor) this.out).setStoreOnly(storeOnly);
+                        }
+                        this.out.write(block.data, 0, block.length);
+                    } catch (IOException | RuntimeException e) {
+                        this.failure = e;
+                    }
+                }
+                block.length = 0;
+                this.free.add(block);
+            }
+        } catch (InterruptedException e) {
+            this.failure = e;
+        }
+    }
+
+    private static class Block {
+        private final byte[] data;
+        private int length;
+        private boolean storeOnly;
+
+        private Block(int size) {
+            this.data = new byte[size];
+        }
+    }
+}
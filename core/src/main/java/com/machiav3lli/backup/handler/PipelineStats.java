@@ -0,0 +1,132 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a pipeline stage, used to tune the queue depth.
+ * <p>
+ * A producer stall means, that the upstream side had to wait for a free block, because the
+ * stage's thread is slower. A consumer stall means, that the downstream side had to wait for a
+ * filled block, because the upstream side is slower. The maximum depth tells, how many of the
+ * stage's blocks were waiting at most.
+ * <p>
+ * The counters of a stage are added to the PhaseStats of the component, so they end up in the
+ * log file and the run report. The ones of several archives are summed up.
+ */
+public class PipelineStats {
+    private final String name;
+    private final AtomicInteger capacity = new AtomicInteger();
+    private final AtomicLong blocks = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong producerStalls = new AtomicLong();
+    private final AtomicLong consumerStalls = new AtomicLong();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+
+    PipelineStats(String name, int capacity) {
+        this.name = name;
+        this.capacity.set(capacity);
+    }
+
+    static PipelineStats fromJson(String name, JSONObject jsonObject) throws JSONException {
+        PipelineStats stats = new PipelineStats(name, jsonObject.getInt("capacity"));
+        stats.blocks.set(jsonObject.getLong("blocks"));
+        stats.bytes.set(jsonObject.getLong("bytes"));
+        stats.maxDepth.set(jsonObject.getInt("maxDepth"));
+        stats.producerStalls.set(jsonObject.getLong("producerStalls"));
+        stats.consumerStalls.set(jsonObject.getLong("consumerStalls"));
+        return stats;
+    }
+
+    /**
+     * Adds the counters of the same stage of another archive. The depths are the maximum of both.
+     */
+    void add(PipelineStats other) {
+        this.capacity.accumulateAndGet(other.getCapacity(), Math::max);
+        this.blocks.addAndGet(other.getBlocks());
+        this.bytes.addAndGet(other.getBytes());
+        this.maxDepth.accumulateAndGet(other.getMaxDepth(), Math::max);
+        this.producerStalls.addAndGet(other.getProducerStalls());
+        this.consumerStalls.addAndGet(other.getConsumerStalls());
+    }
+
+    void countBlock(int length, int depth) {
+        this.blocks.incrementAndGet();
+        this.bytes.addAndGet(length);
+        this.maxDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    void countProducerStall() {
+        this.producerStalls.incrementAndGet();
+    }
+
+    void countConsumerStall() {
+        this.consumerStalls.incrementAndGet();
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public int getCapacity() {
+        return this.capacity.get();
+    }
+
+    public long getBlocks() {
+        return this.blocks.get();
+    }
+
+    public long getBytes() {
+        return this.bytes.get();
+    }
+
+    public long getProducerStalls() {
+        return this.producerStalls.get();
+    }
+
+    public long getConsumerStalls() {
+        return this.consumerStalls.get();
+    }
+
+    public int getMaxDepth() {
+        return this.maxDepth.get();
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("capacity", this.getCapacity());
+        jsonObject.put("blocks", this.getBlocks());
+        jsonObject.put("bytes", this.getBytes());
+        jsonObject.put("maxDepth", this.getMaxDepth());
+        jsonObject.put("producerStalls", this.getProducerStalls());
+        jsonObject.put("consumerStalls", this.getConsumerStalls());
+        return jsonObject;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d blocks, %d bytes, max queue depth %d of %d, %d producer stalls, %d consumer stalls",
+                this.name, this.getBlocks(), this.getBytes(), this.getMaxDepth(), this.getCapacity(),
+                this.getProducerStalls(), this.getConsumerStalls());
+    }
+}
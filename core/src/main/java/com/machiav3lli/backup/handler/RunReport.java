@@ -0,0 +1,178 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import com.machiav3lli.backup.items.BackupLog;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the results of the apps backed up or restored during a batch. Every batch has its own
+ * report, which is created, when the batch starts. At the end of the batch, one line with the run
+ * and its apps is appended to {@code runReport.jsonl} in the backup directory. Each line is a JSON object, so the runs of several devices can be fed into other
+ * tools to compare them. When the file gets too big, it's rotated to {@code runReport.1.jsonl}
+ * and so on, the oldest one is deleted.
+ */
+public final class RunReport {
+    public static final String FILE_NAME = "runReport.jsonl";
+    public static final String TRIGGER_UI = "ui";
+    public static final String TRIGGER_SCHEDULE = "schedule";
+    public static final long MAX_FILE_BYTES = 1024 * 1024;
+    public static final int MAX_FILES = 5;
+    private static final String FILE_PREFIX = "runReport.";
+    private static final String FILE_SUFFIX = ".jsonl";
+    private final List<JSONObject> apps = new ArrayList<>();
+    private final String trigger;
+    private final long scheduleId;
+    private final long startMillis;
+    private long bytesIn;
+    private long bytesOut;
+    private int failed;
+
+    /**
+     * Starts the report of a batch.
+     *
+     * @param trigger    TRIGGER_UI or TRIGGER_SCHEDULE
+     * @param scheduleId the id of the schedule, that triggered the batch, or -1
+     */
+    public RunReport(String trigger, long scheduleId) {
+        this.trigger = trigger;
+        this.scheduleId = scheduleId;
+        this.startMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Adds a backed up or restored app.
+     *
+     * @param action      backup or restore
+     * @param packageName the package
+     * @param versionCode the version of the app, that was backed up or restored
+     * @param millis      the time the app took
+     * @param errorClass  the simple name of the exception, the app failed with, an empty string,
+     *                    if it failed without one, or null, if it succeeded
+     * @param stats       the stats by component
+     * @throws JSONException if a value could not be serialized
+     */
+    public synchronized void add(String action, String packageName, int versionCode, long millis, String errorClass,
+                                 Map<String, PhaseStats> stats) throws JSONException {
+        long appBytesIn = 0;
+        long appBytesOut = 0;
+        for (PhaseStats componentStats : stats.values()) {
+            appBytesIn += componentStats.getBytesIn();
+            appBytesOut += componentStats.getBytesOut();
+        }
+        JSONObject app = new JSONObject();
+        app.put("action", action);
+        app.put("packageName", packageName);
+        app.put("versionCode", versionCode);
+        app.put("status", errorClass == null ? "succeeded" : "failed");
+        if (errorClass != null && !errorClass.isEmpty()) {
+            app.put("errorClass", errorClass);
+        }
+        app.put("millis", millis);
+        app.put("bytesIn", appBytesIn);
+        app.put("bytesOut", appBytesOut);
+        app.put("bytesPerSecond", RunReport.getThroughput(appBytesIn, millis));
+        app.put("stats", BackupLog.toJsonObject(stats));
+        this.apps.add(app);
+        this.bytesIn += appBytesIn;
+        this.bytesOut += appBytesOut;
+        if (errorClass != null) {
+            this.failed++;
+        }
+    }
+
+    /**
+     * Appends the report of the finished batch to the report file.
+     *
+     * @param backupDirectory the backup directory
+     * @return the written file or null, if no app was added
+     * @throws IOException   if the file could not be written
+     * @throws JSONException if a value could not be serialized
+     */
+    public synchronized File write(File backupDirectory) throws IOException, JSONException {
+        if (this.apps.isEmpty()) {
+            return null;
+        }
+        long endMillis = System.currentTimeMillis();
+        JSONObject run = new JSONObject();
+        run.put("startMillis", this.startMillis);
+        run.put("endMillis", endMillis);
+        run.put("trigger", this.trigger);
+        if (this.scheduleId >= 0) {
+            run.put("scheduleId", this.scheduleId);
+        }
+        run.put("succeeded", this.apps.size() - this.failed);
+        run.put("failed", this.failed);
+        run.put("bytesIn", this.bytesIn);
+        run.put("bytesOut", this.bytesOut);
+        run.put("bytesPerSecond", RunReport.getThroughput(this.bytesIn, endMillis - this.startMillis));
+        JSONArray apps = new JSONArray();
+        for (JSONObject app : this.apps) {
+            apps.put(app);
+        }
+        run.put("apps", apps);
+        File file = new File(backupDirectory, RunReport.FILE_NAME);
+        RunReport.append(file, run);
+        return file;
+    }
+
+    /**
+     * Appends a run to the report file. Batches finishing at the same time take turns, so the
+     * file is only rotated by one of them.
+     */
+    private static synchronized void append(File file, JSONObject run) throws IOException {
+        RunReport.rotate(file);
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, true))) {
+            // without indentation, so the run stays on one line
+            writer.write(run.toString() + "\n");
+        }
+    }
+
+    private static long getThroughput(long bytes, long millis) {
+        return millis > 0 ? bytes * 1000 / millis : 0;
+    }
+
+    private static void rotate(File file) throws IOException {
+        if (file.length() < RunReport.MAX_FILE_BYTES) {
+            return;
+        }
+        File directory = file.getParentFile();
+        File oldest = new File(directory, RunReport.FILE_PREFIX + (RunReport.MAX_FILES - 1) + RunReport.FILE_SUFFIX);
+        if (oldest.exists() && !oldest.delete()) {
+            throw new IOException("Could not delete " + oldest);
+        }
+        for (int i = RunReport.MAX_FILES - 2; i >= 0; i--) {
+            File source = i == 0 ? file : new File(directory, RunReport.FILE_PREFIX + i + RunReport.FILE_SUFFIX);
+            File target = new File(directory, RunReport.FILE_PREFIX + (i + 1) + RunReport.FILE_SUFFIX);
+            if (source.exists() && !source.renameTo(target)) {
+                throw new IOException(String.format("Could not rename %s to %s", source, target));
+            }
+        }
+    }
+}
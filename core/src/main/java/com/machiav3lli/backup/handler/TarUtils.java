@@ -0,0 +1,638 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.utils.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+public final class TarUtils {
+    /**
+     * The PAX record, in which tar --selinux of toybox and GNU tar store the SELinux context.
+     */
+    public static final String SELINUX_PAX_HEADER = "RHT.security.selinux";
+    /**
+     * The prefix of the PAX records of extended attributes as written by GNU tar --xattrs.
+     */
+    private static final String XATTR_PAX_PREFIX = "SCHILY.xattr.";
+    private static final String USER_XATTR_PREFIX = "user.";
+    private static final Pattern SELINUX_CONTEXT_PATTERN = Pattern.compile("[A-Za-z0-9_]+:[A-Za-z0-9_]+:[A-Za-z0-9_]+:[A-Za-z0-9_.,:]+");
+    // app_data_file, app_exec_data_file, privapp_data_file and the like
+    private static final String APP_DATA_TYPE_SUFFIX = "_data_file";
+    // small files are compressed in any case, switching the compression level costs more
+    private static final long MIN_STORED_SIZE = 64 * 1024;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // the components are archived in parallel, so each thread reuses its own buffer
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[TarUtils.BUFFER_SIZE]);
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "heic", "mp4", "m4v", "mkv", "webm", "3gp",
+            "mp3", "m4a", "aac", "ogg", "opus", "flac", "zip", "apk", "jar", "obb", "gz", "tgz",
+            "xz", "bz2", "zst", "lz4", "7z", "rar", "br"
+    ));
+    private static final byte[][] COMPRESSED_MAGICS = {
+            {(byte) 0xff, (byte) 0xd8, (byte) 0xff},                    // jpeg
+            {(byte) 0x89, 'P', 'N', 'G'},                               // png
+            {'G', 'I', 'F', '8'},                                       // gif
+            {'P', 'K', 0x03, 0x04},                                     // zip, apk, jar
+            {0x1f, (byte) 0x8b},                                        // gzip
+            {(byte) 0xfd, '7', 'z', 'X', 'Z', 0x00},                    // xz
+            {0x28, (byte) 0xb5, 0x2f, (byte) 0xfd},                     // zstd
+            {'7', 'z', (byte) 0xbc, (byte) 0xaf},                       // 7z
+            {'B', 'Z', 'h'},                                            // bzip2
+            {'O', 'g', 'g', 'S'},                                       // ogg, opus
+            {'I', 'D', '3'},                                            // mp3
+            {0x1a, 0x45, (byte) 0xdf, (byte) 0xa3},                     // mkv, webm
+    };
+
+    /**
+     * Adds a filepath to the given archive.
+     * If it's a directory, it'll be added cursively
+     *
+     * @param archive       an opened tar archive to write to
+     * @param inputFilepath the filepath to add to the archive
+     * @param parent        the parent directory in the archive, use "" to add it to the root directory
+     * @throws IOException on IO related errors such as out of disk space or missing files
+     */
+    public static void addFilepath(TarArchiveOutputStream archive, File inputFilepath, String parent) throws IOException {
+        TarUtils.addFilepath(archive, inputFilepath, parent, null, null);
+    }
+
+    /**
+     * Adds a filepath to the given archive and records the added entries.
+     * If it's a directory, it'll be added cursively
+     *
+     * @param archive       an opened tar archive to write to
+     * @param inputFilepath the filepath to add to the archive
+     * @param parent        the parent directory in the archive, use "" to add it to the root directory
+     * @param exclusions    the rules, which entries are left out, may be null
+     * @param recorder      records the entries and decides which unchanged ones are left out, may be null
+     * @throws IOException on IO related errors such as out of disk space or missing files
+     */
+    public static void addFilepath(TarArchiveOutputStream archive, File inputFilepath, String parent, ExclusionRules exclusions, ManifestRecorder recorder) throws IOException {
+        TarUtils.addFilepath(archive, inputFilepath, parent, exclusions, recorder, true);
+    }
+
+    /**
+     * Like addFilepath, but tells, if the filepath is the original.
+     *
+     * @param original true, if the permissions and extended attributes of the files are recorded.
+     *                 false for a copy on the shared storage, whose mount makes them up. The
+     *                 entries get the defaults of their type then, so a restore of the archive
+     *                 only approximates the original permissions.
+     */
+    public static void addFilepath(TarArchiveOutputStream archive, File inputFilepath, String parent, ExclusionRules exclusions, ManifestRecorder recorder,
+                                   boolean original) throws IOException {
+        TarUtils.addFilepathAs(archive, inputFilepath, parent + inputFilepath.getName(), exclusions, recorder, original);
+    }
+
+    /**
+     * Adds a filepath to the given archive under another name and records the added entries.
+     * Used to archive a directory as a data component, e.g. as data, regardless of its own name.
+     *
+     * @param archive       an opened tar archive to write to
+     * @param inputFilepath the filepath to add to the archive
+     * @param entryName     the name of the filepath's entry in the archive
+     * @param exclusions    the rules, which entries are left out, may be null
+     * @param recorder      records the entries and decides which unchanged ones are left out, may be null
+     * @throws IOException on IO related errors such as out of disk space or missing files
+     */
+    public static void addFilepathAs(TarArchiveOutputStream archive, File inputFilepath, String entryName, ExclusionRules exclusions, ManifestRecorder recorder) throws IOException {
+        TarUtils.addFilepathAs(archive, inputFilepath, entryName, exclusions, recorder, true);
+    }
+
+    /**
+     * Like addFilepathAs, but tells, if the filepath is the original, see addFilepath.
+     */
+    public static void addFilepathAs(TarArchiveOutputStream archive, File inputFilepath, String entryName, ExclusionRules exclusions, ManifestRecorder recorder,
+                                     boolean original) throws IOException {
+        // walkFileTree works with a stack instead of recursion and reads the attributes of each
+        // entry only once, which matters for data directories with hundreds of thousands of files
+        Files.walkFileTree(inputFilepath.toPath(), new SimpleFileVisitor<Path>() {
+            private final Deque<String> directoryNames = new ArrayDeque<>();
+
+            private String getEntryName(Path path) {
+                String directoryName = this.directoryNames.peek();
+                return directoryName == null ? entryName : directoryName + '/' + path.getFileName();
+            }
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                String directoryName = this.getEntryName(dir);
+                TarArchiveEntry archiveEntry = new TarArchiveEntry(directoryName + '/');
+                archiveEntry.setModTime(attrs.lastModifiedTime().toMillis());
+                if (exclusions != null && exclusions.isExcluded(archiveEntry)) {
+                    // not even walked to measure it, the report counts it as one entry
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                if (original) {
+                    TarUtils.setPermissions(archiveEntry, dir);
+                    TarUtils.addXattrs(archiveEntry, dir);
+                }
+                TarUtils.addEntry(archive, archiveEntry, null, recorder);
+                this.directoryNames.push(directoryName);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (exc != null) {
+                    throw exc;
+                }
+                this.directoryNames.pop();
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                TarArchiveEntry archiveEntry;
+                if (attrs.isSymbolicLink()) {
+                    archiveEntry = new TarArchiveEntry(this.getEntryName(file), TarConstants.LF_SYMLINK);
+                    archiveEntry.setLinkName(Files.readSymbolicLink(file).toString());
+                } else if (attrs.isRegularFile()) {
+                    archiveEntry = new TarArchiveEntry(this.getEntryName(file));
+                    archiveEntry.setSize(attrs.size());
+                } else {
+                    // sockets, pipes and devices have no content to back up
+                    return FileVisitResult.CONTINUE;
+                }
+                archiveEntry.setModTime(attrs.lastModifiedTime().toMillis());
+                if (exclusions != null && exclusions.isExcluded(archiveEntry)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (archiveEntry.isSymbolicLink()) {
+                    TarUtils.addEntry(archive, archiveEntry, null, recorder);
+                } else {
+                    if (original) {
+                        TarUtils.setPermissions(archiveEntry, file);
+                        TarUtils.addXattrs(archiveEntry, file);
+                    }
+                    try (InputStream content = Files.newInputStream(file)) {
+                        TarUtils.addEntry(archive, archiveEntry, content, recorder);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Records the permission bits of a file in its entry, so they are restored exactly instead
+     * of the defaults of the entry type. Filesystems without them, like FAT, keep the defaults.
+     */
+    private static void setPermissions(TarArchiveEntry entry, Path path) throws IOException {
+        Set<PosixFilePermission> permissions;
+        try {
+            permissions = Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+        } catch (UnsupportedOperationException e) {
+            return;
+        }
+        int mode = 0;
+        for (PosixFilePermission permission : permissions) {
+            // from OWNER_READ, 0400, to OTHERS_EXECUTE, 0001
+            mode |= 0400 >> permission.ordinal();
+        }
+        entry.setMode((entry.getMode() & ~0777) | mode);
+    }
+
+    /**
+     * Records the user extended attributes of a file as PAX records. Other namespaces like
+     * security can't be read without root, the root tar of a streamed backup records the SELinux
+     * context. Values, that aren't text, can't be stored in a PAX record and are left out.
+     */
+    private static void addXattrs(TarArchiveEntry entry, Path path) {
+        try {
+            UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+            if (view == null) {
+                return;
+            }
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+            for (String name : view.list()) {
+                ByteBuffer value = ByteBuffer.allocate(view.size(name));
+                view.read(name, value);
+                value.flip();
+                try {
+                    entry.addPaxHeader(TarUtils.XATTR_PAX_PREFIX + TarUtils.USER_XATTR_PREFIX + name, decoder.decode(value).toString());
+                } catch (CharacterCodingException e) {
+                    // binary value
+                }
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            // the filesystem doesn't support extended attributes, like FAT
+        }
+    }
+
+    /**
+     * Applies the user extended attributes recorded by addXattrs to an extracted file. Like on
+     * backup, filesystems without extended attributes are ignored.
+     */
+    private static void applyXattrs(TarArchiveEntry entry, Path path) {
+        String prefix = TarUtils.XATTR_PAX_PREFIX + TarUtils.USER_XATTR_PREFIX;
+        UserDefinedFileAttributeView view = null;
+        for (Map.Entry<String, String> header : entry.getExtraPaxHeaders().entrySet()) {
+            if (!header.getKey().startsWith(prefix)) {
+                continue;
+            }
+            try {
+                if (view == null) {
+                    view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+                    if (view == null) {
+                        return;
+                    }
+                }
+                view.write(header.getKey().substring(prefix.length()), StandardCharsets.UTF_8.encode(header.getValue()));
+            } catch (IOException | UnsupportedOperationException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Checks if a context has the form user:role:type:level and contains nothing, that a shell
+     * would interpret. The contexts are passed to root processes.
+     *
+     * @param context the context to check, may be null
+     * @return true, if the context is valid
+     */
+    public static boolean isValidSelinuxContext(String context) {
+        return context != null && TarUtils.SELINUX_CONTEXT_PATTERN.matcher(context).matches();
+    }
+
+    /**
+     * Returns the SELinux context an entry is extracted with. The archives lie on the shared
+     * storage, so only the type of the archived context is kept, e.g. app_exec_data_file of
+     * executables, and only if it's one of the types of app data. User, role and level are
+     * taken from the target directory. The level contains the categories of the app's uid,
+     * which differ between devices and installations. Entries without a valid context get the
+     * one of the target directory, so they don't need to be relabelled afterwards.
+     *
+     * @param archivedContext the context in the archive or null
+     * @param targetContext   the valid context of the directory, the entry is extracted to
+     * @return the context to extract the entry with
+     */
+    public static String getTargetSelinuxContext(String archivedContext, String targetContext) {
+        if (!TarUtils.isValidSelinuxContext(archivedContext) || !TarUtils.isValidSelinuxContext(targetContext)) {
+            return targetContext;
+        }
+        // user:role:type:level, the level can contain colons itself like s0:c1,c2
+        String[] target = targetContext.split(":", 4);
+        String type = archivedContext.split(":", 4)[2];
+        if (!type.endsWith(TarUtils.APP_DATA_TYPE_SUFFIX)) {
+            return targetContext;
+        }
+        return String.join(":", target[0], target[1], type, target[3]);
+    }
+
+    /**
+     * Copies all entries of a tar stream into the given archive.
+     * Used to archive data, that is read from another process without copying it to a temporary
+     * directory first.
+     *
+     * @param archive an opened tar archive to write to
+     * @param source  the tar stream to read the entries from
+     * @param parent  the parent directory in the archive, use "" to add it to the root directory
+     * @throws IOException on IO related errors such as out of disk space or a broken stream
+     */
+    public static void addArchive(TarArchiveOutputStream archive, TarArchiveInputStream source, String parent) throws IOException {
+        TarUtils.addArchive(archive, source, parent, null, null);
+    }
+
+    /**
+     * Copies all entries of a tar stream into the given archive and records the added entries.
+     *
+     * @param archive    an opened tar archive to write to
+     * @param source     the tar stream to read the entries from
+     * @param parent     the parent directory in the archive, use "" to add it to the root directory
+     * @param exclusions the rules, which entries are left out, may be null
+     * @param recorder   records the entries and decides which unchanged ones are left out, may be null
+     * @throws IOException on IO related errors such as out of disk space or a broken stream
+     */
+    public static void addArchive(TarArchiveOutputStream archive, TarArchiveInputStream source, String parent, ExclusionRules exclusions, ManifestRecorder recorder) throws IOException {
+        TarArchiveEntry entry;
+        while ((entry = source.getNextTarEntry()) != null) {
+            String name = entry.getName();
+            if (name.startsWith("./")) {
+                name = name.substring(2);
+            }
+            if (name.isEmpty()) {
+                // the source's root directory itself
+                continue;
+            }
+            entry.setName(parent + name);
+            // the entries of an excluded directory are checked and counted one by one
+            if (exclusions != null && exclusions.isExcluded(entry)) {
+                continue;
+            }
+            // source ends at the end of the entry, the content of skipped entries is skipped by getNextTarEntry
+            TarUtils.addEntry(archive, entry, entry.isFile() ? source : null, recorder);
+        }
+    }
+
+    /**
+     * Writes an entry and its content to the archive, unless the recorder skips it.
+     * The content is copied with the thread's pooled buffer. Its first block tells, whether
+     * the content is already compressed.
+     *
+     * @param archive  an opened tar archive to write to
+     * @param entry    the entry to write
+     * @param content  the entry's content, null for directories and links
+     * @param recorder records the entry and decides if an unchanged one is left out, may be null
+     * @throws IOException on IO related errors such as out of disk space or missing files
+     */
+    private static void addEntry(TarArchiveOutputStream archive, TarArchiveEntry entry, InputStream content, ManifestRecorder recorder) throws IOException {
+        if (recorder != null && !recorder.shouldArchive(entry)) {
+            return;
+        }
+        archive.putArchiveEntry(entry);
+        MessageDigest digest = null;
+        if (content != null) {
+            if (recorder != null) {
+                digest = recorder.newDigest();
+            }
+            byte[] buffer = TarUtils.BUFFER.get();
+            int length = IOUtils.readFully(content, buffer);
+            TarUtils.adaptCompression(archive, entry, buffer, length);
+            while (length > 0) {
+                if (digest != null) {
+                    digest.update(buffer, 0, length);
+                }
+                archive.write(buffer, 0, length);
+                length = content.read(buffer);
+            }
+        }
+        archive.closeArchiveEntry();
+        if (recorder != null) {
+            recorder.record(entry, digest);
+        }
+    }
+
+    /**
+     * Tells the archive's compressor to store the entry's content uncompressed, if it's large
+     * and already compressed. This is detected by the file extension or the magic bytes at the
+     * start of the content.
+     *
+     * @param archive the archive, the entry is written to
+     * @param entry   the entry to write
+     * @param head    the first bytes of the entry's content
+     * @param length  the number of bytes in head
+     * @throws IOException if the compressor could not be switched
+     */
+    private static void adaptCompression(TarArchiveOutputStream archive, TarArchiveEntry entry, byte[] head, int length) throws IOException {
+        if (!(archive instanceof AdaptiveTarArchiveOutputStream)) {
+            return;
+        }
+        ((AdaptiveTarArchiveOutputStream) archive).setStoreOnly(
+                entry.getSize() >= TarUtils.MIN_STORED_SIZE && TarUtils.isCompressed(entry.getName(), head, length));
+    }
+
+    private static boolean isCompressed(String name, byte[] head, int length) {
+        int dot = name.lastIndexOf('.');
+        if (dot > name.lastIndexOf('/') && TarUtils.COMPRESSED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+            return true;
+        }
+        for (byte[] magic : TarUtils.COMPRESSED_MAGICS) {
+            if (length >= magic.length && TarUtils.startsWith(head, magic)) {
+                return true;
+            }
+        }
+        // mp4 and other iso media files start with the box size followed by ftyp
+        return length >= 8 && head[4] == 'f' && head[5] == 't' && head[6] == 'y' && head[7] == 'p';
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the entries of a component's archive into another tar stream, relative to the
+     * component's directory, e.g. data/files/a becomes files/a. Used to stream a restore to a
+     * root process, which extracts the entries directly into the app's directory.
+     *
+     * @param archive    the component's archive
+     * @param target     the tar stream to write the entries to
+     * @param exclusions the rules, which entries are left out, may be null
+     * @throws IOException on IO related errors such as a broken stream or a failed process
+     */
+    public static void copyComponent(TarArchiveInputStream archive, TarArchiveOutputStream target, ExclusionRules exclusions) throws IOException {
+        TarUtils.copyComponent(archive, target, exclusions, -1, -1, null);
+    }
+
+    /**
+     * Copies the entries of a component's archive into another tar stream like copyComponent
+     * and gives them a new owner and SELinux context. The extracting process sets them for each
+     * file as it's written, so the files don't need to be changed afterwards.
+     *
+     * @param uid            the numeric owner of the entries or -1 to keep the archived one
+     * @param gid            the numeric group of the entries or -1 to keep the archived one
+     * @param selinuxContext the context of the target directory or null to keep the archived
+     *                       contexts, see getTargetSelinuxContext
+     */
+    public static void copyComponent(TarArchiveInputStream archive, TarArchiveOutputStream target, ExclusionRules exclusions, long uid, long gid,
+                                     String selinuxContext) throws IOException {
+        TarUtils.copyComponent(archive, target, exclusions, uid, gid, selinuxContext, null);
+    }
+
+    /**
+     * Like copyComponent with a new owner and context, but collects the contexts instead of
+     * writing them into the entries, if the extracting process can't set them. The files are
+     * labelled with them after the extraction then.
+     *
+     * @param labels collects the context of each entry by its name, may be null
+     */
+    public static void copyComponent(TarArchiveInputStream archive, TarArchiveOutputStream target, ExclusionRules exclusions, long uid, long gid,
+                                     String selinuxContext, Map<String, String> labels) throws IOException {
+        TarUtils.copyComponent(archive, target, exclusions, uid, gid, selinuxContext, labels, new HashSet<>());
+    }
+
+    /**
+     * Like copyComponent with labels, for one archive of a chain, that is extracted into the same
+     * directory. The entries come from the shared storage and are extracted by root, so entries,
+     * that would end up outside the target directory, are rejected: absolute names, names with
+     * . or .. segments, hard links to such names, entries inside a symbolic link of the chain
+     * and special files like devices.
+     *
+     * @param symlinks the names of the symbolic links of the chain's previous archives. The ones
+     *                 of this archive are added.
+     * @throws IOException if an entry is rejected. The entries before it have been copied.
+     */
+    public static void copyComponent(TarArchiveInputStream archive, TarArchiveOutputStream target, ExclusionRules exclusions, long uid, long gid,
+                                     String selinuxContext, Map<String, String> labels, Set<String> symlinks) throws IOException {
+        TarArchiveEntry entry;
+        while ((entry = archive.getNextTarEntry()) != null) {
+            if (exclusions != null && exclusions.isExcluded(entry)) {
+                continue;
+            }
+            String name = entry.getName();
+            int separator = name.indexOf('/');
+            if (separator < 0 || separator == name.length() - 1) {
+                // the component's directory is the target directory
+                continue;
+            }
+            if (entry.isCharacterDevice() || entry.isBlockDevice() || entry.isFIFO()) {
+                throw new IOException(String.format("Archive entry %s is a special file", name));
+            }
+            String relativeName = TarUtils.getExtractedName(name, symlinks);
+            if (entry.isLink()) {
+                entry.setLinkName(TarUtils.getExtractedName(entry.getLinkName(), symlinks));
+            }
+            if (entry.isSymbolicLink()) {
+                symlinks.add(relativeName);
+            } else if (symlinks.contains(relativeName)) {
+                throw new IOException(String.format("Archive entry %s replaces a symbolic link", name));
+            }
+            entry.setName(entry.isDirectory() ? relativeName + '/' : relativeName);
+            if (uid >= 0) {
+                entry.setUserId(uid);
+                entry.setUserName("");
+            }
+            if (gid >= 0) {
+                entry.setGroupId(gid);
+                entry.setGroupName("");
+            }
+            if (selinuxContext != null) {
+                String context = TarUtils.getTargetSelinuxContext(entry.getExtraPaxHeader(TarUtils.SELINUX_PAX_HEADER), selinuxContext);
+                if (labels != null) {
+                    // an increment's entry replaces the one of the full backup
+                    labels.put(entry.getName(), context);
+                } else {
+                    entry.addPaxHeader(TarUtils.SELINUX_PAX_HEADER, context);
+                }
+            }
+            target.putArchiveEntry(entry);
+            if (entry.isFile()) {
+                byte[] buffer = TarUtils.BUFFER.get();
+                int length;
+                while ((length = archive.read(buffer)) != -1) {
+                    target.write(buffer, 0, length);
+                }
+            }
+            target.closeArchiveEntry();
+        }
+    }
+
+    /**
+     * Checks the name of an entry, that is copied by copyComponent, and strips the component.
+     *
+     * @param name     the name of the entry in the component's archive like data/files/a
+     * @param symlinks the names of the symbolic links extracted before
+     * @return the name relative to the target directory like files/a
+     * @throws IOException if the entry would not end up in the target directory
+     */
+    private static String getExtractedName(String name, Set<String> symlinks) throws IOException {
+        String[] segments = (name.endsWith("/") ? name.substring(0, name.length() - 1) : name).split("/", -1);
+        if (segments.length < 2) {
+            throw new IOException(String.format("Archive entry %s is outside of the component", name));
+        }
+        StringBuilder extractedName = new StringBuilder();
+        for (int i = 1; i < segments.length; i++) {
+            String segment = segments[i];
+            if (segments[0].isEmpty() || segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                throw new IOException(String.format("Archive entry %s has an invalid name", name));
+            }
+            if (extractedName.length() > 0) {
+                if (symlinks.contains(extractedName.toString())) {
+                    throw new IOException(String.format("Archive entry %s lies inside a symbolic link", name));
+                }
+                extractedName.append('/');
+            }
+            extractedName.append(segment);
+        }
+        return extractedName.toString();
+    }
+
+    public static void uncompressTo(TarArchiveInputStream archive, File targetDir) throws IOException {
+        TarUtils.uncompressTo(archive, targetDir, null);
+    }
+
+    /**
+     * Expands a tar stream into the given directory.
+     *
+     * @param archive    the tar stream to expand
+     * @param targetDir  the directory to expand the entries to
+     * @param exclusions the rules, which entries are left out, may be null
+     * @throws IOException on IO related errors such as out of disk space or a broken stream
+     */
+    public static void uncompressTo(TarArchiveInputStream archive, File targetDir, ExclusionRules exclusions) throws IOException {
+        TarArchiveEntry tarEntry;
+        while ((tarEntry = archive.getNextTarEntry()) != null) {
+            if (exclusions != null && exclusions.isExcluded(tarEntry)) {
+                continue;
+            }
+            final File file = new File(targetDir, tarEntry.getName());
+            if (tarEntry.isDirectory()) {
+                // the directory already exists, if an incremental archive is expanded over its base
+                if (!file.isDirectory() && !file.mkdirs()) {
+                    throw new IOException("Unable to create folder " + file.getAbsolutePath());
+                }
+                TarUtils.applyXattrs(tarEntry, file.toPath());
+            } else if (tarEntry.isSymbolicLink()) {
+                try {
+                    Files.createSymbolicLink(file.toPath(), Paths.get(tarEntry.getLinkName()));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            } else {
+                final File parent = file.getParentFile();
+                if (!parent.exists() && !parent.mkdirs()) {
+                    throw new IOException("Unable to create folder " + parent.getAbsolutePath());
+                }
+                try (FileOutputStream fos = new FileOutputStream(file)) {
+                    byte[] buffer = TarUtils.BUFFER.get();
+                    int length;
+                    while ((length = archive.read(buffer)) != -1) {
+                        fos.write(buffer, 0, length);
+                    }
+                }
+                TarUtils.applyXattrs(tarEntry, file.toPath());
+            }
+        }
+    }
+}
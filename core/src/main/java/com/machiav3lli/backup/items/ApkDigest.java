@@ -0,0 +1,117 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.items;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The size and hash of a backed up apk. The modification time of the installed apk is recorded
+ * as well, so the installed apk only needs to be hashed again, if it has been touched.
+ */
+public class ApkDigest {
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private final String name;
+    private final long size;
+    private final long lastModified;
+    private final String digest;
+
+    /**
+     * @param name         the apk's file name
+     * @param size         the apk's size in bytes
+     * @param lastModified the modification time of the installed apk in milliseconds
+     * @param digest       hex encoded SHA-256 hash of the apk
+     */
+    public ApkDigest(String name, long size, long lastModified, String digest) {
+        this.name = name;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.digest = digest;
+    }
+
+    public static ApkDigest fromJson(JSONObject jsonObject) throws JSONException {
+        return new ApkDigest(
+                jsonObject.getString("name"),
+                jsonObject.getLong("size"),
+                jsonObject.getLong("lastModified"),
+                jsonObject.getString("sha256")
+        );
+    }
+
+    /**
+     * Hashes the content of a file.
+     *
+     * @param file the file to hash
+     * @return the hex encoded SHA-256 hash
+     * @throws IOException if the file could not be read
+     */
+    public static String hash(File file) throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance(ApkDigest.HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is guaranteed to be available
+            throw new IllegalStateException(e);
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            byte[] buffer = new byte[65536];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, length);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : messageDigest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("name", this.name);
+        jsonObject.put("size", this.size);
+        jsonObject.put("lastModified", this.lastModified);
+        jsonObject.put("sha256", this.digest);
+        return jsonObject;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public long getSize() {
+        return this.size;
+    }
+
+    public long getLastModified() {
+        return this.lastModified;
+    }
+
+    public String getDigest() {
+        return this.digest;
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.items;
+
+import com.machiav3lli.backup.handler.PhaseStats;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The content of an app's log file {@code <package>.log}, which describes its backup. It's
+ * stored as JSON.
+ */
+public class BackupLog {
+    public static final String FILE_SUFFIX = ".log";
+    public static final int MODE_UNSET = 0;
+    public static final int MODE_APK = 1;
+    public static final int MODE_DATA = 2;
+    public static final int MODE_BOTH = 3;
+    protected String label, packageName, versionName, sourceDir, dataDir, deviceProtectedDataDir, encryptionAlgorithm, compressionType;
+    protected String[] splitSourceDirs;
+    protected ApkDigest[] apkDigests;
+    protected Map<String, String> dataFingerprints;
+    protected Map<String, PhaseStats> stats;
+    protected int versionCode, backupMode, incrementLevel;
+    protected long lastBackupMillis;
+    protected boolean encrypted, system;
+
+    protected BackupLog() {
+    }
+
+    /**
+     * @param label                  the app's name
+     * @param packageName            the app's package name
+     * @param versionName            the app's version name
+     * @param versionCode            the app's version code
+     * @param sourceDir              path of the base apk, empty if the apk is not backed up
+     * @param splitSourceDirs        paths of the split apks or null
+     * @param dataDir                the app's data directory
+     * @param deviceProtectedDataDir the app's device protected data directory or null
+     * @param lastBackupMillis       the backup's time
+     * @param encrypted              if the archives are encrypted
+     * @param encryptionAlgorithm    the name of the newest archives' EncryptionAlgorithm or null
+     * @param system                 if it's a system app
+     * @param backupMode             what has been backed up, one of the MODE constants
+     * @param compressionType        the name of the archives' codec
+     * @param incrementLevel         0 for a full backup, otherwise the number of increments
+     * @param apkDigests             the digests of the backed up apks or null
+     * @param dataFingerprints       the fingerprints of the data components or null
+     * @param stats                  the time and bytes of the backup's phases by component or null
+     */
+    public BackupLog(String label, String packageName, String versionName, int versionCode, String sourceDir,
+                     String[] splitSourceDirs, String dataDir, String deviceProtectedDataDir, long lastBackupMillis,
+                     boolean encrypted, String encryptionAlgorithm, boolean system, int backupMode, String compressionType, int incrementLevel,
+                     ApkDigest[] apkDigests, Map<String, String> dataFingerprints, Map<String, PhaseStats> stats) {
+        this.label = label;
+        this.packageName = packageName;
+        this.versionName = versionName;
+        this.versionCode = versionCode;
+        this.sourceDir = sourceDir;
+        this.splitSourceDirs = splitSourceDirs;
+        this.dataDir = dataDir;
+        this.deviceProtectedDataDir = deviceProtectedDataDir;
+        this.lastBackupMillis = lastBackupMillis;
+        this.encrypted = encrypted;
+        this.encryptionAlgorithm = encryptionAlgorithm;
+        this.system = system;
+        this.backupMode = backupMode;
+        this.compressionType = compressionType;
+        this.incrementLevel = incrementLevel;
+        this.apkDigests = apkDigests;
+        this.dataFingerprints = dataFingerprints;
+        this.stats = stats;
+    }
+
+    /**
+     * Reads the log file of a backup.
+     *
+     * @param backupSubDir the app's backup folder
+     * @param packageName  the app's package name
+     * @throws IOException   if the log file could not be read
+     * @throws JSONException if the log file is malformed
+     */
+    public static BackupLog read(File backupSubDir, String packageName) throws IOException, JSONException {
+        byte[] json = Files.readAllBytes(new File(backupSubDir, packageName + BackupLog.FILE_SUFFIX).toPath());
+        BackupLog backupLog = new BackupLog();
+        backupLog.readJson(new JSONObject(new String(json, StandardCharsets.UTF_8)));
+        return backupLog;
+    }
+
+    public static JSONArray toJsonArray(Object[] array) {
+        if (array == null) {
+            return null;
+        }
+        JSONArray result = new JSONArray();
+        for (Object entry : array) {
+            result.put(entry);
+        }
+        return result;
+    }
+
+    public static String[] toStringArray(JSONArray array) {
+        String[] result = new String[array.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = array.optString(i);
+        }
+        return result;
+    }
+
+    private static ApkDigest[] toApkDigests(JSONArray array) throws JSONException {
+        ApkDigest[] result = new ApkDigest[array.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ApkDigest.fromJson(array.getJSONObject(i));
+        }
+        return result;
+    }
+
+    private static Map<String, String> toStringMap(JSONObject object) throws JSONException {
+        Map<String, String> result = new HashMap<>();
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            result.put(key, object.getString(key));
+        }
+        return result;
+    }
+
+    public static Map<String, PhaseStats> toStatsMap(JSONObject object) throws JSONException {
+        Map<String, PhaseStats> result = new HashMap<>();
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            result.put(key, PhaseStats.fromJson(object.getJSONObject(key)));
+        }
+        return result;
+    }
+
+    public static JSONObject toJsonObject(Map<String, PhaseStats> stats) throws JSONException {
+        JSONObject result = new JSONObject();
+        for (Map.Entry<String, PhaseStats> entry : stats.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().toJson());
+        }
+        return result;
+    }
+
+    protected void readJson(JSONObject jsonObject) throws JSONException {
+        this.label = jsonObject.getString("label");
+        this.packageName = jsonObject.getString("packageName");
+        this.versionName = jsonObject.getString("versionName");
+        this.sourceDir = jsonObject.getString("sourceDir");
+        this.splitSourceDirs = jsonObject.has("splitSourceDirs") ? BackupLog.toStringArray(jsonObject.getJSONArray("splitSourceDirs")) : null;
+        this.dataDir = jsonObject.getString("dataDir");
+        this.deviceProtectedDataDir = jsonObject.has("deviceProtectedDataDir") ? jsonObject.getString("deviceProtectedDataDir") : null;
+        this.lastBackupMillis = jsonObject.getLong("lastBackupMillis");
+        this.versionCode = jsonObject.getInt("versionCode");
+        this.encrypted = jsonObject.optBoolean("isEncrypted");
+        this.encryptionAlgorithm = jsonObject.has("encryptionAlgorithm") ? jsonObject.getString("encryptionAlgorithm") : null;
+        this.system = jsonObject.optBoolean("isSystem");
+        this.backupMode = jsonObject.optInt("backupMode", BackupLog.MODE_UNSET);
+        // older backups don't record the codec, they are always gzip compressed
+        this.compressionType = jsonObject.optString("compressionType", "gz");
+        this.incrementLevel = jsonObject.optInt("incrementLevel", 0);
+        this.apkDigests = jsonObject.has("apkDigests") ? BackupLog.toApkDigests(jsonObject.getJSONArray("apkDigests")) : null;
+        this.dataFingerprints = jsonObject.has("dataFingerprints") ? BackupLog.toStringMap(jsonObject.getJSONObject("dataFingerprints")) : null;
+        this.stats = jsonObject.has("stats") ? BackupLog.toStatsMap(jsonObject.getJSONObject("stats")) : null;
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put("label", this.label);
+        jsonObject.put("versionName", this.versionName);
+        jsonObject.put("versionCode", this.versionCode);
+        jsonObject.put("packageName", this.packageName);
+        jsonObject.put("sourceDir", this.sourceDir);
+        // Value won't be written to the json string if it's java's null. Fine.
+        jsonObject.put("splitSourceDirs", BackupLog.toJsonArray(this.splitSourceDirs));
+        jsonObject.put("dataDir", this.dataDir);
+        jsonObject.put("deviceProtectedDataDir", this.deviceProtectedDataDir);
+        jsonObject.put("lastBackupMillis", this.lastBackupMillis);
+        jsonObject.put("isEncrypted", this.encrypted);
+        jsonObject.put("encryptionAlgorithm", this.encryptionAlgorithm);
+        jsonObject.put("isSystem", this.system);
+        jsonObject.put("backupMode", this.backupMode);
+        jsonObject.put("compressionType", this.compressionType);
+        jsonObject.put("incrementLevel", this.incrementLevel);
+        if (this.apkDigests != null) {
+            JSONArray apkDigestsArray = new JSONArray();
+            for (ApkDigest apkDigest : this.apkDigests) {
+                apkDigestsArray.put(apkDigest.toJson());
+            }
+            jsonObject.put("apkDigests", apkDigestsArray);
+        }
+        if (this.dataFingerprints != null) {
+            jsonObject.put("dataFingerprints", new JSONObject(this.dataFingerprints));
+        }
+        if (this.stats != null) {
+            jsonObject.put("stats", BackupLog.toJsonObject(this.stats));
+        }
+        return jsonObject;
+    }
+
+    /**
+     * Writes the log file to the app's backup folder.
+     *
+     * @param backupSubDir the app's backup folder
+     * @throws IOException   if the log file could not be written
+     * @throws JSONException if a value could not be serialized
+     */
+    public void write(File backupSubDir) throws IOException, JSONException {
+        String json = this.toJson().toString(4);
+        File outFile = new File(backupSubDir, this.packageName + BackupLog.FILE_SUFFIX);
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(outFile.getAbsoluteFile()))) {
+            bw.write(json + "\n");
+        }
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public String getVersionName() {
+        return versionName;
+    }
+
+    public int getVersionCode() {
+        return versionCode;
+    }
+
+    public String getSourceDir() {
+        return sourceDir;
+    }
+
+    public String[] getSplitSourceDirs() {
+        return splitSourceDirs;
+    }
+
+    public String[] getSplitApks() {
+        if (splitSourceDirs != null) {
+            String[] result = new String[splitSourceDirs.length];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = splitSourceDirs[i].substring(sourceDir.lastIndexOf("/") + 1);
+            }
+            return result;
+        }
+        return new String[0];
+    }
+
+    public String getApk() {
+        if (sourceDir != null && sourceDir.length() > 0)
+            return sourceDir.substring(sourceDir.lastIndexOf("/") + 1);
+        return null;
+    }
+
+    public String getDataDir() {
+        return dataDir;
+    }
+
+    public String getDeviceProtectedDataDir() {
+        return deviceProtectedDataDir;
+    }
+
+    public long getLastBackupMillis() {
+        return lastBackupMillis;
+    }
+
+    public boolean isEncrypted() {
+        return encrypted;
+    }
+
+    /**
+     * @return the name of the EncryptionAlgorithm, the newest archives are encrypted with, or
+     * null, if they aren't encrypted or the backup is older than the setting. The archives' headers
+     * name the algorithm, so this is only informational.
+     */
+    public String getEncryptionAlgorithm() {
+        return encryptionAlgorithm;
+    }
+
+    public boolean isSystem() {
+        return system;
+    }
+
+    public int getBackupMode() {
+        return backupMode;
+    }
+
+    public String getCompressionType() {
+        return compressionType;
+    }
+
+    /**
+     * @return 0 for a full backup, otherwise the number of incremental archives on top of it
+     */
+    public int getIncrementLevel() {
+        return incrementLevel;
+    }
+
+    /**
+     * @return the digests of the backed up apks or null, if they were not recorded
+     */
+    public ApkDigest[] getApkDigests() {
+        return apkDigests;
+    }
+
+    /**
+     * @return the fingerprints of the backed up data components by component name or null, if
+     * they were not recorded
+     */
+    public Map<String, String> getDataFingerprints() {
+        return dataFingerprints;
+    }
+
+    /**
+     * @return the time and bytes spent in the phases of the backup by component, e.g. data or
+     * apk, or null, if they were not recorded
+     */
+    public Map<String, PhaseStats> getStats() {
+        return stats;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.items;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The list of all entries of an app's data archives with the metadata needed to detect changes.
+ * It's stored next to the log file as {@code <package>.manifest}, one entry per line:
+ * {@code mode size mtime hash path}, separated by tabs. The path is the entry's name in the
+ * archive without a trailing slash, e.g. data/shared_prefs/settings.xml
+ * <p>
+ * Entries can be added from several threads, because the data components are archived in
+ * parallel.
+ */
+public class BackupManifest {
+    public static final String FILE_SUFFIX = ".manifest";
+    public static final String NO_HASH = "-";
+    private static final String SEPARATOR = "\t";
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public static BackupManifest read(File file) throws IOException {
+        BackupManifest manifest = new BackupManifest();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split(BackupManifest.SEPARATOR, 5);
+                if (fields.length != 5) {
+                    throw new IOException("Malformed manifest line: " + line);
+                }
+                try {
+                    manifest.put(new Entry(
+                            fields[4],
+                            Integer.parseInt(fields[0], 8),
+                            Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]),
+                            fields[3]
+                    ));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed manifest line: " + line, e);
+                }
+            }
+        }
+        return manifest;
+    }
+
+    public void write(File file) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, false))) {
+            for (Entry entry : this.entries.values()) {
+                writer.write(String.format("%o%s%d%s%d%s%s%s%s\n",
+                        entry.mode, BackupManifest.SEPARATOR,
+                        entry.size, BackupManifest.SEPARATOR,
+                        entry.mtime, BackupManifest.SEPARATOR,
+                        entry.hash, BackupManifest.SEPARATOR,
+                        entry.path));
+            }
+        }
+    }
+
+    public void put(Entry entry) {
+        this.entries.put(entry.path, entry);
+    }
+
+    public Entry get(String path) {
+        return this.entries.get(path);
+    }
+
+    public boolean contains(String path) {
+        return this.entries.containsKey(path);
+    }
+
+    public Collection<Entry> getEntries() {
+        return this.entries.values();
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Removes the files from an expanded chain of incremental archives, which are not listed in
+     * the manifest, because they have been deleted before the latest increment was created.
+     *
+     * @param directory the directory to clean up
+     * @param path      the directory's path in the archive, e.g. data
+     * @return the number of removed files and directories
+     * @throws IOException if a directory could not be listed
+     */
+    public int removeUnlisted(File directory, String path) throws IOException {
+        int removed = 0;
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return removed;
+        }
+        for (File file : files) {
+            String filePath = path + '/' + file.getName();
+            if (!this.contains(filePath)) {
+                FileUtils.deleteQuietly(file);
+                removed++;
+            } else if (file.isDirectory() && !FileUtils.isSymlink(file)) {
+                removed += this.removeUnlisted(file, filePath);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Like removeUnlisted, but only finds the files, so they can be removed by a root process.
+     * Used, if the chain has been extracted directly into the app's directory.
+     *
+     * @param path  the directory's path in the archive, e.g. data
+     * @param files the paths of the files and directories relative to the directory, parents
+     *              before their contents like find lists them
+     * @return the unlisted files and directories. The contents of an unlisted directory are left
+     * out, because they are removed with it.
+     */
+    public List<String> findUnlisted(String path, List<String> files) {
+        List<String> unlisted = new ArrayList<>();
+        Set<String> removedDirs = new HashSet<>();
+        for (String file : files) {
+            if (BackupManifest.isInRemovedDir(file, removedDirs)) {
+                continue;
+            }
+            if (!this.contains(path + '/' + file)) {
+                unlisted.add(file);
+                removedDirs.add(file);
+            }
+        }
+        return unlisted;
+    }
+
+    private static boolean isInRemovedDir(String file, Set<String> removedDirs) {
+        int separator = file.indexOf('/');
+        while (separator >= 0) {
+            if (removedDirs.contains(file.substring(0, separator))) {
+                return true;
+            }
+            separator = file.indexOf('/', separator + 1);
+        }
+        return false;
+    }
+
+    public static class Entry {
+        private final String path;
+        private final int mode;
+        private final long size;
+        private final long mtime;
+        private final String hash;
+
+        /**
+         * @param path  the entry's name in the archive without trailing slash
+         * @param mode  the file mode including the file type bits
+         * @param size  the size in bytes
+         * @param mtime the modification time in seconds since the epoch
+         * @param hash  hex encoded hash of the content or NO_HASH
+         */
+        public Entry(String path, int mode, long size, long mtime, String hash) {
+            this.path = path;
+            this.mode = mode;
+            this.size = size;
+            this.mtime = mtime;
+            this.hash = hash;
+        }
+
+        /**
+         * Checks if the metadata of both entries is equal. The hash isn't compared, because it's
+         * only known after the content has been read.
+         */
+        public boolean hasSameMetadata(Entry other) {
+            return other != null
+                    && this.mode == other.mode
+                    && this.size == other.size
+                    && this.mtime == other.mtime;
+        }
+
+        public String getPath() {
+            return this.path;
+        }
+
+        public int getMode() {
+            return this.mode;
+        }
+
+        public long getSize() {
+            return this.size;
+        }
+
+        public long getMtime() {
+            return this.mtime;
+        }
+
+        public String getHash() {
+            return this.hash;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ArchiveStreamsTest {
+    private static final byte[] SALT = "test salt".getBytes(StandardCharsets.UTF_8);
+    private static final int STORED_SIZE = 1024 * 1024;
+    private File sourceDir;
+
+    @Before
+    public void setUp() throws IOException {
+        this.sourceDir = Files.createTempDirectory("archivestreams").toFile();
+        // compresses very well, but is stored, because the extension says it's compressed
+        FileUtils.writeByteArrayToFile(new File(this.sourceDir, "photo.jpg"), new byte[ArchiveStreamsTest.STORED_SIZE]);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(this.sourceDir);
+    }
+
+    private int archiveSize(boolean adaptive, int threads, int pipelineDepth, PhaseStats stats) throws Exception {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream archive = ArchiveStreams.openTar(ArchiveStreams.encode(file, "", ArchiveStreamsTest.SALT,
+                CompressionCodec.GZIP, CompressionCodec.GZIP.getDefaultLevel(), threads, 128 * 1024, pipelineDepth, stats), adaptive)) {
+            TarUtils.addFilepath(archive, this.sourceDir, "");
+        }
+        return file.size();
+    }
+
+    private void assertStored(int threads, int pipelineDepth, PhaseStats stats) throws Exception {
+        int compressed = this.archiveSize(false, threads, pipelineDepth, stats);
+        assertTrue("not compressed: " + compressed, compressed < ArchiveStreamsTest.STORED_SIZE / 10);
+        // parallel gzip compresses the blocks shared with the tar headers
+        int stored = this.archiveSize(true, threads, pipelineDepth, stats);
+        assertTrue("not stored: " + stored, stored > ArchiveStreamsTest.STORED_SIZE / 2);
+    }
+
+    @Test
+    public void storesCompressedFiles() throws Exception {
+        this.assertStored(1, 0, null);
+    }
+
+    @Test
+    public void storesCompressedFilesWithStats() throws Exception {
+        this.assertStored(1, 0, new PhaseStats());
+        this.assertStored(4, 0, new PhaseStats());
+    }
+
+    @Test
+    public void storesCompressedFilesWithStatsInPipeline() throws Exception {
+        this.assertStored(1, 4, new PhaseStats());
+        this.assertStored(4, 4, new PhaseStats());
+    }
+
+    private static byte[] roundTrip(byte[] data, CompressionCodec codec, String password, int threads, int pipelineDepth) throws Exception {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        try (OutputStream out = ArchiveStreams.encode(file, password, ArchiveStreamsTest.SALT, EncryptionAlgorithm.AES_GCM, codec,
+                codec.getDefaultLevel(), threads, 128 * 1024, pipelineDepth, new PhaseStats())) {
+            // in pieces of several sizes like a tar stream
+            for (int offset = 0, length = 1; offset < data.length; offset += length, length = length * 7 % 70000 + 1) {
+                out.write(data, offset, Math.min(length, data.length - offset));
+            }
+        }
+        try (InputStream in = ArchiveStreams.decode(new ByteArrayInputStream(file.toByteArray()), password, ArchiveStreamsTest.SALT, codec,
+                pipelineDepth, threads, new PhaseStats())) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    private static byte[] compressibleData() {
+        // random data repeated with small changes, so every codec has something to do
+        byte[] data = ChunkStoreTest.randomData(10, 3 * 1024 * 1024);
+        for (int i = 4096; i < data.length; i++) {
+            if (i % 1000 != 0) {
+                data[i] = data[i - 4096];
+            }
+        }
+        return data;
+    }
+
+    @Test
+    public void codecsRoundTrip() throws Exception {
+        byte[] data = ArchiveStreamsTest.compressibleData();
+        for (CompressionCodec codec : CompressionCodec.values()) {
+            for (int pipelineDepth : new int[]{0, 4}) {
+                assertArrayEquals(codec + " with pipeline depth " + pipelineDepth, data,
+                        ArchiveStreamsTest.roundTrip(data, codec, "", 1, pipelineDepth));
+            }
+        }
+    }
+
+    @Test
+    public void parallelGzipRoundTrip() throws Exception {
+        byte[] data = ArchiveStreamsTest.compressibleData();
+        assertArrayEquals(data, ArchiveStreamsTest.roundTrip(data, CompressionCodec.GZIP, "", 4, 0));
+        assertArrayEquals(data, ArchiveStreamsTest.roundTrip(data, CompressionCodec.GZIP, "", 4, 4));
+    }
+
+    @Test
+    public void encryptedCodecsRoundTrip() throws Exception {
+        byte[] data = ArchiveStreamsTest.compressibleData();
+        for (CompressionCodec codec : CompressionCodec.values()) {
+            assertArrayEquals(codec.toString(), data, ArchiveStreamsTest.roundTrip(data, codec, "secret", 2, 4));
+        }
+        KeyCache.wipe();
+    }
+
+    @Test
+    public void emptyStreamsRoundTrip() throws Exception {
+        for (CompressionCodec codec : CompressionCodec.values()) {
+            assertArrayEquals(codec.toString(), new byte[0], ArchiveStreamsTest.roundTrip(new byte[0], codec, "", 1, 0));
+        }
+    }
+
+    @Test
+    public void codecsAreDetectedByArchiveName() {
+        for (CompressionCodec codec : CompressionCodec.values()) {
+            assertEquals(codec, CompressionCodec.fromArchiveName(BackupLayout.getArchiveName(BackupLayout.DATA, codec, false)));
+            assertEquals(codec, CompressionCodec.fromArchiveName(BackupLayout.getArchiveName(BackupLayout.DATA, codec, true)));
+            assertEquals(codec, CompressionCodec.fromName(codec.getName()));
+        }
+        assertNull(CompressionCodec.fromArchiveName(BackupLayout.getChunkListName(BackupLayout.DATA)));
+    }
+
+    @Test
+    public void pipelineStatsAreRecorded() throws Exception {
+        byte[] data = ArchiveStreamsTest.compressibleData();
+        PhaseStats stats = new PhaseStats();
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        try (OutputStream out = ArchiveStreams.encode(file, "", ArchiveStreamsTest.SALT, CompressionCodec.GZIP,
+                CompressionCodec.GZIP.getDefaultLevel(), 1, 128 * 1024, 4, stats)) {
+            out.write(data);
+        }
+        try (InputStream in = ArchiveStreams.decode(new ByteArrayInputStream(file.toByteArray()), "", ArchiveStreamsTest.SALT,
+                CompressionCodec.GZIP, 4, 1, stats)) {
+            IOUtils.toByteArray(in);
+        }
+        PhaseStats read = PhaseStats.fromJson(new JSONObject(stats.toJson().toString()));
+        List<String> names = new ArrayList<>();
+        for (PipelineStats pipeline : read.getPipelines()) {
+            names.add(pipeline.getName());
+            assertEquals(4 + 2, pipeline.getCapacity());
+            assertTrue(pipeline.getName(), pipeline.getBlocks() > 0);
+        }
+        assertEquals(Arrays.asList("compress", "decompress", "read", "write"), names);
+        PhaseStats sum = new PhaseStats();
+        sum.add(read);
+        sum.add(read);
+        assertEquals(2 * stats.getPipelines().iterator().next().getBytes(), sum.getPipelines().iterator().next().getBytes());
+    }
+
+    @Test
+    public void levelsOfOtherCodecsAreReplaced() {
+        assertEquals(9, CompressionCodec.GZIP.getLevel(9));
+        assertEquals(CompressionCodec.GZIP.getDefaultLevel(), CompressionCodec.GZIP.getLevel(19));
+        assertEquals(19, CompressionCodec.ZSTD.getLevel(19));
+        assertEquals(CompressionCodec.ZSTD.getDefaultLevel(), CompressionCodec.ZSTD.getLevel(-1));
+        assertEquals(CompressionCodec.LZ4.getDefaultLevel(), CompressionCodec.LZ4.getLevel(9));
+        assertEquals(CompressionCodec.NONE.getDefaultLevel(), CompressionCodec.NONE.getLevel(9));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyBlocksAreRejected() {
+        new ParallelGzipOutputStream(new ByteArrayOutputStream(), 4, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingThreadsAreRejected() {
+        new ParallelGzipOutputStream(new ByteArrayOutputStream(), 0, 128 * 1024);
+    }
+
+    @Test
+    public void blockSizeIsClamped() {
+        assertEquals(ParallelGzipOutputStream.MIN_BLOCK_SIZE, ParallelGzipOutputStream.getBlockSize(0));
+        assertEquals(ParallelGzipOutputStream.MIN_BLOCK_SIZE, ParallelGzipOutputStream.getBlockSize(-1));
+        assertEquals(1024 * 1024, ParallelGzipOutputStream.getBlockSize(1024));
+        assertEquals(ParallelGzipOutputStream.MAX_BLOCK_SIZE, ParallelGzipOutputStream.getBlockSize(Integer.MAX_VALUE));
+    }
+}
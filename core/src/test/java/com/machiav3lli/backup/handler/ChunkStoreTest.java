@@ -0,0 +1,200 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkStoreTest {
+    private static final byte[] SALT = "test salt".getBytes(StandardCharsets.UTF_8);
+    private File backupDir;
+    private ChunkStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        this.backupDir = Files.createTempDirectory("chunkstore").toFile();
+        this.store = new ChunkStore(this.backupDir);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(this.backupDir);
+        KeyCache.wipe();
+    }
+
+    static byte[] randomData(long seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private File write(String name, byte[] data, CompressionCodec codec, String password, EncryptionAlgorithm algorithm) throws Exception {
+        File appFolder = new File(this.backupDir, "com.example");
+        appFolder.mkdirs();
+        File chunkList = new File(appFolder, name + ChunkStore.CHUNK_LIST_SUFFIX);
+        ChunkFormat format = new ChunkFormat(codec, password, ChunkStoreTest.SALT, algorithm);
+        try (OutputStream out = new ChunkingOutputStream(this.store, chunkList, format, chunk -> {
+            try {
+                return ArchiveStreams.encode(chunk, password, ChunkStoreTest.SALT, algorithm, codec, codec.getDefaultLevel(), 1, 0, 0, null);
+            } catch (Crypto.CryptoSetupException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        })) {
+            out.write(data);
+        }
+        return chunkList;
+    }
+
+    private byte[] read(File chunkList, String password) throws IOException {
+        // like a restore, the codec is taken from the chunk list
+        CompressionCodec codec = ChunkStore.readCodec(chunkList);
+        try (InputStream in = this.store.open(chunkList, chunk -> {
+            try {
+                return ArchiveStreams.decode(chunk, password, ChunkStoreTest.SALT, codec, 0);
+            } catch (Crypto.CryptoSetupException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        })) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    @Test
+    public void roundTripSplitsIntoChunks() throws Exception {
+        byte[] data = ChunkStoreTest.randomData(1, 6 * 1024 * 1024);
+        File chunkList = this.write("data", data, CompressionCodec.GZIP, "", null);
+        List<String> ids = ChunkStore.readChunkList(chunkList);
+        assertTrue("expected several chunks, got " + ids.size(), ids.size() > 1);
+        assertEquals(CompressionCodec.GZIP, ChunkStore.readCodec(chunkList));
+        assertArrayEquals(data, this.read(chunkList, ""));
+    }
+
+    @Test
+    public void identicalContentIsStoredOnce() throws Exception {
+        byte[] data = ChunkStoreTest.randomData(2, 3 * 1024 * 1024);
+        File first = this.write("data", data, CompressionCodec.GZIP, "", null);
+        File second = this.write("data.1", data, CompressionCodec.GZIP, "", null);
+        assertEquals(ChunkStore.readChunkList(first), ChunkStore.readChunkList(second));
+    }
+
+    @Test
+    public void switchingTheCodecStoresNewChunks() throws Exception {
+        byte[] data = ChunkStoreTest.randomData(3, 3 * 1024 * 1024);
+        File gzip = this.write("data", data, CompressionCodec.GZIP, "", null);
+        File zstd = this.write("external_files", data, CompressionCodec.ZSTD, "", null);
+        File none = this.write("obb_files", data, CompressionCodec.NONE, "", null);
+        this.assertDisjoint(gzip, zstd);
+        this.assertDisjoint(gzip, none);
+        assertArrayEquals(data, this.read(gzip, ""));
+        assertArrayEquals(data, this.read(zstd, ""));
+        assertArrayEquals(data, this.read(none, ""));
+    }
+
+    @Test
+    public void switchingTheEncryptionStoresNewChunks() throws Exception {
+        byte[] data = ChunkStoreTest.randomData(4, 3 * 1024 * 1024);
+        File plain = this.write("data", data, CompressionCodec.GZIP, "", null);
+        File encrypted = this.write("external_files", data, CompressionCodec.GZIP, "secret", EncryptionAlgorithm.AES_GCM);
+        File otherPassword = this.write("obb_files", data, CompressionCodec.GZIP, "other", EncryptionAlgorithm.AES_GCM);
+        this.assertDisjoint(plain, encrypted);
+        this.assertDisjoint(encrypted, otherPassword);
+        assertArrayEquals(data, this.read(plain, ""));
+        assertArrayEquals(data, this.read(encrypted, "secret"));
+        assertArrayEquals(data, this.read(otherPassword, "other"));
+    }
+
+    @Test
+    public void idsDontRevealTheContentHash() throws Exception {
+        byte[] data = ChunkStoreTest.randomData(5, 100 * 1024);
+        File chunkList = this.write("data", data, CompressionCodec.GZIP, "secret", EncryptionAlgorithm.AES_GCM);
+        StringBuilder hash = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+            hash.append(String.format("%02x", b));
+        }
+        List<String> ids = ChunkStore.readChunkList(chunkList);
+        assertEquals(1, ids.size());
+        assertFalse(ids.contains(hash.toString()));
+        assertFalse(this.store.contains(hash.toString()));
+    }
+
+    @Test
+    public void chunkListsWithoutCodecHaveNone() throws Exception {
+        File chunkList = new File(this.backupDir, "old.chunks");
+        FileUtils.writeStringToFile(chunkList, "00ff\n", StandardCharsets.UTF_8);
+        assertNull(ChunkStore.readCodec(chunkList));
+    }
+
+    @Test
+    public void garbageCollectionKeepsReferencedChunks() throws Exception {
+        byte[] kept = ChunkStoreTest.randomData(6, 1024 * 1024);
+        File keptList = this.write("data", kept, CompressionCodec.GZIP, "", null);
+        File removedList = this.write("data.1", ChunkStoreTest.randomData(7, 1024 * 1024), CompressionCodec.GZIP, "", null);
+        List<String> removedIds = ChunkStore.readChunkList(removedList);
+        assertTrue(removedList.delete());
+        assertEquals(removedIds.size(), this.store.collectGarbage(this.backupDir));
+        for (String id : removedIds) {
+            assertFalse(this.store.contains(id));
+        }
+        assertArrayEquals(kept, this.read(keptList, ""));
+    }
+
+    @Test
+    public void garbageCollectionWaitsForWriters() throws Exception {
+        File appFolder = new File(this.backupDir, "com.example");
+        appFolder.mkdirs();
+        File chunkList = new File(appFolder, "data" + ChunkStore.CHUNK_LIST_SUFFIX);
+        ChunkFormat format = new ChunkFormat(CompressionCodec.NONE, "", ChunkStoreTest.SALT, null);
+        byte[] data = ChunkStoreTest.randomData(8, ChunkingOutputStream.MAX_CHUNK_SIZE + 1);
+        try (OutputStream out = new ChunkingOutputStream(this.store, chunkList, format, chunk -> chunk)) {
+            // at least one chunk is in the store, but not referenced by a chunk list yet
+            out.write(data);
+            assertTrue(new File(this.backupDir, ChunkStore.DIRECTORY_NAME).isDirectory());
+            // another instance of the same store, like the one of another batch
+            assertEquals(0, new ChunkStore(this.backupDir).collectGarbage(this.backupDir));
+        }
+        assertEquals(0, this.store.collectGarbage(this.backupDir));
+        assertArrayEquals(data, this.read(chunkList, ""));
+    }
+
+    private void assertDisjoint(File chunkList, File otherChunkList) throws IOException {
+        Set<String> ids = new HashSet<>(ChunkStore.readChunkList(chunkList));
+        ids.retainAll(ChunkStore.readChunkList(otherChunkList));
+        assertTrue("chunks are shared: " + ids, ids.isEmpty());
+    }
+}
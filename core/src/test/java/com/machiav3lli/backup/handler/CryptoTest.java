@@ -0,0 +1,151 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class CryptoTest {
+    private static final String PASSWORD = "secret";
+    private static final byte[] SALT = "test salt".getBytes(StandardCharsets.UTF_8);
+    // magic, version, algorithm, iterations, archive salt, chunk size, nonce prefix
+    private static final int HEADER_LENGTH = 8 + 1 + 1 + 4 + 16 + 4 + 7;
+    private static final int ITERATIONS_OFFSET = 10;
+    private static final int ARCHIVE_SALT_OFFSET = 14;
+    private static final int ENCRYPTED_CHUNK_SIZE = Crypto.ENCRYPTION_CHUNK_SIZE + EncryptionAlgorithm.TAG_LENGTH;
+
+    @After
+    public void tearDown() {
+        KeyCache.wipe();
+    }
+
+    private static byte[] encrypt(byte[] data, EncryptionAlgorithm algorithm, int threads) throws Exception {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        try (OutputStream out = Crypto.encryptStream(file, CryptoTest.PASSWORD, CryptoTest.SALT, algorithm, threads)) {
+            out.write(data);
+        }
+        return file.toByteArray();
+    }
+
+    private static byte[] decrypt(byte[] file, String password, int threads) throws Exception {
+        try (InputStream in = Crypto.decryptStream(new ByteArrayInputStream(file), password, CryptoTest.SALT, threads)) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+
+    private static void assertRoundTrip(EncryptionAlgorithm algorithm) throws Exception {
+        int[] sizes = {0, 1, Crypto.ENCRYPTION_CHUNK_SIZE - 1, Crypto.ENCRYPTION_CHUNK_SIZE,
+                3 * Crypto.ENCRYPTION_CHUNK_SIZE, 3 * Crypto.ENCRYPTION_CHUNK_SIZE + 12345};
+        for (int size : sizes) {
+            byte[] data = ChunkStoreTest.randomData(size, size);
+            for (int threads : new int[]{1, 4}) {
+                assertArrayEquals(algorithm + " " + size + " bytes on " + threads + " threads", data,
+                        CryptoTest.decrypt(CryptoTest.encrypt(data, algorithm, threads), CryptoTest.PASSWORD, threads));
+            }
+        }
+    }
+
+    @Test
+    public void aesGcmRoundTrip() throws Exception {
+        CryptoTest.assertRoundTrip(EncryptionAlgorithm.AES_GCM);
+    }
+
+    @Test
+    public void chaCha20Poly1305RoundTrip() throws Exception {
+        Assume.assumeTrue(EncryptionAlgorithm.CHACHA20_POLY1305.isAvailable());
+        CryptoTest.assertRoundTrip(EncryptionAlgorithm.CHACHA20_POLY1305);
+    }
+
+    @Test
+    public void legacyStreamsAreDecrypted() throws Exception {
+        byte[] data = ChunkStoreTest.randomData(2, 100000);
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        try (OutputStream out = Crypto.encryptStream(file, Crypto.generateKeyFromPassword(CryptoTest.PASSWORD, CryptoTest.SALT))) {
+            out.write(data);
+        }
+        assertArrayEquals(data, CryptoTest.decrypt(file.toByteArray(), CryptoTest.PASSWORD, 1));
+    }
+
+    private static byte[] encryptedChunks() throws Exception {
+        return CryptoTest.encrypt(ChunkStoreTest.randomData(3, 3 * Crypto.ENCRYPTION_CHUNK_SIZE + 100), EncryptionAlgorithm.AES_GCM, 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptChunkFails() throws Exception {
+        byte[] file = CryptoTest.encryptedChunks();
+        file[CryptoTest.HEADER_LENGTH + CryptoTest.ENCRYPTED_CHUNK_SIZE + 1000] ^= 1;
+        CryptoTest.decrypt(file, CryptoTest.PASSWORD, 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void corruptChunkFailsOnThreads() throws Exception {
+        byte[] file = CryptoTest.encryptedChunks();
+        file[CryptoTest.HEADER_LENGTH + CryptoTest.ENCRYPTED_CHUNK_SIZE + 1000] ^= 1;
+        CryptoTest.decrypt(file, CryptoTest.PASSWORD, 4);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncationAfterChunkFails() throws Exception {
+        byte[] file = CryptoTest.encryptedChunks();
+        CryptoTest.decrypt(Arrays.copyOf(file, CryptoTest.HEADER_LENGTH + 2 * CryptoTest.ENCRYPTED_CHUNK_SIZE), CryptoTest.PASSWORD, 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncationWithinChunkFails() throws Exception {
+        byte[] file = CryptoTest.encryptedChunks();
+        CryptoTest.decrypt(Arrays.copyOf(file, file.length - 50), CryptoTest.PASSWORD, 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void appendedDataFails() throws Exception {
+        byte[] file = CryptoTest.encryptedChunks();
+        CryptoTest.decrypt(Arrays.copyOf(file, file.length + 100), CryptoTest.PASSWORD, 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void wrongPasswordFails() throws Exception {
+        CryptoTest.decrypt(CryptoTest.encryptedChunks(), "wrong", 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void tamperedHeaderFails() throws Exception {
+        byte[] file = CryptoTest.encryptedChunks();
+        file[CryptoTest.ARCHIVE_SALT_OFFSET] ^= 1;
+        CryptoTest.decrypt(file, CryptoTest.PASSWORD, 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void excessiveIterationsFail() throws Exception {
+        byte[] file = CryptoTest.encryptedChunks();
+        ByteBuffer.wrap(file).putInt(CryptoTest.ITERATIONS_OFFSET, Integer.MAX_VALUE);
+        CryptoTest.decrypt(file, CryptoTest.PASSWORD, 1);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ExclusionRulesTest {
+    private static final String PACKAGE_NAME = "com.example.app";
+    private File rulesFile;
+
+    @Before
+    public void setUp() throws IOException {
+        this.rulesFile = Files.createTempFile("exclusions", ".txt").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteQuietly(this.rulesFile);
+    }
+
+    private ExclusionRules load(String rules) throws IOException {
+        FileUtils.writeStringToFile(this.rulesFile, rules, StandardCharsets.UTF_8);
+        return ExclusionRules.load(this.rulesFile, ExclusionRulesTest.PACKAGE_NAME, false);
+    }
+
+    private static TarArchiveEntry file(String name, long size) {
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(size);
+        return entry;
+    }
+
+    @Test
+    public void maxSizeExcludesLargerFiles() throws IOException {
+        ExclusionRules rules = this.load("maxsize 2K\n");
+        assertFalse(rules.isExcluded(ExclusionRulesTest.file("data/files/small", 2048)));
+        assertTrue(rules.isExcluded(ExclusionRulesTest.file("data/files/large", 2049)));
+    }
+
+    @Test
+    public void invalidSizesAreRejected() throws IOException {
+        for (String size : new String[]{"-1", "-1K", "9999999999G", "99999999999999999999", "K", "big"}) {
+            try {
+                this.load("maxsize " + size + "\n");
+                fail("not rejected: " + size);
+            } catch (IOException expected) {
+                // the rules file is reported as malformed
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import com.machiav3lli.backup.items.BackupManifest;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IncrementalBackupTest {
+    private static final byte[] SALT = "test salt".getBytes(StandardCharsets.UTF_8);
+    private static final long MTIME = 1600000000000L;
+    private File tempDir;
+    private File sourceDir;
+    private File backupDir;
+
+    @Before
+    public void setUp() throws IOException {
+        this.tempDir = Files.createTempDirectory("incremental").toFile();
+        this.sourceDir = new File(this.tempDir, "source");
+        this.backupDir = new File(this.tempDir, "backup");
+        this.backupDir.mkdirs();
+        this.writeSource("a", "deleted later");
+        this.writeSource("b", "changed later");
+        this.writeSource("c", "unchanged");
+        this.writeSource("old/e", "deleted with its directory");
+        this.writeSource("files/f", ChunkStoreTest.randomData(4, 200000));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(this.tempDir);
+        KeyCache.wipe();
+    }
+
+    private void writeSource(String path, String content) throws IOException {
+        this.writeSource(path, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeSource(String path, byte[] content) throws IOException {
+        File file = new File(this.sourceDir, path);
+        FileUtils.writeByteArrayToFile(file, content);
+        file.setLastModified(IncrementalBackupTest.MTIME);
+    }
+
+    private ManifestRecorder backup(int incrementLevel, CompressionCodec codec, String password, BackupManifest previous, BackupManifest current)
+            throws Exception {
+        File file = new File(this.backupDir, BackupLayout.getArchiveName(
+                BackupLayout.getIncrementName(BackupLayout.DATA, incrementLevel), codec, !password.isEmpty()));
+        ManifestRecorder recorder = new ManifestRecorder(previous, current);
+        try (TarArchiveOutputStream archive = ArchiveStreams.openTar(ArchiveStreams.encode(new FileOutputStream(file), password,
+                IncrementalBackupTest.SALT, codec, codec.getDefaultLevel(), 1, 128 * 1024, 0), false)) {
+            TarUtils.addFilepathAs(archive, this.sourceDir, BackupLayout.DATA, null, recorder);
+        }
+        return recorder;
+    }
+
+    private File restore(String password, CompressionCodec loggedCodec, int incrementLevel, BackupManifest latest) throws Exception {
+        File restoreDir = new File(this.tempDir, "restore");
+        List<File> chain = BackupLayout.findArchiveChain(this.backupDir, BackupLayout.DATA, !password.isEmpty(), loggedCodec, incrementLevel);
+        assertEquals(incrementLevel + 1, chain.size());
+        for (File file : chain) {
+            CompressionCodec codec = CompressionCodec.fromArchiveName(file.getName());
+            try (InputStream in = ArchiveStreams.decode(new FileInputStream(file), password, IncrementalBackupTest.SALT, codec, 0);
+                 TarArchiveInputStream archive = new TarArchiveInputStream(in)) {
+                TarUtils.uncompressTo(archive, restoreDir);
+            }
+        }
+        File restoredData = new File(restoreDir, BackupLayout.DATA);
+        latest.removeUnlisted(restoredData, BackupLayout.DATA);
+        return restoredData;
+    }
+
+    private void change() throws IOException {
+        FileUtils.deleteQuietly(new File(this.sourceDir, "a"));
+        FileUtils.deleteDirectory(new File(this.sourceDir, "old"));
+        File b = new File(this.sourceDir, "b");
+        FileUtils.writeStringToFile(b, "changed", StandardCharsets.UTF_8);
+        b.setLastModified(IncrementalBackupTest.MTIME + 5000);
+        this.writeSource("d", "added");
+    }
+
+    private static TreeMap<String, byte[]> listContents(File directory) throws IOException {
+        TreeMap<String, byte[]> contents = new TreeMap<>();
+        IncrementalBackupTest.listContents(directory, "", contents);
+        return contents;
+    }
+
+    private static void listContents(File directory, String path, TreeMap<String, byte[]> contents) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Could not list " + directory);
+        }
+        for (File file : files) {
+            String filePath = path + file.getName();
+            if (file.isDirectory()) {
+                contents.put(filePath + '/', new byte[0]);
+                IncrementalBackupTest.listContents(file, filePath + '/', contents);
+            } else {
+                contents.put(filePath, FileUtils.readFileToByteArray(file));
+            }
+        }
+    }
+
+    private static void assertSameContents(File expected, File actual) throws IOException {
+        TreeMap<String, byte[]> expectedContents = IncrementalBackupTest.listContents(expected);
+        TreeMap<String, byte[]> actualContents = IncrementalBackupTest.listContents(actual);
+        assertEquals(expectedContents.keySet(), actualContents.keySet());
+        for (String path : expectedContents.keySet()) {
+            assertArrayEquals(path, expectedContents.get(path), actualContents.get(path));
+        }
+    }
+
+    private void assertChainRestores(CompressionCodec fullCodec, CompressionCodec incrementCodec, String password) throws Exception {
+        BackupManifest full = new BackupManifest();
+        assertEquals(0, this.backup(0, fullCodec, password, null, full).getSkippedEntries());
+        this.change();
+        BackupManifest increment = new BackupManifest();
+        // c and files/f
+        assertEquals(2, this.backup(1, incrementCodec, password, full, increment).getSkippedEntries());
+        // the log file records the codec of the latest backup
+        IncrementalBackupTest.assertSameContents(this.sourceDir, this.restore(password, incrementCodec, 1, increment));
+    }
+
+    @Test
+    public void chainRestoresLatestState() throws Exception {
+        this.assertChainRestores(CompressionCodec.GZIP, CompressionCodec.GZIP, "");
+    }
+
+    @Test
+    public void chainWithChangedCodecRestoresLatestState() throws Exception {
+        this.assertChainRestores(CompressionCodec.GZIP, CompressionCodec.ZSTD, "");
+    }
+
+    @Test
+    public void encryptedChainRestoresLatestState() throws Exception {
+        this.assertChainRestores(CompressionCodec.LZ4, CompressionCodec.GZIP, "secret");
+    }
+
+    @Test
+    public void manifestSurvivesWriting() throws Exception {
+        BackupManifest manifest = new BackupManifest();
+        this.backup(0, CompressionCodec.GZIP, "", null, manifest);
+        File file = new File(this.backupDir, BackupLayout.getManifestFileName("com.example.app"));
+        manifest.write(file);
+        BackupManifest read = BackupManifest.read(file);
+        assertEquals(manifest.size(), read.size());
+        for (BackupManifest.Entry entry : manifest.getEntries()) {
+            BackupManifest.Entry readEntry = read.get(entry.getPath());
+            assertEquals(entry.getPath(), entry.getHash(), readEntry.getHash());
+            assertTrue(entry.getPath(), entry.hasSameMetadata(readEntry));
+        }
+    }
+
+    @Test
+    public void unlistedFilesAreFound() throws Exception {
+        BackupManifest manifest = new BackupManifest();
+        this.backup(0, CompressionCodec.GZIP, "", null, manifest);
+        this.change();
+        // like find lists the old source, parents before their contents
+        List<String> files = Arrays.asList("a", "b", "c", "files", "files/f", "old", "old/e");
+        BackupManifest increment = new BackupManifest();
+        this.backup(1, CompressionCodec.GZIP, "", manifest, increment);
+        assertEquals(Arrays.asList("a", "old"), increment.findUnlisted(BackupLayout.DATA, files));
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+
+public class KeyCacheTest {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final byte[] SALT = "test salt".getBytes(StandardCharsets.UTF_8);
+
+    @After
+    public void tearDown() {
+        KeyCache.wipe();
+    }
+
+    private static byte[] get() throws Exception {
+        return KeyCache.get(KeyCacheTest.ALGORITHM, "secret", KeyCacheTest.SALT, 1000, 256);
+    }
+
+    @Test
+    public void returnsCopies() throws Exception {
+        byte[] first = KeyCacheTest.get();
+        byte[] expected = first.clone();
+        Arrays.fill(first, (byte) 0);
+        byte[] second = KeyCacheTest.get();
+        assertNotSame(first, second);
+        assertArrayEquals(expected, second);
+    }
+
+    @Test
+    public void wipeKeepsKeysInUse() throws Exception {
+        byte[] key = KeyCacheTest.get();
+        byte[] expected = key.clone();
+        // another run finishes
+        KeyCache.wipe();
+        assertArrayEquals(expected, key);
+        assertArrayEquals(expected, KeyCacheTest.get());
+    }
+}
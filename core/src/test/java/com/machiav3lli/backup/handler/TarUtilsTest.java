@@ -0,0 +1,168 @@
+/*
+ * OAndBackupX: open-source apps backup and restore app.
+ * Copyright (C) 2020  Antonios Hazim
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.machiav3lli.backup.handler;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TarUtilsTest {
+    private static final String TARGET_CONTEXT = "u:object_r:app_data_file:s0:c512,c768";
+
+    @Test
+    public void archivedTypeIsKept() {
+        assertEquals("u:object_r:app_exec_data_file:s0:c512,c768",
+                TarUtils.getTargetSelinuxContext("u:object_r:app_exec_data_file:s0:c1,c2", TarUtilsTest.TARGET_CONTEXT));
+        // user and role come from the target directory
+        assertEquals("u:object_r:app_exec_data_file:s0:c512,c768",
+                TarUtils.getTargetSelinuxContext("x:system_r:app_exec_data_file:s0", TarUtilsTest.TARGET_CONTEXT));
+    }
+
+    @Test
+    public void invalidContextsAreReplaced() {
+        String[] contexts = {null, "", "app_data_file", "u:object_r:x;reboot #:s0", "u:object_r:app_data_file:s0;reboot",
+                "u:object_r:app_data_file:s0 $(reboot)", "u:object_r:app_data_file:'s0'", "u:object_r:system_file:s0"};
+        for (String context : contexts) {
+            assertEquals(String.valueOf(context), TarUtilsTest.TARGET_CONTEXT, TarUtils.getTargetSelinuxContext(context, TarUtilsTest.TARGET_CONTEXT));
+        }
+    }
+
+    private static TarArchiveEntry file(String name) {
+        TarArchiveEntry entry = new TarArchiveEntry(name, true);
+        entry.setSize(1);
+        return entry;
+    }
+
+    private static TarArchiveEntry link(String name, byte type, String linkName) {
+        TarArchiveEntry entry = new TarArchiveEntry(name, type, true);
+        entry.setLinkName(linkName);
+        return entry;
+    }
+
+    private static byte[] archive(TarArchiveEntry... entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream archive = new TarArchiveOutputStream(bytes)) {
+            archive.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            for (TarArchiveEntry entry : entries) {
+                archive.putArchiveEntry(entry);
+                if (entry.getSize() > 0) {
+                    archive.write('x');
+                }
+                archive.closeArchiveEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the names and link names of the copied entries
+     */
+    private static List<String> copyComponent(byte[] archive, Set<String> symlinks) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (TarArchiveOutputStream target = new TarArchiveOutputStream(bytes)) {
+            target.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            TarUtils.copyComponent(new TarArchiveInputStream(new ByteArrayInputStream(archive)), target, null, 1000, 1000,
+                    null, null, symlinks);
+        }
+        List<String> names = new ArrayList<>();
+        try (TarArchiveInputStream copied = new TarArchiveInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            TarArchiveEntry entry;
+            while ((entry = copied.getNextTarEntry()) != null) {
+                names.add(entry.getLinkName().isEmpty() ? entry.getName() : entry.getName() + " -> " + entry.getLinkName());
+            }
+        }
+        return names;
+    }
+
+    private static void assertRejected(TarArchiveEntry... entries) throws IOException {
+        try {
+            TarUtilsTest.copyComponent(TarUtilsTest.archive(entries), new HashSet<>());
+            fail("not rejected: " + entries[entries.length - 1].getName());
+        } catch (IOException expected) {
+            // the root tar never sees the entry
+        }
+    }
+
+    @Test
+    public void componentIsCopied() throws IOException {
+        byte[] archive = TarUtilsTest.archive(new TarArchiveEntry("data/"), new TarArchiveEntry("data/files/"),
+                TarUtilsTest.file("data/files/a"), TarUtilsTest.link("data/lib", TarConstants.LF_SYMLINK, "/data/app/lib"),
+                TarUtilsTest.link("data/files/b", TarConstants.LF_LINK, "data/files/a"));
+        assertEquals(Arrays.asList("files/", "files/a", "lib -> /data/app/lib", "files/b -> files/a"),
+                TarUtilsTest.copyComponent(archive, new HashSet<>()));
+    }
+
+    @Test
+    public void escapingNamesAreRejected() throws IOException {
+        TarUtilsTest.assertRejected(TarUtilsTest.file("/data/files/a"));
+        TarUtilsTest.assertRejected(TarUtilsTest.file("data/../../system/bin/sh"));
+        TarUtilsTest.assertRejected(TarUtilsTest.file("data/files/../../a"));
+        TarUtilsTest.assertRejected(TarUtilsTest.file("data//a"));
+        TarUtilsTest.assertRejected(TarUtilsTest.file("data/./a"));
+    }
+
+    @Test
+    public void escapingHardLinksAreRejected() throws IOException {
+        TarUtilsTest.assertRejected(TarUtilsTest.link("data/a", TarConstants.LF_LINK, "/system/bin/sh"));
+        TarUtilsTest.assertRejected(TarUtilsTest.link("data/a", TarConstants.LF_LINK, "data/../../system/bin/sh"));
+        TarUtilsTest.assertRejected(TarUtilsTest.link("data/a", TarConstants.LF_LINK, "sh"));
+    }
+
+    @Test
+    public void entriesInsideSymbolicLinksAreRejected() throws IOException {
+        TarUtilsTest.assertRejected(TarUtilsTest.link("data/l", TarConstants.LF_SYMLINK, "/system"),
+                TarUtilsTest.file("data/l/bin/sh"));
+        TarUtilsTest.assertRejected(TarUtilsTest.link("data/l", TarConstants.LF_SYMLINK, "/system"),
+                new TarArchiveEntry("data/l/"));
+        TarUtilsTest.assertRejected(TarUtilsTest.link("data/l", TarConstants.LF_SYMLINK, "/system"),
+                TarUtilsTest.link("data/a", TarConstants.LF_LINK, "data/l/bin/sh"));
+    }
+
+    @Test
+    public void entriesInsideSymbolicLinksOfTheChainAreRejected() throws IOException {
+        Set<String> symlinks = new HashSet<>();
+        TarUtilsTest.copyComponent(TarUtilsTest.archive(TarUtilsTest.link("data/l", TarConstants.LF_SYMLINK, "/system")), symlinks);
+        try {
+            TarUtilsTest.copyComponent(TarUtilsTest.archive(TarUtilsTest.file("data/l/bin/sh")), symlinks);
+            fail("not rejected");
+        } catch (IOException expected) {
+            // the increment would write through the full backup's link
+        }
+    }
+
+    @Test
+    public void specialFilesAreRejected() throws IOException {
+        TarUtilsTest.assertRejected(new TarArchiveEntry("data/dev", TarConstants.LF_CHR, true));
+        TarUtilsTest.assertRejected(new TarArchiveEntry("data/dev", TarConstants.LF_BLK, true));
+        TarUtilsTest.assertRejected(new TarArchiveEntry("data/fifo", TarConstants.LF_FIFO, true));
+    }
+}